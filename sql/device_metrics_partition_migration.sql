@@ -0,0 +1,44 @@
+-- 已有 device_metrics 表改造为按 create_time 分区
+-- 改造会重建整张表，数据量大时请在低峰期执行，或使用 pt-online-schema-change / gh-ost
+-- 改造后由 DeviceMetricsRetentionService 自动预建未来分区、清理过期分区
+
+ALTER TABLE `device_metrics`
+  DROP PRIMARY KEY,
+  ADD PRIMARY KEY (`id`, `create_time`),
+  DROP INDEX `idx_device`,
+  ADD INDEX `idx_device_time` (`device_type`, `device_id`, `create_time`);
+
+-- 按天生成从最早数据到今天的历史分区，使 p_max 为空：
+-- 之后 DeviceMetricsRetentionService 从最后一个分区上界继续拆分 p_max，只是元数据操作，不会再重写历史数据。
+-- 分区名、边界格式与程序一致（p20261017 / '2026-10-18 00:00:00'）；使用 month 粒度时请改为按月生成。
+-- 超出保留期的历史分区会在首次维护时直接删除（archive=true 时先归档）。
+DROP PROCEDURE IF EXISTS `device_metrics_partition_history`;
+
+DELIMITER $$
+CREATE PROCEDURE `device_metrics_partition_history`()
+BEGIN
+  DECLARE d DATE;
+  DECLARE stop_date DATE DEFAULT DATE_ADD(CURDATE(), INTERVAL 1 DAY);
+  DECLARE defs LONGTEXT DEFAULT '';
+  SELECT DATE(MIN(`create_time`)) INTO d FROM `device_metrics`;
+  IF d IS NULL THEN
+    SET d = CURDATE();
+  END IF;
+  WHILE d < stop_date DO
+    SET defs = CONCAT(defs, 'PARTITION `p', DATE_FORMAT(d, '%Y%m%d'), '` VALUES LESS THAN (''',
+                      DATE_FORMAT(DATE_ADD(d, INTERVAL 1 DAY), '%Y-%m-%d 00:00:00'), '''), ');
+    SET d = DATE_ADD(d, INTERVAL 1 DAY);
+  END WHILE;
+  SET @ddl = CONCAT('ALTER TABLE `device_metrics` PARTITION BY RANGE COLUMNS(`create_time`) (',
+                    defs, 'PARTITION `p_max` VALUES LESS THAN (MAXVALUE))');
+  PREPARE stmt FROM @ddl;
+  EXECUTE stmt;
+  DEALLOCATE PREPARE stmt;
+END$$
+DELIMITER ;
+
+CALL `device_metrics_partition_history`();
+DROP PROCEDURE `device_metrics_partition_history`;
+
+CREATE TABLE IF NOT EXISTS `device_metrics_archive` LIKE `device_metrics`;
+ALTER TABLE `device_metrics_archive` REMOVE PARTITIONING;
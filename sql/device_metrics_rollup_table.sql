@@ -0,0 +1,24 @@
+-- 设备指标降采样汇总表
+-- 按 1m / 1h / 1d 三种粒度保存每台设备每个时间桶的 min / max / sum / count，
+-- 由 DeviceMetricsRollupService 在指标批量入库时增量更新，avg = sum / count
+
+CREATE TABLE IF NOT EXISTS `device_metrics_rollup` (
+  `device_type` VARCHAR(50) NOT NULL COMMENT '设备类型',
+  `device_id` VARCHAR(50) NOT NULL COMMENT '设备编号',
+  `resolution` VARCHAR(4) NOT NULL COMMENT '粒度：1m/1h/1d',
+  `bucket_time` DATETIME NOT NULL COMMENT '时间桶起始时间',
+  `sample_count` INT NOT NULL DEFAULT 0 COMMENT '上报次数',
+  `coil_min` DECIMAL(10,2) DEFAULT NULL COMMENT '线圈温度最小值',
+  `coil_max` DECIMAL(10,2) DEFAULT NULL COMMENT '线圈温度最大值',
+  `coil_sum` DECIMAL(20,2) NOT NULL DEFAULT 0 COMMENT '线圈温度合计',
+  `coil_count` INT NOT NULL DEFAULT 0 COMMENT '线圈温度有效值个数',
+  `machine_min` DECIMAL(10,2) DEFAULT NULL COMMENT '机温最小值',
+  `machine_max` DECIMAL(10,2) DEFAULT NULL COMMENT '机温最大值',
+  `machine_sum` DECIMAL(20,2) NOT NULL DEFAULT 0 COMMENT '机温合计',
+  `machine_count` INT NOT NULL DEFAULT 0 COMMENT '机温有效值个数',
+  `pump_min` DECIMAL(10,2) DEFAULT NULL COMMENT '水泵流速最小值',
+  `pump_max` DECIMAL(10,2) DEFAULT NULL COMMENT '水泵流速最大值',
+  `pump_sum` DECIMAL(20,2) NOT NULL DEFAULT 0 COMMENT '水泵流速合计',
+  `pump_count` INT NOT NULL DEFAULT 0 COMMENT '水泵流速有效值个数',
+  PRIMARY KEY (`device_type`, `device_id`, `resolution`, `bucket_time`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='设备指标降采样汇总表';
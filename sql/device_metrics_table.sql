@@ -1,5 +1,7 @@
 -- 设备指标数据表
 -- 用于存储设备上报的实时指标数据（线圈温度、机温、水泵流速）
+-- 按 create_time 做 RANGE COLUMNS 分区，分区由 DeviceMetricsRetentionService 定时预建与清理；
+-- 分区键必须包含在主键中，因此主键为 (id, create_time)
 
 CREATE TABLE IF NOT EXISTS `device_metrics` (
   `id` BIGINT(20) NOT NULL AUTO_INCREMENT COMMENT '主键ID',
@@ -11,11 +13,18 @@ CREATE TABLE IF NOT EXISTS `device_metrics` (
   `msg_id` VARCHAR(100) DEFAULT NULL COMMENT '消息ID，用于去重',
   `create_time` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间（数据上报时间）',
   `server_time` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '服务器接收时间',
-  PRIMARY KEY (`id`),
-  KEY `idx_device` (`device_type`, `device_id`),
+  PRIMARY KEY (`id`, `create_time`),
+  KEY `idx_device_time` (`device_type`, `device_id`, `create_time`),
   KEY `idx_create_time` (`create_time`),
   KEY `idx_msg_id` (`msg_id`)
-) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='设备指标数据表';
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='设备指标数据表'
+PARTITION BY RANGE COLUMNS(`create_time`) (
+  PARTITION `p_max` VALUES LESS THAN (MAXVALUE)
+);
+
+-- 过期分区归档表（device-metrics.retention.archive=true 时使用），不分区
+CREATE TABLE IF NOT EXISTS `device_metrics_archive` LIKE `device_metrics`;
+ALTER TABLE `device_metrics_archive` REMOVE PARTITIONING;
 
 -- 查看表结构
 -- DESC device_metrics;
@@ -23,3 +32,6 @@ CREATE TABLE IF NOT EXISTS `device_metrics` (
 -- 查看表注释
 -- SHOW CREATE TABLE device_metrics;
 
+-- 查看分区
+-- SELECT PARTITION_NAME, PARTITION_DESCRIPTION, TABLE_ROWS FROM information_schema.PARTITIONS
+--  WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'device_metrics';
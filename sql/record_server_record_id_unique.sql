@@ -0,0 +1,11 @@
+-- 治疗记录、MEP记录的服务器记录ID加唯一索引，上传接口依赖该索引做幂等插入（INSERT IGNORE）
+-- treatment_record 的 serverRecordId 保存在 message_id 列
+-- 执行前先确认没有重复数据，有重复时需先人工合并或删除：
+--   SELECT message_id, COUNT(*) FROM treatment_record WHERE message_id IS NOT NULL GROUP BY message_id HAVING COUNT(*) > 1;
+--   SELECT server_record_id, COUNT(*) FROM mep_record WHERE server_record_id IS NOT NULL GROUP BY server_record_id HAVING COUNT(*) > 1;
+
+ALTER TABLE `treatment_record`
+  ADD UNIQUE INDEX `uk_message_id` (`message_id`);
+
+ALTER TABLE `mep_record`
+  ADD UNIQUE INDEX `uk_server_record_id` (`server_record_id`);
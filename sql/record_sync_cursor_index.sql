@@ -0,0 +1,10 @@
+-- 记录增量同步索引
+-- 增量同步按 patient_identifier 过滤，按 (update_time, id) 水位分页，索引覆盖过滤和排序，查询开销只与变化的记录数有关
+-- update_time 为 DATETIME（秒精度，毫秒部分四舍五入），水位按秒比较；
+-- 只返回早于 (当前时间 - record-sync.safety-window-ms) 的记录，避免水位越过尚未提交的写入
+
+ALTER TABLE `treatment_record`
+  ADD INDEX `idx_patient_update` (`patient_identifier`, `update_time`, `id`);
+
+ALTER TABLE `mep_record`
+  ADD INDEX `idx_patient_update` (`patient_identifier`, `update_time`, `id`);
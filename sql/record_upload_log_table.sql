@@ -0,0 +1,15 @@
+-- 记录上传日志表
+-- 治疗记录上传可能追加到已存在的治疗记录上，此时上传的 serverRecordId 不会保存在 treatment_record 中；
+-- 每次上传先在此表登记 serverRecordId（INSERT IGNORE），登记失败即为重传，不再重复写入处方子记录
+
+CREATE TABLE IF NOT EXISTS `record_upload_log` (
+  `server_record_id` VARCHAR(64) NOT NULL COMMENT '服务器记录ID',
+  `record_type` VARCHAR(8) NOT NULL COMMENT '记录类型：TR/MEP',
+  `create_time` DATETIME NOT NULL COMMENT '首次上传时间',
+  PRIMARY KEY (`server_record_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='记录上传日志';
+
+-- 已入库的治疗记录补登记，避免上线后其重传被当作新上传
+INSERT IGNORE INTO `record_upload_log` (`server_record_id`, `record_type`, `create_time`)
+SELECT `message_id`, 'TR', `create_time` FROM `treatment_record`
+WHERE `message_id` IS NOT NULL AND `create_time` IS NOT NULL;
@@ -0,0 +1,52 @@
+package cc.mrbird.febs.common.domain;
+
+import cc.mrbird.febs.cos.entity.DeviceMetrics;
+import lombok.Data;
+
+import java.io.Serializable;
+
+/**
+ * 设备指标死信
+ *
+ * @author FanK
+ */
+@Data
+public class DeviceMetricsDeadLetter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 死信ID
+     */
+    private String id;
+
+    /**
+     * 入库失败的指标数据
+     */
+    private DeviceMetrics metrics;
+
+    /**
+     * 最近一次失败原因
+     */
+    private String reason;
+
+    /**
+     * 已失败次数
+     */
+    private int attempts;
+
+    /**
+     * 首次失败时间（毫秒时间戳）
+     */
+    private long firstFailureAt;
+
+    /**
+     * 最近一次失败时间（毫秒时间戳）
+     */
+    private long lastFailureAt;
+
+    /**
+     * 下次重试时间（毫秒时间戳），已搁置时为 0
+     */
+    private long nextRetryAt;
+}
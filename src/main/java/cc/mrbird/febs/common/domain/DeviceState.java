@@ -0,0 +1,64 @@
+package cc.mrbird.febs.common.domain;
+
+import lombok.Data;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * 设备运行状态快照
+ *
+ * @author FanK
+ */
+@Data
+public class DeviceState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 设备ID
+     */
+    private Long deviceId;
+
+    /**
+     * 设备编号
+     */
+    private Integer deviceNo;
+
+    /**
+     * 在线状态：online / offline
+     */
+    private String status;
+
+    /**
+     * 最后心跳时间
+     */
+    private Date lastHeartbeat;
+
+    /**
+     * 拍子使用次数
+     */
+    private Integer batTimes;
+
+    /**
+     * 电容使用次数
+     */
+    private Integer capTimes;
+
+    /**
+     * 治疗状态：1-刺激状态，0-非刺激状态
+     */
+    private Integer treatmentStatus;
+
+    public DeviceState copy() {
+        DeviceState copy = new DeviceState();
+        copy.setDeviceId(deviceId);
+        copy.setDeviceNo(deviceNo);
+        copy.setStatus(status);
+        copy.setLastHeartbeat(lastHeartbeat);
+        copy.setBatTimes(batTimes);
+        copy.setCapTimes(capTimes);
+        copy.setTreatmentStatus(treatmentStatus);
+        return copy;
+    }
+}
@@ -16,4 +16,50 @@ public class DeviceMqttProperties {
     private String topics;
     private String defaultTopic;
 
+    /**
+     * 入站消息分发配置（按设备分片的工作线程）
+     */
+    private Dispatch dispatch = new Dispatch();
+
+    /**
+     * 消息去重配置（进程内缓存 + Redis）
+     */
+    private Dedup dedup = new Dedup();
+
+    @Data
+    public static class Dispatch {
+        /**
+         * 工作通道数量，<=0 时退化为在 MQTT 回调线程上同步处理
+         */
+        private int lanes = 8;
+        /**
+         * 每个通道的队列容量
+         */
+        private int queueCapacity = 1000;
+        /**
+         * 队列已满时入队最长等待时间（毫秒），超时则丢弃并计数
+         */
+        private long offerTimeoutMs = 500;
+        /**
+         * 通道每次最多取出的消息数，同批消息的去重合并为一次 Redis 管道请求
+         */
+        private int drainMax = 64;
+    }
+
+    @Data
+    public static class Dedup {
+        /**
+         * 本地最多记录的 msgId 数量
+         */
+        private long localMaxSize = 100000;
+        /**
+         * 本地记录的最长保留时间（秒），应不小于调用方传入的去重 TTL
+         */
+        private long localMaxTtlSeconds = 600;
+        /**
+         * 去重有效期（秒）
+         */
+        private long ttlSeconds = 600;
+    }
+
 }
@@ -23,26 +23,31 @@ public class MqttAuditLogger {
     private static final Logger AUDIT_LOGGER = LoggerFactory.getLogger("MQTT_AUDIT");
     private final ObjectMapper objectMapper;
 
-    public void logInbound(Message<?> message) {
-        String topic = String.valueOf(message.getHeaders().getOrDefault(MqttHeaders.RECEIVED_TOPIC, ""));
+    /**
+     * 入站审计：复用已解析的信封，不再重复解析 payload
+     */
+    public void logInbound(Message<?> message, MqttInboundEnvelope envelope) {
         int qos = (Integer) message.getHeaders().getOrDefault(MqttHeaders.RECEIVED_QOS, 0);
         boolean retained = (Boolean) message.getHeaders().getOrDefault("mqtt_receivedRetained", false);
-        String payload = String.valueOf(message.getPayload());
-        log("in", "device", topic, qos, retained, payload, null, null);
+        log("in", "device", envelope.getTopic(), envelope.getParts(), qos, retained,
+                envelope.getPayload(), envelope.getMsgId(), envelope.getSize(), null, null);
     }
 
     public void logOutbound(String topic, int qos, boolean retained, String payload, String result, String error) {
-        log("out", "server", topic, qos, retained, payload, result, error);
+        int size = payload == null ? 0 : payload.getBytes(StandardCharsets.UTF_8).length;
+        log("out", "server", topic, MqttTopics.parse(topic), qos, retained, payload, extractMsgId(payload), size, result, error);
     }
 
-    public void logInboundUnknown(String topic, String payload) {
+    public void logInboundUnknown(MqttInboundEnvelope envelope) {
         // 记录一个额外的 unknown 标记行，便于快速筛选未识别类型
-        MqttTopics.TopicParts parts = MqttTopics.parse(topic);
+        String topic = envelope.getTopic();
+        String payload = envelope.getPayload();
+        MqttTopics.TopicParts parts = envelope.getParts();
         String deviceType = parts == null ? "" : parts.getDeviceType();
         String deviceId = parts == null ? "" : parts.getDeviceId();
         String msgType = parts == null ? "" : parts.getMsgType();
-        String msgId = extractMsgId(payload);
-        int size = payload == null ? 0 : payload.getBytes(StandardCharsets.UTF_8).length;
+        String msgId = envelope.getMsgId();
+        int size = envelope.getSize();
 
         ObjectNode node = objectMapper.createObjectNode();
         node.put("ts", OffsetDateTime.now().format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
@@ -63,14 +68,11 @@ public class MqttAuditLogger {
         MDC.remove("direction");
     }
 
-    private void log(String dir, String client, String topic, int qos, boolean retained,
-                     String payload, String result, String error) {
-        MqttTopics.TopicParts parts = MqttTopics.parse(topic);
+    private void log(String dir, String client, String topic, MqttTopics.TopicParts parts, int qos, boolean retained,
+                     String payload, String msgId, int size, String result, String error) {
         String deviceType = parts == null ? "" : parts.getDeviceType();
         String deviceId = parts == null ? "" : parts.getDeviceId();
         String msgType = parts == null ? "" : parts.getMsgType();
-        String msgId = extractMsgId(payload);
-        int size = payload == null ? 0 : payload.getBytes(StandardCharsets.UTF_8).length;
 
         ObjectNode node = objectMapper.createObjectNode();
         node.put("ts", OffsetDateTime.now().format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
@@ -0,0 +1,214 @@
+package cc.mrbird.febs.common.mqtt;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MQTT 入站消息分发器
+ * 按 deviceId 哈希分片到固定数量的工作通道：同一设备的消息始终落在同一通道、按到达顺序串行处理，
+ * 不同设备之间并行处理。每个通道使用有界队列，队列满时在限定时间内阻塞回调线程形成背压，
+ * 超时仍无法入队则丢弃并计数，避免单个慢处理器拖住整个订阅。
+ * 通道每次取出一批消息，批内消息的 msgId 去重通过 {@link MsgDedupService#checkAndMarkAll} 一次管道请求完成，重复消息不再执行。
+ */
+@Slf4j
+@Component
+public class MqttInboundDispatcher {
+
+    private final Lane[] lanes;
+    private final long offerTimeoutMs;
+    private final MsgDedupService msgDedupService;
+    private final Duration dedupTtl;
+    private final int drainMax;
+    private final Counter submitted;
+    private final Counter rejected;
+    private final Counter blocked;
+    private final Counter duplicate;
+
+    public MqttInboundDispatcher(DeviceMqttProperties prop, MsgDedupService msgDedupService, MeterRegistry meterRegistry) {
+        DeviceMqttProperties.Dispatch cfg = prop.getDispatch();
+        int laneCount = Math.max(cfg.getLanes(), 0);
+        int capacity = Math.max(cfg.getQueueCapacity(), 1);
+        this.offerTimeoutMs = Math.max(cfg.getOfferTimeoutMs(), 0);
+        this.msgDedupService = msgDedupService;
+        this.dedupTtl = Duration.ofSeconds(Math.max(prop.getDedup().getTtlSeconds(), 1));
+        this.drainMax = Math.max(cfg.getDrainMax(), 1);
+        this.submitted = meterRegistry.counter("mqtt.inbound.dispatch.submitted");
+        this.rejected = meterRegistry.counter("mqtt.inbound.dispatch.rejected");
+        this.blocked = meterRegistry.counter("mqtt.inbound.dispatch.blocked");
+        this.duplicate = meterRegistry.counter("mqtt.inbound.dispatch.duplicate");
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            Lane lane = new Lane(this, i, capacity);
+            Gauge.builder("mqtt.inbound.lane.depth", lane.queue, BlockingQueue::size)
+                    .tag("lane", String.valueOf(i))
+                    .description("MQTT 入站通道排队消息数")
+                    .register(meterRegistry);
+            lanes[i] = lane;
+            lane.start();
+        }
+        log.info("MQTT 入站分发器已启动: lanes={}, queueCapacity={}, offerTimeoutMs={}, drainMax={}",
+                laneCount, capacity, offerTimeoutMs, drainMax);
+    }
+
+    /**
+     * 提交消息处理任务
+     *
+     * @param deviceId 设备编号，用于分片保证同设备有序
+     * @param msgId    消息ID，用于去重，为空时不去重
+     * @param task     处理任务
+     * @return 是否已受理（同步执行或成功入队）
+     */
+    public boolean dispatch(String deviceId, String msgId, Runnable task) {
+        Task t = new Task(msgId, task);
+        if (lanes.length == 0) {
+            runBatch(Collections.singletonList(t));
+            return true;
+        }
+        Lane lane = lanes[laneIndex(deviceId)];
+        submitted.increment();
+        if (lane.queue.offer(t)) {
+            return true;
+        }
+        // 队列已满：短暂阻塞回调线程形成背压
+        blocked.increment();
+        try {
+            if (lane.queue.offer(t, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.increment();
+        log.error("MQTT 入站通道已满，消息被丢弃: lane={}, deviceId={}, depth={}",
+                lane.index, deviceId, lane.queue.size());
+        return false;
+    }
+
+    /**
+     * 批量去重后按顺序执行未重复的任务；去重失败（如 Redis 不可用）时本批带 msgId 的任务不执行
+     */
+    private void runBatch(List<Task> batch) {
+        List<String> msgIds = new ArrayList<>(batch.size());
+        for (Task t : batch) {
+            msgIds.add(t.msgId);
+        }
+        BitSet fresh;
+        try {
+            fresh = msgDedupService.checkAndMarkAll(msgIds, dedupTtl);
+        } catch (Exception e) {
+            log.error("MQTT 入站消息去重失败，本批带 msgId 的消息被丢弃: 数量={}", batch.size(), e);
+            for (Task t : batch) {
+                if (t.msgId == null || t.msgId.isEmpty()) {
+                    runQuietly(t.runnable);
+                } else {
+                    rejected.increment();
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (fresh.get(i)) {
+                runQuietly(batch.get(i).runnable);
+            } else {
+                duplicate.increment();
+                log.debug("MQTT 入站消息已处理，跳过: msgId={}", batch.get(i).msgId);
+            }
+        }
+    }
+
+    private int laneIndex(String deviceId) {
+        int h = deviceId == null ? 0 : deviceId.hashCode();
+        // 打散低位，避免设备编号规律导致分片不均
+        h ^= (h >>> 16);
+        return Math.floorMod(h, lanes.length);
+    }
+
+    private static void runQuietly(Runnable task) {
+        try {
+            task.run();
+        } catch (Throwable t) {
+            log.error("MQTT 入站消息处理异常", t);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.running = false;
+            lane.thread.interrupt();
+        }
+        for (Lane lane : lanes) {
+            try {
+                lane.thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static final class Task {
+        private final String msgId;
+        private final Runnable runnable;
+
+        Task(String msgId, Runnable runnable) {
+            this.msgId = msgId;
+            this.runnable = runnable;
+        }
+    }
+
+    private static final class Lane implements Runnable {
+        private final MqttInboundDispatcher dispatcher;
+        private final int index;
+        private final BlockingQueue<Task> queue;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        Lane(MqttInboundDispatcher dispatcher, int index, int capacity) {
+            this.dispatcher = dispatcher;
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this, "mqtt-inbound-lane-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            List<Task> batch = new ArrayList<>(dispatcher.drainMax);
+            while (running || !queue.isEmpty()) {
+                Task task;
+                try {
+                    task = running ? queue.take() : queue.poll();
+                } catch (InterruptedException e) {
+                    // 停机：继续排空剩余消息后退出
+                    continue;
+                }
+                if (task == null) {
+                    break;
+                }
+                // 取出已排队的消息一起去重，同设备的消息仍按入队顺序执行
+                batch.add(task);
+                queue.drainTo(batch, dispatcher.drainMax - 1);
+                dispatcher.runBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+}
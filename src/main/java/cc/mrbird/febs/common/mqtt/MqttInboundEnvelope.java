@@ -0,0 +1,113 @@
+package cc.mrbird.febs.common.mqtt;
+
+import cn.hutool.core.util.StrUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MQTT 入站消息信封
+ * 每条入站消息只解析一次 JSON，解析结果（主题分段、msgId、ts、data 节点、原始字节）
+ * 由审计日志与各业务处理器共享，避免重复 readTree / writeValueAsString。
+ * 创建后不可变，可安全地跨线程传递给分发通道。
+ */
+@Getter
+public final class MqttInboundEnvelope {
+
+    private final String topic;
+    private final MqttTopics.TopicParts parts;
+    private final String payload;
+    private final byte[] raw;
+    /**
+     * 整体 JSON 根节点，解析失败或非对象时为 null
+     */
+    private final JsonNode root;
+    /**
+     * data 节点，不存在时为 null
+     */
+    private final JsonNode data;
+    private final String msgId;
+    /**
+     * 设备上报的消息时间，未上报或为空时为 null（不再逐条填充服务端时间）
+     */
+    private final String ts;
+    /**
+     * JSON 解析失败的原因，成功时为 null
+     */
+    private final String parseError;
+
+    private MqttInboundEnvelope(String topic, MqttTopics.TopicParts parts, String payload, byte[] raw,
+                                JsonNode root, String parseError) {
+        this.topic = topic;
+        this.parts = parts;
+        this.payload = payload;
+        this.raw = raw;
+        this.root = root;
+        this.parseError = parseError;
+        this.data = root == null ? null : root.get("data");
+        this.msgId = extractMsgId(root, data);
+        this.ts = extractTs(root);
+    }
+
+    public static MqttInboundEnvelope of(String topic, Object payloadObj, ObjectMapper objectMapper) {
+        String payload;
+        byte[] raw;
+        if (payloadObj instanceof byte[]) {
+            raw = (byte[]) payloadObj;
+            payload = new String(raw, StandardCharsets.UTF_8);
+        } else {
+            payload = payloadObj == null ? null : payloadObj.toString();
+            raw = payload == null ? new byte[0] : payload.getBytes(StandardCharsets.UTF_8);
+        }
+        JsonNode root = null;
+        String parseError = null;
+        if (StrUtil.isNotBlank(payload)) {
+            try {
+                JsonNode node = objectMapper.readTree(raw);
+                if (node != null && node.isObject()) {
+                    root = node;
+                } else {
+                    parseError = "payload is not a JSON object";
+                }
+            } catch (Exception e) {
+                parseError = e.getMessage();
+            }
+        }
+        return new MqttInboundEnvelope(topic, MqttTopics.parse(topic), payload, raw, root, parseError);
+    }
+
+    public boolean isParsed() {
+        return root != null;
+    }
+
+    public int getSize() {
+        return raw.length;
+    }
+
+    /**
+     * 返回原始字节，调用方不得修改
+     */
+    public byte[] getRaw() {
+        return raw;
+    }
+
+    private static String extractMsgId(JsonNode root, JsonNode data) {
+        if (root == null) return null;
+        JsonNode v = root.get("msgId");
+        if (v == null || v.isNull()) {
+            v = data == null ? null : data.get("msgId");
+        }
+        return v == null || v.isNull() ? null : v.asText();
+    }
+
+    private static String extractTs(JsonNode root) {
+        JsonNode tsNode = root == null ? null : root.get("ts");
+        if (tsNode == null || tsNode.isNull()) {
+            return null;
+        }
+        String ts = tsNode.asText();
+        return StrUtil.isBlank(ts) ? null : ts;
+    }
+}
@@ -1,28 +1,114 @@
 package cc.mrbird.febs.common.mqtt;
 
-import lombok.RequiredArgsConstructor;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 基于 Redis 的幂等去重：mqtt:msg:{msgId}
+ * 前置一层进程内有界缓存记录近期已见过的 msgId：本地命中即可确定为重复，无需访问 Redis；
+ * 本地未命中时无法排除其他节点已处理过，仍由 Redis SETNX 做跨节点确认。
+ * 由 {@link MqttInboundDispatcher} 的通道按批调用，一批消息只产生一次 Redis 管道往返。
  */
 @Service
-@RequiredArgsConstructor
 public class MsgDedupService {
 
+    private static final String KEY_PREFIX = "mqtt:msg:";
+    private static final byte[] MARK = "1".getBytes(StandardCharsets.UTF_8);
+
     private final StringRedisTemplate stringRedisTemplate;
+    /**
+     * msgId -> 本地记录的过期时间戳（毫秒）
+     */
+    private final Cache<String, Long> recentIds;
+    private final Counter localHit;
+    private final Counter localMiss;
+    private final Counter redisDuplicate;
 
-    public boolean checkAndMark(String msgId, Duration ttl) {
-        if (msgId == null || msgId.isEmpty()) {
-            return true; // 无 msgId，放行
-        }
-        String key = "mqtt:msg:" + msgId;
-        Boolean ok = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", ttl);
-        return Boolean.TRUE.equals(ok);
+    public MsgDedupService(StringRedisTemplate stringRedisTemplate, DeviceMqttProperties prop,
+                           MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        DeviceMqttProperties.Dedup cfg = prop.getDedup();
+        this.recentIds = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(cfg.getLocalMaxSize(), 1))
+                .expireAfterWrite(Math.max(cfg.getLocalMaxTtlSeconds(), 1), TimeUnit.SECONDS)
+                .concurrencyLevel(Math.max(prop.getDispatch().getLanes(), 1))
+                .build();
+        this.localHit = meterRegistry.counter("mqtt.dedup.local.hit");
+        this.localMiss = meterRegistry.counter("mqtt.dedup.local.miss");
+        this.redisDuplicate = meterRegistry.counter("mqtt.dedup.redis.duplicate");
     }
-}
 
+    /**
+     * 批量去重：本地未命中的 msgId 通过一次 Redis 管道批量执行 SET NX EX
+     *
+     * @param msgIds 消息ID，按顺序对应返回结果的下标；同批内重复出现的 msgId 仅首次视为新消息
+     * @param ttl    去重有效期
+     * @return 置位表示新消息（应处理），未置位表示重复；空 msgId 视为新消息
+     */
+    public BitSet checkAndMarkAll(Collection<String> msgIds, Duration ttl) {
+        BitSet fresh = new BitSet(msgIds.size());
+        if (msgIds.isEmpty()) {
+            return fresh;
+        }
+        long now = System.currentTimeMillis();
+        // 需要询问 Redis 的下标与 key
+        List<Integer> pendingIndex = new ArrayList<>();
+        List<String> pendingIds = new ArrayList<>();
+        List<byte[]> pendingKeys = new ArrayList<>();
+        int i = 0;
+        for (String msgId : msgIds) {
+            if (msgId == null || msgId.isEmpty()) {
+                fresh.set(i);
+            } else {
+                Long expireAt = recentIds.getIfPresent(msgId);
+                if (expireAt != null && expireAt > now) {
+                    localHit.increment();
+                } else {
+                    localMiss.increment();
+                    pendingIndex.add(i);
+                    pendingIds.add(msgId);
+                    pendingKeys.add((KEY_PREFIX + msgId).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            i++;
+        }
+        if (pendingKeys.isEmpty()) {
+            return fresh;
+        }
+
+        Expiration expiration = Expiration.from(ttl.toMillis(), TimeUnit.MILLISECONDS);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (byte[] key : pendingKeys) {
+                connection.set(key, MARK, expiration, RedisStringCommands.SetOption.SET_IF_ABSENT);
+            }
+            return null;
+        });
 
+        long expireAt = now + ttl.toMillis();
+        for (int k = 0; k < pendingIndex.size(); k++) {
+            Object r = k < results.size() ? results.get(k) : null;
+            if (Boolean.TRUE.equals(r) || "OK".equals(r)) {
+                fresh.set(pendingIndex.get(k));
+            } else {
+                redisDuplicate.increment();
+            }
+            recentIds.put(pendingIds.get(k), expireAt);
+        }
+        return fresh;
+    }
+}
@@ -1,19 +1,17 @@
 package cc.mrbird.febs.common.mqtt.handler;
 
-import cc.mrbird.febs.common.mqtt.MsgDedupService;
+import cc.mrbird.febs.common.mqtt.MqttInboundEnvelope;
 import cc.mrbird.febs.common.mqtt.MqttTopics;
+import cc.mrbird.febs.common.service.DeviceMetricsBuffer;
+import cc.mrbird.febs.cos.entity.DeviceMetrics;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.Duration;
+import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * 设备指标数据上报处理器
@@ -25,39 +23,26 @@ import java.util.Map;
 @RequiredArgsConstructor
 public class DeviceInfoUpHandler {
 
-    private final ObjectMapper objectMapper;
-    private final MsgDedupService msgDedupService;
-    private final StringRedisTemplate stringRedisTemplate;
+    private final DeviceMetricsBuffer deviceMetricsBuffer;
 
-    private static final String QUEUE_KEY = "mqtt:queue:device-metrics";
     private static final DateTimeFormatter DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
-    public void handle(String topic, String payload) {
-        MqttTopics.TopicParts parts = MqttTopics.parse(topic);
+    public void handle(MqttInboundEnvelope envelope) {
+        MqttTopics.TopicParts parts = envelope.getParts();
         if (parts == null) {
-            log.warn("MQTT device-info-up topic 解析失败: {}", topic);
+            log.warn("MQTT device-info-up topic 解析失败: {}", envelope.getTopic());
             return;
         }
-
-        JsonNode root;
-        try {
-            root = objectMapper.readTree(payload);
-        } catch (Exception e) {
-            log.warn("MQTT device-info-up 解析失败: {}", e.getMessage());
+        if (!envelope.isParsed()) {
+            log.warn("MQTT device-info-up 解析失败: {}", envelope.getParseError());
             return;
         }
 
-        // 消息去重检查
-        String msgId = getText(root, "msgId");
-        if (msgId != null && !msgId.isEmpty()) {
-            if (!msgDedupService.checkAndMark(msgId, Duration.ofMinutes(10))) {
-                log.debug("消息已处理，跳过: msgId={}", msgId);
-                return;
-            }
-        }
+        // msgId 去重已由 MqttInboundDispatcher 在通道内批量完成
+        String msgId = envelope.getMsgId();
 
         // 解析数据
-        JsonNode data = root.get("data");
+        JsonNode data = envelope.getData();
         if (data == null) {
             log.warn("MQTT device-info-up 缺少 data 节点");
             return;
@@ -69,26 +54,49 @@ public class DeviceInfoUpHandler {
         String pumpFlowRateStr = getText(data, "pumpFlowRate");
         String timestampStr = getText(data, "timestamp");
 
-        // 构建消息对象
-        Map<String, Object> message = new HashMap<>();
-        message.put("deviceType", parts.getDeviceType());
-        message.put("deviceId", parts.getDeviceId());
-        message.put("msgId", msgId);
-        message.put("coilTemperature", coilTempStr);
-        message.put("machineTemperature", machineTempStr);
-        message.put("pumpFlowRate", pumpFlowRateStr);
-        message.put("createTime", timestampStr != null ? timestampStr : LocalDateTime.now().format(DATETIME_FORMATTER));
-        message.put("serverTime", LocalDateTime.now().format(DATETIME_FORMATTER));
-
-        // 推入Redis队列
-        try {
-            String messageJson = objectMapper.writeValueAsString(message);
-            stringRedisTemplate.opsForList().leftPush(QUEUE_KEY, messageJson);
-            log.debug("设备指标数据已入队: deviceType={}, deviceId={}, msgId={}", 
+        // 构建指标记录
+        LocalDateTime now = LocalDateTime.now();
+        DeviceMetrics metrics = new DeviceMetrics();
+        metrics.setDeviceType(parts.getDeviceType());
+        metrics.setDeviceId(parts.getDeviceId());
+        metrics.setMsgId(msgId);
+        metrics.setCoilTemperature(parseDecimal(coilTempStr, "线圈温度"));
+        metrics.setMachineTemperature(parseDecimal(machineTempStr, "机温"));
+        metrics.setPumpFlowRate(parseDecimal(pumpFlowRateStr, "水泵流速"));
+        metrics.setCreateTime(parseTime(timestampStr, now));
+        metrics.setServerTime(now);
+
+        // 写入入库缓冲
+        if (deviceMetricsBuffer.offer(metrics)) {
+            log.debug("设备指标数据已入队: deviceType={}, deviceId={}, msgId={}",
+                    parts.getDeviceType(), parts.getDeviceId(), msgId);
+        } else {
+            log.error("设备指标数据入队失败: deviceType={}, deviceId={}, msgId={}",
                     parts.getDeviceType(), parts.getDeviceId(), msgId);
+        }
+    }
+
+    private BigDecimal parseDecimal(String value, String name) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return new BigDecimal(value);
+        } catch (NumberFormatException e) {
+            log.warn("{}格式错误: {}", name, value);
+            return null;
+        }
+    }
+
+    private LocalDateTime parseTime(String value, LocalDateTime defaultValue) {
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return LocalDateTime.parse(value, DATETIME_FORMATTER);
         } catch (Exception e) {
-            log.error("设备指标数据入队失败: deviceType={}, deviceId={}", 
-                    parts.getDeviceType(), parts.getDeviceId(), e);
+            log.warn("创建时间格式错误: {}", value);
+            return defaultValue;
         }
     }
 
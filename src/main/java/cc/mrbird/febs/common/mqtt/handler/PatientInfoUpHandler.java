@@ -1,6 +1,6 @@
 package cc.mrbird.febs.common.mqtt.handler;
 
-import cc.mrbird.febs.common.mqtt.MsgDedupService;
+import cc.mrbird.febs.common.mqtt.MqttInboundEnvelope;
 import cc.mrbird.febs.common.mqtt.MqttClientService;
 import cc.mrbird.febs.common.mqtt.MqttTopics;
 import cc.mrbird.febs.system.domain.Patient;
@@ -8,12 +8,10 @@ import cc.mrbird.febs.system.service.PatientService;
 import cc.mrbird.febs.system.service.PrescriptionService;
 import cc.mrbird.febs.system.service.ThresholdService;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
-import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -22,33 +20,23 @@ import java.util.Map;
 @RequiredArgsConstructor
 public class PatientInfoUpHandler {
 
-    private final ObjectMapper objectMapper;
-    private final MsgDedupService msgDedupService;
     private final PatientService patientService;
     private final ThresholdService thresholdService;
     private final PrescriptionService prescriptionService;
     private final MqttClientService mqttClientService;
 
-    public void handle(String topic, String payload) {
-        MqttTopics.TopicParts p = MqttTopics.parse(topic);
+    public void handle(MqttInboundEnvelope envelope) {
+        MqttTopics.TopicParts p = envelope.getParts();
         if (p == null) {
-            log.warn("MQTT patient-info-up topic 解析失败: {}", topic);
+            log.warn("MQTT patient-info-up topic 解析失败: {}", envelope.getTopic());
             return;
         }
-        JsonNode root;
-        try {
-            root = objectMapper.readTree(payload);
-        } catch (Exception e) {
-            log.warn("MQTT patient-info-up 解析失败: {}", e.getMessage());
-            return;
-        }
-        String msgId = getText(root, "msgId");
-        if (!msgDedupService.checkAndMark(msgId, Duration.ofMinutes(10))) {
-            log.debug("MQTT patient-info-up 消息已处理，跳过: msgId={}", msgId);
+        if (!envelope.isParsed()) {
+            log.warn("MQTT patient-info-up 解析失败: {}", envelope.getParseError());
             return;
         }
         String patientId = null;
-        JsonNode data = root.get("data");
+        JsonNode data = envelope.getData();
         if (data != null) {
             patientId = getText(data, "patientId");
         }
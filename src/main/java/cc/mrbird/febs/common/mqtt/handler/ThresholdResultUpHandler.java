@@ -1,18 +1,16 @@
 package cc.mrbird.febs.common.mqtt.handler;
 
-import cc.mrbird.febs.common.mqtt.MsgDedupService;
+import cc.mrbird.febs.common.mqtt.MqttInboundEnvelope;
 import cc.mrbird.febs.common.mqtt.MqttClientService;
 import cc.mrbird.febs.common.mqtt.MqttTopics;
 import cc.mrbird.febs.system.domain.Patient;
 import cc.mrbird.febs.system.service.PatientService;
 import cc.mrbird.febs.system.service.PrescriptionService;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
-import java.time.Duration;
 import java.util.Date;
 import java.util.Map;
 
@@ -21,30 +19,21 @@ import java.util.Map;
 @RequiredArgsConstructor
 public class ThresholdResultUpHandler {
 
-    private final ObjectMapper objectMapper;
-    private final MsgDedupService msgDedupService;
     private final PatientService patientService;
     private final PrescriptionService prescriptionService;
     private final MqttClientService mqttClientService;
 
-    public void handle(String topic, String payload) {
-        MqttTopics.TopicParts parts = MqttTopics.parse(topic);
+    public void handle(MqttInboundEnvelope envelope) {
+        MqttTopics.TopicParts parts = envelope.getParts();
         if (parts == null) {
-            log.warn("MQTT threshold-result-up topic 解析失败: {}", topic);
+            log.warn("MQTT threshold-result-up topic 解析失败: {}", envelope.getTopic());
             return;
         }
-        JsonNode root;
-        try {
-            root = objectMapper.readTree(payload);
-        } catch (Exception e) {
-            log.warn("MQTT threshold-result-up 解析失败: {}", e.getMessage());
-            return;
-        }
-        String msgId = getText(root, "msgId");
-        if (!msgDedupService.checkAndMark(msgId, Duration.ofMinutes(10))) {
+        if (!envelope.isParsed()) {
+            log.warn("MQTT threshold-result-up 解析失败: {}", envelope.getParseError());
             return;
         }
-        JsonNode data = root.get("data");
+        JsonNode data = envelope.getData();
         if (data == null) {
             log.warn("MQTT threshold-result-up 缺少 data 节点");
             return;
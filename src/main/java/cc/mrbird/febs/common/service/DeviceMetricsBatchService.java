@@ -2,189 +2,320 @@ package cc.mrbird.febs.common.service;
 
 import cc.mrbird.febs.cos.entity.DeviceMetrics;
 import cc.mrbird.febs.cos.service.IDeviceMetricsService;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.math.BigDecimal;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 设备指标数据批量处理服务
+ * 自适应刷写：积压达到行数阈值、估算字节阈值或最早一条数据等待超过最大延迟时刷写；
+ * 根据实际入库耗时与积压量动态调整批次大小；积压超过水位线时并行多个刷写任务。
+ * 缓冲为空时仅做轻量的积压检查，不再每次阻塞等待。
  *
  * @author FanK
  */
 @Slf4j
 @Service
-@RequiredArgsConstructor
 public class DeviceMetricsBatchService {
 
-    private final StringRedisTemplate stringRedisTemplate;
+    private final DeviceMetricsBuffer deviceMetricsBuffer;
     private final IDeviceMetricsService deviceMetricsService;
-    private final ObjectMapper objectMapper;
-
-    private static final String QUEUE_KEY = "mqtt:queue:device-metrics";
-    private static final String ERROR_QUEUE_KEY = "mqtt:queue:device-metrics:error";
-    private static final DateTimeFormatter DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private final DeviceMetricsDeadLetterService deviceMetricsDeadLetterService;
+    private final DeviceMetricsRollupService deviceMetricsRollupService;
+    private final MeterRegistry meterRegistry;
 
+    /**
+     * 初始批次大小
+     */
     @Value("${device-metrics.batch.size:500}")
-    private int batchSize;
+    private int initialBatchSize;
+
+    @Value("${device-metrics.batch.min-size:100}")
+    private int minBatchSize;
+
+    @Value("${device-metrics.batch.max-size:5000}")
+    private int maxBatchSize;
+
+    /**
+     * 积压估算字节数达到该值即刷写
+     */
+    @Value("${device-metrics.batch.max-bytes:1048576}")
+    private long maxBatchBytes;
 
+    /**
+     * 最早一条数据的最大等待时间（毫秒）
+     */
     @Value("${device-metrics.batch.interval:1000}")
-    private long batchInterval;
+    private long maxLatencyMs;
 
     /**
-     * 定时批量处理设备指标数据
-     * 每1秒执行一次，批量拉取并写入数据库
+     * 单批入库目标耗时（毫秒），超过则缩小批次
      */
-    @Scheduled(fixedDelayString = "${device-metrics.batch.interval:1000}")
-    public void processBatch() {
-        try {
-            List<DeviceMetrics> metricsList = new ArrayList<>();
-            int processedCount = 0;
-
-            // 批量从Redis队列拉取数据
-            for (int i = 0; i < batchSize; i++) {
-                String messageJson = stringRedisTemplate.opsForList().rightPop(QUEUE_KEY, 1, TimeUnit.SECONDS);
-                if (messageJson == null || messageJson.isEmpty()) {
-                    break;
-                }
+    @Value("${device-metrics.batch.target-latency-ms:200}")
+    private long targetLatencyMs;
 
-                try {
-                    DeviceMetrics metrics = parseMessage(messageJson);
-                    if (metrics != null) {
-                        metricsList.add(metrics);
-                        processedCount++;
-                    } else {
-                        // 解析失败，记录到错误队列
-                        stringRedisTemplate.opsForList().leftPush(ERROR_QUEUE_KEY, messageJson);
-                    }
-                } catch (Exception e) {
-                    log.warn("解析设备指标数据失败: {}", messageJson, e);
-                    // 解析失败，记录到错误队列
-                    stringRedisTemplate.opsForList().leftPush(ERROR_QUEUE_KEY, messageJson);
-                }
-            }
+    /**
+     * 空闲时检查积压的间隔（毫秒）
+     */
+    @Value("${device-metrics.batch.idle-poll-ms:100}")
+    private long idlePollMs;
 
-            // 批量写入数据库
-            if (!metricsList.isEmpty()) {
-                try {
-                    deviceMetricsService.batchInsert(metricsList);
-                    log.debug("批量插入设备指标数据成功: 数量={}", metricsList.size());
-                } catch (Exception e) {
-                    log.error("批量插入设备指标数据失败: 数量={}", metricsList.size(), e);
-                    // 写入失败，重新入队
-                    for (DeviceMetrics metrics : metricsList) {
-                        try {
-                            String messageJson = objectMapper.writeValueAsString(metrics);
-                            stringRedisTemplate.opsForList().leftPush(QUEUE_KEY, messageJson);
-                        } catch (Exception ex) {
-                            log.error("重新入队失败", ex);
-                        }
-                    }
+    /**
+     * 并行刷写任务上限
+     */
+    @Value("${device-metrics.batch.workers:4}")
+    private int maxWorkers;
+
+    /**
+     * 积压超过该值时启用并行刷写
+     */
+    @Value("${device-metrics.batch.backlog-watermark:5000}")
+    private long backlogWatermark;
+
+    private final AtomicInteger batchSize = new AtomicInteger();
+    /**
+     * 单行平均估算字节数（按已入库批次滑动平均）
+     */
+    private volatile double avgRowBytes = 200;
+    private volatile boolean running;
+    private Thread coordinator;
+    private ExecutorService flushPool;
+    private Timer insertTimer;
+    private Counter insertedRows;
+    private Counter failedRows;
+
+    public DeviceMetricsBatchService(DeviceMetricsBuffer deviceMetricsBuffer,
+                                     IDeviceMetricsService deviceMetricsService,
+                                     DeviceMetricsDeadLetterService deviceMetricsDeadLetterService,
+                                     DeviceMetricsRollupService deviceMetricsRollupService,
+                                     MeterRegistry meterRegistry) {
+        this.deviceMetricsBuffer = deviceMetricsBuffer;
+        this.deviceMetricsService = deviceMetricsService;
+        this.deviceMetricsDeadLetterService = deviceMetricsDeadLetterService;
+        this.deviceMetricsRollupService = deviceMetricsRollupService;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void start() {
+        minBatchSize = Math.max(minBatchSize, 1);
+        maxBatchSize = Math.max(maxBatchSize, minBatchSize);
+        maxWorkers = Math.max(maxWorkers, 1);
+        batchSize.set(Math.min(Math.max(initialBatchSize, minBatchSize), maxBatchSize));
+
+        insertTimer = meterRegistry.timer("device.metrics.batch.insert");
+        insertedRows = meterRegistry.counter("device.metrics.batch.rows.inserted");
+        failedRows = meterRegistry.counter("device.metrics.batch.rows.failed");
+        Gauge.builder("device.metrics.batch.size", batchSize, AtomicInteger::get).register(meterRegistry);
+
+        // 协调线程本身也执行一个刷写任务，额外线程数为 maxWorkers - 1
+        flushPool = new ThreadPoolExecutor(Math.max(maxWorkers - 1, 1), Math.max(maxWorkers - 1, 1),
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "device-metrics-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        running = true;
+        coordinator = new Thread(this::coordinate, "device-metrics-flusher");
+        coordinator.setDaemon(true);
+        coordinator.start();
+    }
+
+    private void coordinate() {
+        long firstPendingAt = 0;
+        while (running) {
+            try {
+                long depth = deviceMetricsBuffer.size();
+                long now = System.currentTimeMillis();
+                if (depth <= 0) {
+                    firstPendingAt = 0;
+                    sleep(idlePollMs);
+                    continue;
+                }
+                if (firstPendingAt == 0) {
+                    firstPendingAt = now;
+                }
+                int size = batchSize.get();
+                long waited = now - firstPendingAt;
+                boolean due = depth >= size
+                        || depth * avgRowBytes >= maxBatchBytes
+                        || waited >= maxLatencyMs;
+                if (!due) {
+                    sleep(Math.min(idlePollMs, maxLatencyMs - waited));
+                    continue;
+                }
+                if (flushRound(depth, size) == 0) {
+                    // 积压数只是近似值（如 Stream 中属于其他消费者的数据），本轮未取到数据时退避，避免空转
+                    firstPendingAt = 0;
+                    sleep(idlePollMs);
+                    continue;
                 }
+                // 剩余数据至少已等待到本轮开始
+                firstPendingAt = now;
+            } catch (Exception e) {
+                log.error("批量处理设备指标数据异常", e);
+                sleep(idlePollMs);
             }
+        }
+    }
 
-            // 记录处理统计
-            if (processedCount > 0) {
-                log.debug("设备指标数据处理完成: 处理数量={}", processedCount);
-            }
+    /**
+     * 执行一轮刷写：积压超过水位线时按积压量并行多个批次
+     *
+     * @return 本轮取出的条数
+     */
+    private int flushRound(long depth, int size) throws Exception {
+        int workers = 1;
+        if (depth > backlogWatermark) {
+            workers = (int) Math.min(maxWorkers, (depth + size - 1) / size);
+        }
+        List<Future<Integer>> futures = new ArrayList<>(workers - 1);
+        for (int i = 1; i < workers; i++) {
+            futures.add(flushPool.submit(() -> flushOnce(size)));
+        }
+        int polled = flushOnce(size);
+        for (Future<Integer> f : futures) {
+            polled += f.get();
+        }
+        return polled;
+    }
+
+    private int flushOnce(int size) {
+        DeviceMetricsBuffer.Batch batch = deviceMetricsBuffer.poll(size);
+        if (!batch.isEmpty()) {
+            flush(batch);
+        }
+        return batch.size();
+    }
 
+    private boolean flush(DeviceMetricsBuffer.Batch batch) {
+        long start = System.nanoTime();
+        // 只有入库本身失败才转入死信；入库成功后的步骤失败不能让已入库的数据再次写入
+        try {
+            deviceMetricsService.batchInsert(batch.getItems());
+        } catch (Exception e) {
+            log.error("批量插入设备指标数据失败: 数量={}", batch.size(), e);
+            failedRows.increment(batch.size());
+            // 写入失败时缩小批次；数据转入死信队列按退避策略重试，不再回到实时队列造成热循环
+            batchSize.updateAndGet(s -> Math.max(minBatchSize, s / 2));
+            try {
+                deviceMetricsDeadLetterService.deadLetter(batch.getItems(), e);
+                deviceMetricsBuffer.ack(batch);
+            } catch (Exception ex) {
+                log.error("设备指标数据转入死信队列失败，交还缓冲稍后重试: 数量={}", batch.size(), ex);
+                deviceMetricsBuffer.nack(batch);
+            }
+            return false;
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        insertTimer.record(elapsedMs, TimeUnit.MILLISECONDS);
+        insertedRows.increment(batch.size());
+        try {
+            deviceMetricsBuffer.ack(batch);
+        } catch (Exception e) {
+            // 不交还缓冲也不转死信：未确认的消息由 Stream 闲置认领重新投递后再次确认
+            log.error("设备指标数据已入库但确认失败: 数量={}", batch.size(), e);
+        }
+        try {
+            adapt(batch, elapsedMs);
+        } catch (Exception e) {
+            log.warn("调整设备指标批次大小失败", e);
+        }
+        try {
+            deviceMetricsRollupService.accumulate(batch.getItems());
         } catch (Exception e) {
-            log.error("批量处理设备指标数据异常", e);
+            log.error("设备指标汇总更新失败: 数量={}", batch.size(), e);
         }
+        log.debug("批量插入设备指标数据成功: 数量={}, 耗时={}ms", batch.size(), elapsedMs);
+        return true;
     }
 
     /**
-     * 解析消息JSON为DeviceMetrics对象
+     * 根据入库耗时与积压量调整批次大小：耗时超过目标则缩小，耗时富余且仍有积压则放大
      */
-    private DeviceMetrics parseMessage(String messageJson) {
-        try {
-            JsonNode root = objectMapper.readTree(messageJson);
-
-            DeviceMetrics metrics = new DeviceMetrics();
-            metrics.setDeviceType(getText(root, "deviceType"));
-            metrics.setDeviceId(getText(root, "deviceId"));
-            metrics.setMsgId(getText(root, "msgId"));
-
-            // 解析温度数据
-            String coilTempStr = getText(root, "coilTemperature");
-            if (coilTempStr != null && !coilTempStr.isEmpty()) {
-                try {
-                    metrics.setCoilTemperature(new BigDecimal(coilTempStr));
-                } catch (NumberFormatException e) {
-                    log.warn("线圈温度格式错误: {}", coilTempStr);
-                }
-            }
+    private void adapt(DeviceMetricsBuffer.Batch batch, long elapsedMs) {
+        long bytes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            DeviceMetrics m = batch.getItems().get(i);
+            bytes += 96 + len(m.getDeviceType()) + len(m.getDeviceId()) + len(m.getMsgId());
+        }
+        avgRowBytes = avgRowBytes * 0.8 + ((double) bytes / batch.size()) * 0.2;
 
-            String machineTempStr = getText(root, "machineTemperature");
-            if (machineTempStr != null && !machineTempStr.isEmpty()) {
-                try {
-                    metrics.setMachineTemperature(new BigDecimal(machineTempStr));
-                } catch (NumberFormatException e) {
-                    log.warn("机温格式错误: {}", machineTempStr);
-                }
-            }
+        int full = batch.size();
+        if (elapsedMs > targetLatencyMs) {
+            batchSize.updateAndGet(s -> Math.max(minBatchSize, (int) (s * 0.75)));
+        } else if (full >= batchSize.get() && deviceMetricsBuffer.size() > 0) {
+            batchSize.updateAndGet(s -> Math.min(maxBatchSize, (int) (s * 1.25) + 1));
+        }
+    }
 
-            // 解析流速数据
-            String pumpFlowRateStr = getText(root, "pumpFlowRate");
-            if (pumpFlowRateStr != null && !pumpFlowRateStr.isEmpty()) {
-                try {
-                    metrics.setPumpFlowRate(new BigDecimal(pumpFlowRateStr));
-                } catch (NumberFormatException e) {
-                    log.warn("水泵流速格式错误: {}", pumpFlowRateStr);
-                }
-            }
+    private static int len(String s) {
+        return s == null ? 0 : s.length();
+    }
 
-            // 解析时间
-            String createTimeStr = getText(root, "createTime");
-            if (createTimeStr != null && !createTimeStr.isEmpty()) {
-                try {
-                    metrics.setCreateTime(LocalDateTime.parse(createTimeStr, DATETIME_FORMATTER));
-                } catch (Exception e) {
-                    log.warn("创建时间格式错误: {}", createTimeStr);
-                    metrics.setCreateTime(LocalDateTime.now());
-                }
-            } else {
-                metrics.setCreateTime(LocalDateTime.now());
-            }
+    private static void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            String serverTimeStr = getText(root, "serverTime");
-            if (serverTimeStr != null && !serverTimeStr.isEmpty()) {
-                try {
-                    metrics.setServerTime(LocalDateTime.parse(serverTimeStr, DATETIME_FORMATTER));
-                } catch (Exception e) {
-                    log.warn("服务器时间格式错误: {}", serverTimeStr);
-                    metrics.setServerTime(LocalDateTime.now());
-                }
+    /**
+     * 停机前停止刷写线程并排空缓冲，避免进程内缓冲中的数据丢失
+     */
+    @PreDestroy
+    public void drain() {
+        running = false;
+        if (coordinator != null) {
+            // 不中断协调线程，等待进行中的批次自然结束
+            try {
+                coordinator.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (flushPool != null) {
+            flushPool.shutdown();
+        }
+        if (deviceMetricsBuffer.isDurable()) {
+            return;
+        }
+        int total = 0;
+        int failures = 0;
+        while (failures < 3) {
+            DeviceMetricsBuffer.Batch batch = deviceMetricsBuffer.poll(maxBatchSize);
+            if (batch.isEmpty()) {
+                break;
+            }
+            // 失败的批次已转入死信队列，继续排空；连续多次失败时放弃
+            if (flush(batch)) {
+                total += batch.size();
+                failures = 0;
             } else {
-                metrics.setServerTime(LocalDateTime.now());
+                failures++;
             }
-
-            return metrics;
-        } catch (Exception e) {
-            log.error("解析消息失败: {}", messageJson, e);
-            return null;
         }
-    }
-
-    private String getText(JsonNode node, String field) {
-        if (node == null) return null;
-        JsonNode val = node.get(field);
-        if (val == null) return null;
-        if (val.isNull()) return null;
-        if (val.isTextual()) return val.asText();
-        return val.toString();
+        if (total > 0) {
+            log.info("停机前写入设备指标数据: 数量={}", total);
+        }
     }
 }
-
-
@@ -0,0 +1,91 @@
+package cc.mrbird.febs.common.service;
+
+import cc.mrbird.febs.cos.entity.DeviceMetrics;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 设备指标数据入库缓冲
+ * MQTT 上报处理器写入，DeviceMetricsBatchService 批量取出入库。
+ * 通过 device-metrics.buffer.type 选择实现：memory（进程内无锁环形队列，默认）
+ * 或 redis-stream（Redis Streams 消费组，支持宕机后恢复未确认数据）。
+ *
+ * @author FanK
+ */
+public interface DeviceMetricsBuffer {
+
+    /**
+     * 写入一条指标数据
+     *
+     * @param metrics 指标数据
+     * @return 缓冲已满或写入失败时返回 false
+     */
+    boolean offer(DeviceMetrics metrics);
+
+    /**
+     * 取出一批数据，无数据时返回空批次，不阻塞
+     *
+     * @param maxCount 最大条数
+     * @return 批次
+     */
+    Batch poll(int maxCount);
+
+    /**
+     * 批次入库成功后确认
+     */
+    void ack(Batch batch);
+
+    /**
+     * 批次入库失败，交还缓冲稍后重试
+     */
+    void nack(Batch batch);
+
+    /**
+     * 当前可由本节点读取的积压数量（近似值），不含已取出未确认及属于其他消费者的数据
+     */
+    long size();
+
+    /**
+     * 数据是否在进程外持久化（进程退出前无需排空）
+     */
+    default boolean isDurable() {
+        return false;
+    }
+
+    /**
+     * 一次取出的数据；receipts 为实现相关的确认凭据（如 Stream 消息ID），与 items 一一对应
+     */
+    final class Batch {
+
+        private static final Batch EMPTY = new Batch(Collections.emptyList(), Collections.emptyList());
+
+        private final List<DeviceMetrics> items;
+        private final List<String> receipts;
+
+        public Batch(List<DeviceMetrics> items, List<String> receipts) {
+            this.items = items;
+            this.receipts = receipts;
+        }
+
+        public static Batch empty() {
+            return EMPTY;
+        }
+
+        public List<DeviceMetrics> getItems() {
+            return items;
+        }
+
+        public List<String> getReceipts() {
+            return receipts;
+        }
+
+        public boolean isEmpty() {
+            return items.isEmpty();
+        }
+
+        public int size() {
+            return items.size();
+        }
+    }
+}
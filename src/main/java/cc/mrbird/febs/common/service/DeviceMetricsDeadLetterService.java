@@ -0,0 +1,440 @@
+package cc.mrbird.febs.common.service;
+
+import cc.mrbird.febs.common.domain.DeviceMetricsDeadLetter;
+import cc.mrbird.febs.cos.entity.DeviceMetrics;
+import cc.mrbird.febs.cos.service.IDeviceMetricsService;
+import cn.hutool.core.util.IdUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 设备指标死信队列
+ * 入库失败的数据连同失败原因、失败次数、首次失败时间存入 Redis，按指数退避定时重试；
+ * 超过重试次数上限后搁置，等待人工排查后通过接口分批重放。
+ * 重试与重放每次只处理一小批，且在实时积压超过水位线时暂停，避免挤占实时入库。
+ * 重试前将死信从重试队列原子移入处理中队列（分值为租约到期时间），处理完成后移出；
+ * 节点在处理中宕机时，租约到期的死信由定时任务放回重试队列，不会丢失。
+ *
+ * @author FanK
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DeviceMetricsDeadLetterService {
+
+    public static final String QUEUE_RETRY = "retry";
+    public static final String QUEUE_PARKED = "parked";
+    public static final String QUEUE_INFLIGHT = "inflight";
+
+    private static final String ENTRIES_KEY = "mqtt:dlq:device-metrics:entries";
+    private static final String RETRY_KEY = "mqtt:dlq:device-metrics:retry";
+    private static final String PARKED_KEY = "mqtt:dlq:device-metrics:parked";
+    private static final String INFLIGHT_KEY = "mqtt:dlq:device-metrics:inflight";
+    /**
+     * 入库成功后移除死信的最多尝试次数
+     */
+    private static final int REMOVE_ATTEMPTS = 3;
+
+    /**
+     * 认领：从重试队列移入处理中队列，分值为租约到期时间，返回认领成功的ID
+     */
+    @SuppressWarnings("unchecked")
+    private static final RedisScript<List<String>> CLAIM_SCRIPT = new DefaultRedisScript<>(
+            "local claimed = {} " +
+            "for i = 2, #ARGV do " +
+            "  if redis.call('ZREM', KEYS[1], ARGV[i]) == 1 then " +
+            "    redis.call('ZADD', KEYS[2], ARGV[1], ARGV[i]) " +
+            "    claimed[#claimed + 1] = ARGV[i] " +
+            "  end " +
+            "end " +
+            "return claimed", (Class<List<String>>) (Class<?>) List.class);
+
+    /**
+     * 回收：租约到期的处理中死信放回重试队列立即重试
+     */
+    @SuppressWarnings("unchecked")
+    private static final RedisScript<List<String>> REAP_SCRIPT = new DefaultRedisScript<>(
+            "local ids = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2])) " +
+            "for _, id in ipairs(ids) do " +
+            "  redis.call('ZREM', KEYS[1], id) " +
+            "  redis.call('ZADD', KEYS[2], ARGV[1], id) " +
+            "end " +
+            "return ids", (Class<List<String>>) (Class<?>) List.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IDeviceMetricsService deviceMetricsService;
+    private final DeviceMetricsBuffer deviceMetricsBuffer;
+    private final DeviceMetricsRollupService deviceMetricsRollupService;
+    private final ObjectMapper objectMapper;
+
+    /**
+     * 最大失败次数，达到后搁置
+     */
+    @Value("${device-metrics.dlq.max-attempts:6}")
+    private int maxAttempts;
+
+    /**
+     * 首次重试退避时间（毫秒），之后每次翻倍
+     */
+    @Value("${device-metrics.dlq.backoff-base-ms:5000}")
+    private long backoffBaseMs;
+
+    @Value("${device-metrics.dlq.backoff-max-ms:1800000}")
+    private long backoffMaxMs;
+
+    /**
+     * 每次重试处理的最大条数
+     */
+    @Value("${device-metrics.dlq.chunk-size:200}")
+    private int chunkSize;
+
+    /**
+     * 认领后的处理租约（毫秒），超过后视为处理节点已宕机，放回重试队列
+     */
+    @Value("${device-metrics.dlq.lease-ms:300000}")
+    private long leaseMs;
+
+    /**
+     * 实时积压超过该值时暂停重试
+     */
+    @Value("${device-metrics.batch.backlog-watermark:5000}")
+    private long backlogWatermark;
+
+    /**
+     * 写入死信队列
+     *
+     * @param items 入库失败的指标数据
+     * @param cause 失败原因
+     */
+    public void deadLetter(List<DeviceMetrics> items, Throwable cause) {
+        long now = System.currentTimeMillis();
+        List<DeviceMetricsDeadLetter> letters = new ArrayList<>(items.size());
+        for (DeviceMetrics m : items) {
+            DeviceMetricsDeadLetter letter = new DeviceMetricsDeadLetter();
+            letter.setId(IdUtil.fastSimpleUUID());
+            letter.setMetrics(m);
+            letter.setFirstFailureAt(now);
+            letters.add(letter);
+        }
+        fail(letters, reasonOf(cause), now);
+        log.warn("设备指标数据已转入死信队列: 数量={}, 原因={}", items.size(), reasonOf(cause));
+    }
+
+    /**
+     * 定时重试到期的死信
+     */
+    @Scheduled(fixedDelayString = "${device-metrics.dlq.retry-interval:5000}")
+    public void retryDue() {
+        try {
+            if (deviceMetricsBuffer.size() > backlogWatermark) {
+                return;
+            }
+            Set<String> dueIds = stringRedisTemplate.opsForZSet()
+                    .rangeByScore(RETRY_KEY, 0, System.currentTimeMillis(), 0, chunkSize);
+            if (dueIds == null || dueIds.isEmpty()) {
+                return;
+            }
+            List<String> claimedIds = claim(new ArrayList<>(dueIds));
+            List<DeviceMetricsDeadLetter> claimed = load(claimedIds);
+            if (claimed.size() < claimedIds.size()) {
+                // 内容已不存在的ID直接移出处理中队列
+                List<String> missing = new ArrayList<>(claimedIds);
+                for (DeviceMetricsDeadLetter letter : claimed) {
+                    missing.remove(letter.getId());
+                }
+                stringRedisTemplate.opsForZSet().remove(INFLIGHT_KEY, missing.toArray());
+            }
+            if (!claimed.isEmpty()) {
+                retry(claimed);
+            }
+        } catch (Exception e) {
+            log.error("设备指标死信重试异常", e);
+        }
+    }
+
+    /**
+     * 回收租约到期的处理中死信（处理节点在重试过程中宕机）
+     */
+    @Scheduled(fixedDelayString = "${device-metrics.dlq.reap-interval:60000}")
+    public void reapExpiredLeases() {
+        try {
+            List<String> reaped = stringRedisTemplate.execute(REAP_SCRIPT, Arrays.asList(INFLIGHT_KEY, RETRY_KEY),
+                    String.valueOf(System.currentTimeMillis()), String.valueOf(chunkSize));
+            if (reaped != null && !reaped.isEmpty()) {
+                log.warn("设备指标死信处理租约到期，已放回重试队列: 数量={}", reaped.size());
+            }
+        } catch (Exception e) {
+            log.error("回收设备指标死信租约异常", e);
+        }
+    }
+
+    /**
+     * 将搁置的死信重新放入重试队列（重置失败次数），由定时重试分批入库
+     *
+     * @param limit 最多重放条数
+     * @return 实际重放条数
+     */
+    public long replay(int limit) {
+        long total = 0;
+        while (total < limit) {
+            int n = (int) Math.min(chunkSize, limit - total);
+            Set<String> ids = stringRedisTemplate.opsForZSet().range(PARKED_KEY, 0, n - 1);
+            if (ids == null || ids.isEmpty()) {
+                break;
+            }
+            List<DeviceMetricsDeadLetter> letters = load(new ArrayList<>(ids));
+            long now = System.currentTimeMillis();
+            Map<String, String> entries = new HashMap<>(letters.size() * 2);
+            for (DeviceMetricsDeadLetter letter : letters) {
+                letter.setAttempts(0);
+                letter.setNextRetryAt(now);
+                entries.put(letter.getId(), toJson(letter));
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (DeviceMetricsDeadLetter letter : letters) {
+                    byte[] id = bytes(letter.getId());
+                    connection.hSet(bytes(ENTRIES_KEY), id, bytes(entries.get(letter.getId())));
+                    connection.zAdd(bytes(RETRY_KEY), now, id);
+                }
+                for (String id : ids) {
+                    connection.zRem(bytes(PARKED_KEY), bytes(id));
+                }
+                return null;
+            });
+            total += ids.size();
+        }
+        if (total > 0) {
+            log.info("设备指标死信已重新排队: 数量={}", total);
+        }
+        return total;
+    }
+
+    /**
+     * 查看死信
+     *
+     * @param queue  retry、parked 或 inflight
+     * @param offset 起始位置
+     * @param limit  条数
+     * @return 死信列表
+     */
+    public List<DeviceMetricsDeadLetter> list(String queue, int offset, int limit) {
+        Set<String> ids = stringRedisTemplate.opsForZSet().range(queueKey(queue), offset, offset + limit - 1L);
+        return ids == null ? Collections.emptyList() : load(new ArrayList<>(ids));
+    }
+
+    /**
+     * 各队列死信数量
+     */
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        Long retry = stringRedisTemplate.opsForZSet().zCard(RETRY_KEY);
+        Long parked = stringRedisTemplate.opsForZSet().zCard(PARKED_KEY);
+        Long inflight = stringRedisTemplate.opsForZSet().zCard(INFLIGHT_KEY);
+        stats.put(QUEUE_RETRY, retry == null ? 0L : retry);
+        stats.put(QUEUE_PARKED, parked == null ? 0L : parked);
+        stats.put(QUEUE_INFLIGHT, inflight == null ? 0L : inflight);
+        return stats;
+    }
+
+    private void retry(List<DeviceMetricsDeadLetter> letters) {
+        List<DeviceMetrics> items = new ArrayList<>(letters.size());
+        for (DeviceMetricsDeadLetter letter : letters) {
+            items.add(letter.getMetrics());
+        }
+        try {
+            deviceMetricsService.batchInsert(items);
+        } catch (Exception e) {
+            log.warn("设备指标死信批量重试失败，逐条重试: 数量={}, 原因={}", letters.size(), reasonOf(e));
+            retryEach(letters);
+            return;
+        }
+        // 已入库的数据不能再次写入，之后的步骤失败只单独重试该步骤
+        afterInserted(letters, items);
+        log.info("设备指标死信重试成功: 数量={}", letters.size());
+    }
+
+    /**
+     * 整批失败时逐条重试，定位无法入库的数据
+     */
+    private void retryEach(List<DeviceMetricsDeadLetter> letters) {
+        List<DeviceMetricsDeadLetter> ok = new ArrayList<>();
+        Map<String, List<DeviceMetricsDeadLetter>> failed = new HashMap<>();
+        for (DeviceMetricsDeadLetter letter : letters) {
+            try {
+                deviceMetricsService.batchInsert(Collections.singletonList(letter.getMetrics()));
+                ok.add(letter);
+            } catch (Exception e) {
+                failed.computeIfAbsent(reasonOf(e), k -> new ArrayList<>()).add(letter);
+            }
+        }
+        List<DeviceMetrics> inserted = new ArrayList<>(ok.size());
+        for (DeviceMetricsDeadLetter letter : ok) {
+            inserted.add(letter.getMetrics());
+        }
+        afterInserted(ok, inserted);
+        long now = System.currentTimeMillis();
+        failed.forEach((reason, list) -> fail(list, reason, now));
+    }
+
+    /**
+     * 数据入库后移除死信并更新汇总。移除失败时在租约内重试，避免租约到期后死信回到重试队列被重复写入
+     */
+    private void afterInserted(List<DeviceMetricsDeadLetter> letters, List<DeviceMetrics> items) {
+        if (letters.isEmpty()) {
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                remove(letters);
+                break;
+            } catch (Exception e) {
+                if (attempt >= REMOVE_ATTEMPTS) {
+                    log.error("设备指标死信已入库但移除失败，租约到期前需人工移除: ids={}", idsOf(letters), e);
+                    break;
+                }
+                log.warn("设备指标死信已入库但移除失败，稍后重试: 数量={}, 原因={}", letters.size(), reasonOf(e));
+                try {
+                    Thread.sleep(200L * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    log.error("设备指标死信已入库但移除被中断: ids={}", idsOf(letters));
+                    break;
+                }
+            }
+        }
+        try {
+            deviceMetricsRollupService.accumulate(items);
+        } catch (Exception e) {
+            log.error("设备指标死信汇总更新失败: 数量={}", items.size(), e);
+        }
+    }
+
+    private static List<String> idsOf(List<DeviceMetricsDeadLetter> letters) {
+        List<String> ids = new ArrayList<>(letters.size());
+        for (DeviceMetricsDeadLetter letter : letters) {
+            ids.add(letter.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * 记录一次失败：未超过重试次数上限则按指数退避排队，否则搁置
+     */
+    private void fail(List<DeviceMetricsDeadLetter> letters, String reason, long now) {
+        Map<String, String> entries = new HashMap<>(letters.size() * 2);
+        for (DeviceMetricsDeadLetter letter : letters) {
+            letter.setReason(reason);
+            letter.setAttempts(letter.getAttempts() + 1);
+            letter.setLastFailureAt(now);
+            if (letter.getAttempts() >= maxAttempts) {
+                letter.setNextRetryAt(0);
+            } else {
+                long backoff = backoffBaseMs << Math.min(letter.getAttempts() - 1, 20);
+                letter.setNextRetryAt(now + Math.min(backoff, backoffMaxMs));
+            }
+            entries.put(letter.getId(), toJson(letter));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (DeviceMetricsDeadLetter letter : letters) {
+                byte[] id = bytes(letter.getId());
+                connection.hSet(bytes(ENTRIES_KEY), id, bytes(entries.get(letter.getId())));
+                if (letter.getNextRetryAt() > 0) {
+                    connection.zAdd(bytes(RETRY_KEY), letter.getNextRetryAt(), id);
+                } else {
+                    connection.zAdd(bytes(PARKED_KEY), now, id);
+                }
+                connection.zRem(bytes(INFLIGHT_KEY), id);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 从重试队列中认领死信并移入处理中队列，只有移出成功的节点处理该条，避免多节点重复重试
+     */
+    private List<String> claim(List<String> ids) {
+        List<String> args = new ArrayList<>(ids.size() + 1);
+        args.add(String.valueOf(System.currentTimeMillis() + leaseMs));
+        args.addAll(ids);
+        List<String> claimed = stringRedisTemplate.execute(CLAIM_SCRIPT, Arrays.asList(RETRY_KEY, INFLIGHT_KEY),
+                args.toArray());
+        return claimed == null ? Collections.emptyList() : claimed;
+    }
+
+    private List<DeviceMetricsDeadLetter> load(List<String> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(ENTRIES_KEY, new ArrayList<>(ids));
+        List<DeviceMetricsDeadLetter> letters = new ArrayList<>(ids.size());
+        for (Object v : values) {
+            if (v == null) {
+                continue;
+            }
+            try {
+                letters.add(objectMapper.readValue(v.toString(), DeviceMetricsDeadLetter.class));
+            } catch (Exception e) {
+                log.warn("设备指标死信解析失败: {}", v, e);
+            }
+        }
+        return letters;
+    }
+
+    private void remove(List<DeviceMetricsDeadLetter> letters) {
+        if (letters.isEmpty()) {
+            return;
+        }
+        Object[] ids = new Object[letters.size()];
+        for (int i = 0; i < letters.size(); i++) {
+            ids[i] = letters.get(i).getId();
+        }
+        stringRedisTemplate.opsForHash().delete(ENTRIES_KEY, ids);
+        stringRedisTemplate.opsForZSet().remove(INFLIGHT_KEY, ids);
+    }
+
+    private String queueKey(String queue) {
+        if (QUEUE_PARKED.equals(queue)) {
+            return PARKED_KEY;
+        }
+        return QUEUE_INFLIGHT.equals(queue) ? INFLIGHT_KEY : RETRY_KEY;
+    }
+
+    private String toJson(DeviceMetricsDeadLetter letter) {
+        try {
+            return objectMapper.writeValueAsString(letter);
+        } catch (Exception e) {
+            throw new IllegalStateException("设备指标死信序列化失败", e);
+        }
+    }
+
+    private static String reasonOf(Throwable e) {
+        Throwable root = e;
+        while (root.getCause() != null && root.getCause() != root) {
+            root = root.getCause();
+        }
+        String msg = root.getMessage();
+        return root.getClass().getSimpleName() + (msg == null ? "" : ": " + msg);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,212 @@
+package cc.mrbird.febs.common.service;
+
+import cc.mrbird.febs.cos.dao.DeviceMetricsMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 设备指标分区与保留策略
+ * device_metrics 按 create_time 做 RANGE COLUMNS 分区（见 sql/device_metrics_table.sql），
+ * 定时从 p_max 拆分预建未来分区，并删除（可选先归档）超过保留期的分区，同时清理过期的 1m 汇总。
+ * 删除分区是元数据操作，代价与分区行数无关；查询带上 create_time 范围即可裁剪分区。
+ * 多节点部署时通过 Redis 锁保证同一时间只有一个节点执行 DDL。
+ *
+ * @author FanK
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DeviceMetricsRetentionService {
+
+    private static final String LOCK_KEY = "device-metrics:retention:lock";
+    private static final String MAX_PARTITION = "p_max";
+    private static final DateTimeFormatter BOUND_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter DAY_NAME = DateTimeFormatter.ofPattern("'p'yyyyMMdd");
+    private static final DateTimeFormatter MONTH_NAME = DateTimeFormatter.ofPattern("'p'yyyyMM");
+
+    /**
+     * 仅当锁仍归当前节点持有时才删除，避免租约过期后误删其他节点的锁
+     */
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('DEL', KEYS[1]) end return 0",
+            Long.class);
+
+    private final DeviceMetricsMapper deviceMetricsMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final DeviceMetricsRollupService deviceMetricsRollupService;
+
+    @Value("${device-metrics.retention.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 分区粒度：day 或 month
+     */
+    @Value("${device-metrics.retention.granularity:day}")
+    private String granularity;
+
+    /**
+     * 数据保留天数，分区上界早于 (今天 - 保留天数) 的分区将被清理
+     */
+    @Value("${device-metrics.retention.retention-days:180}")
+    private int retentionDays;
+
+    /**
+     * 预建未来分区数量
+     */
+    @Value("${device-metrics.retention.pre-create:7}")
+    private int preCreate;
+
+    /**
+     * 清理前是否先归档到 device_metrics_archive
+     */
+    @Value("${device-metrics.retention.archive:false}")
+    private boolean archive;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onReady() {
+        maintain();
+    }
+
+    /**
+     * 定时维护分区：预建未来分区、清理过期分区
+     */
+    @Scheduled(cron = "${device-metrics.retention.cron:0 10 0 * * ?}")
+    public void maintain() {
+        if (!enabled) {
+            return;
+        }
+        String token = UUID.randomUUID().toString();
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_KEY, token, Duration.ofMinutes(30));
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        try {
+            deviceMetricsRollupService.purge();
+            int repaired = deviceMetricsRollupService.repairFailedDays();
+            if (repaired > 0) {
+                log.info("设备指标汇总失败日期已重算: {} 天", repaired);
+            }
+            List<LinkedHashMap<String, Object>> partitions = deviceMetricsMapper.selectPartitions();
+            if (partitions == null || partitions.isEmpty()) {
+                log.warn("device_metrics 尚未分区，跳过分区维护（请执行 sql/device_metrics_partition_migration.sql）");
+                return;
+            }
+            createFuturePartitions(partitions);
+            dropExpiredPartitions(partitions);
+        } catch (Exception e) {
+            log.error("device_metrics 分区维护失败", e);
+        } finally {
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(LOCK_KEY), token);
+        }
+    }
+
+    private void createFuturePartitions(List<LinkedHashMap<String, Object>> partitions) {
+        LocalDate lastBound = null;
+        for (Map<String, Object> p : partitions) {
+            LocalDate bound = boundOf(p);
+            if (bound != null && (lastBound == null || bound.isAfter(lastBound))) {
+                lastBound = bound;
+            }
+        }
+        if (lastBound == null && maxPartitionRows(partitions) > 0) {
+            // 只有 p_max 且其中已有数据：REORGANIZE 会在排他锁下重写全部历史，交由迁移脚本离线生成历史分区
+            log.warn("device_metrics 仅有非空的 p_max 分区，跳过预建分区（请执行 sql/device_metrics_partition_migration.sql）");
+            return;
+        }
+        boolean monthly = isMonthly();
+        LocalDate today = LocalDate.now();
+        LocalDate target = monthly ? today.withDayOfMonth(1).plusMonths(preCreate + 1L) : today.plusDays(preCreate + 1L);
+        // 新建的空表从当前周期开始；已有分区时从最后一个上界继续，p_max 为空，拆分只是元数据操作
+        LocalDate start = lastBound != null ? lastBound : (monthly ? today.withDayOfMonth(1) : today);
+
+        List<LinkedHashMap<String, String>> created = new ArrayList<>();
+        while (start.isBefore(target)) {
+            LocalDate next = monthly ? start.plusMonths(1) : start.plusDays(1);
+            LinkedHashMap<String, String> def = new LinkedHashMap<>();
+            def.put("name", start.format(monthly ? MONTH_NAME : DAY_NAME));
+            def.put("bound", next.atStartOfDay().format(BOUND_FORMATTER));
+            created.add(def);
+            start = next;
+        }
+        if (!created.isEmpty()) {
+            deviceMetricsMapper.splitMaxPartition(created);
+            log.info("device_metrics 预建分区: {}", created.size());
+        }
+    }
+
+    private void dropExpiredPartitions(List<LinkedHashMap<String, Object>> partitions) {
+        LocalDate cutoff = LocalDate.now().minusDays(retentionDays);
+        for (Map<String, Object> p : partitions) {
+            String name = String.valueOf(p.get("name"));
+            LocalDate bound = boundOf(p);
+            if (bound == null || bound.isAfter(cutoff)) {
+                continue;
+            }
+            if (archive) {
+                int rows = deviceMetricsMapper.archivePartition(name);
+                log.info("device_metrics 分区已归档: partition={}, rows={}", name, rows);
+            }
+            deviceMetricsMapper.dropPartition(name);
+            log.info("device_metrics 过期分区已删除: partition={}, bound={}", name, bound);
+        }
+    }
+
+    /**
+     * p_max 的行数（TABLE_ROWS 为统计估算值，用于判断是否为空）
+     */
+    private long maxPartitionRows(List<LinkedHashMap<String, Object>> partitions) {
+        for (Map<String, Object> p : partitions) {
+            if (MAX_PARTITION.equals(p.get("name"))) {
+                Object rows = p.get("tableRows");
+                return rows instanceof Number ? ((Number) rows).longValue() : 0L;
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * 解析分区上界（PARTITION_DESCRIPTION 形如 '2026-10-18 00:00:00'），p_max 返回 null
+     */
+    private LocalDate boundOf(Map<String, Object> partition) {
+        if (MAX_PARTITION.equals(partition.get("name"))) {
+            return null;
+        }
+        Object bound = partition.get("bound");
+        if (bound == null) {
+            return null;
+        }
+        String text = bound.toString().replace("'", "").trim();
+        try {
+            return LocalDateTime.parse(text, BOUND_FORMATTER).toLocalDate();
+        } catch (Exception e) {
+            try {
+                return LocalDate.parse(text.substring(0, Math.min(text.length(), 10)));
+            } catch (Exception ignore) {
+                log.warn("无法解析 device_metrics 分区边界: {}", bound);
+                return null;
+            }
+        }
+    }
+
+    private boolean isMonthly() {
+        return "month".equalsIgnoreCase(granularity);
+    }
+}
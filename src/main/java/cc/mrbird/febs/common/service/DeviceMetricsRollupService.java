@@ -0,0 +1,383 @@
+package cc.mrbird.febs.common.service;
+
+import cc.mrbird.febs.cos.dao.DeviceMetricsRollupMapper;
+import cc.mrbird.febs.cos.entity.DeviceMetrics;
+import cc.mrbird.febs.cos.entity.DeviceMetricsRollup;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 设备指标降采样汇总
+ * 指标批量入库后在内存中按 (设备, 粒度, 时间桶) 预聚合，再以 INSERT ... ON DUPLICATE KEY UPDATE 合并到 device_metrics_rollup，
+ * 每批只产生“设备数 × 粒度数”量级的写入；趋势查询按时间范围和点数上限选择粒度，不再扫描原始数据。
+ * 合并语句由并行的入库线程与死信重试同时执行，行按主键排序后写入，使各语句以相同顺序加锁，遇到死锁时重试；
+ * 仍然失败的批次计入 device.metrics.rollup.rows.failed，并把涉及的日期记入 Redis，
+ * 由 {@link #repairFailedDays} 在次日用 {@link #rebuild} 从原始数据重算。
+ *
+ * @author FanK
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DeviceMetricsRollupService {
+
+    public static final String RESOLUTION_MINUTE = "1m";
+    public static final String RESOLUTION_HOUR = "1h";
+    public static final String RESOLUTION_DAY = "1d";
+
+    /**
+     * 由细到粗排列
+     */
+    private static final String[] RESOLUTIONS = {RESOLUTION_MINUTE, RESOLUTION_HOUR, RESOLUTION_DAY};
+
+    /**
+     * 汇总写入失败、待重算的日期（yyyy-MM-dd）
+     */
+    private static final String FAILED_DAYS_KEY = "device-metrics:rollup:failed-days";
+
+    /**
+     * 与 device_metrics_rollup 主键 (device_type, device_id, resolution, bucket_time) 一致的顺序
+     */
+    private static final Comparator<DeviceMetricsRollup> KEY_ORDER = Comparator
+            .comparing(DeviceMetricsRollup::getDeviceType)
+            .thenComparing(DeviceMetricsRollup::getDeviceId)
+            .thenComparing(DeviceMetricsRollup::getResolution)
+            .thenComparing(DeviceMetricsRollup::getBucketTime);
+
+    private final DeviceMetricsRollupMapper deviceMetricsRollupMapper;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${device-metrics.rollup.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 单条合并语句的最大行数
+     */
+    @Value("${device-metrics.rollup.upsert-rows:500}")
+    private int upsertRows;
+
+    /**
+     * 合并语句遇到死锁或锁等待超时时的重试次数
+     */
+    @Value("${device-metrics.rollup.deadlock-retries:3}")
+    private int deadlockRetries;
+
+    /**
+     * 1m 汇总保留天数，1h/1d 汇总随原始数据保留策略之外长期保留
+     */
+    @Value("${device-metrics.rollup.minute-retention-days:30}")
+    private int minuteRetentionDays;
+
+    /**
+     * 原始数据分区维护配置，与 {@link DeviceMetricsRetentionService} 读取同一组配置；
+     * 保留期之前的原始分区可能已删除，不能再由原始数据重算
+     */
+    @Value("${device-metrics.retention.enabled:true}")
+    private boolean rawRetentionEnabled;
+
+    @Value("${device-metrics.retention.retention-days:180}")
+    private int rawRetentionDays;
+
+    /**
+     * 将已入库的一批指标合并到汇总表
+     *
+     * @param items 已成功入库的指标数据
+     */
+    public void accumulate(List<DeviceMetrics> items) {
+        if (!enabled || items == null || items.isEmpty()) {
+            return;
+        }
+        Map<String, DeviceMetricsRollup> buckets = new LinkedHashMap<>();
+        for (DeviceMetrics m : items) {
+            if (m.getDeviceType() == null || m.getDeviceId() == null) {
+                continue;
+            }
+            LocalDateTime time = m.getCreateTime() != null ? m.getCreateTime() : m.getServerTime();
+            if (time == null) {
+                continue;
+            }
+            for (String resolution : RESOLUTIONS) {
+                LocalDateTime bucketTime = truncate(time, resolution);
+                String key = m.getDeviceType() + '|' + m.getDeviceId() + '|' + resolution + '|' + bucketTime;
+                DeviceMetricsRollup rollup = buckets.computeIfAbsent(key, k -> newBucket(m, resolution, bucketTime));
+                merge(rollup, m);
+            }
+        }
+        List<DeviceMetricsRollup> rows = new ArrayList<>(buckets.values());
+        rows.sort(KEY_ORDER);
+        int chunk = Math.max(upsertRows, 1);
+        for (int from = 0; from < rows.size(); from += chunk) {
+            List<DeviceMetricsRollup> batch = rows.subList(from, Math.min(from + chunk, rows.size()));
+            try {
+                upsertWithRetry(batch);
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                log.error("设备指标汇总更新失败: 行数={}", batch.size(), e);
+                meterRegistry.counter("device.metrics.rollup.rows.failed").increment(batch.size());
+                markFailedDays(batch);
+            }
+        }
+    }
+
+    private void upsertWithRetry(List<DeviceMetricsRollup> batch) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                deviceMetricsRollupMapper.upsertBatch(batch);
+                return;
+            } catch (PessimisticLockingFailureException e) {
+                if (attempt >= deadlockRetries) {
+                    throw e;
+                }
+                meterRegistry.counter("device.metrics.rollup.deadlock.retries").increment();
+                Thread.sleep(50L * (attempt + 1));
+            }
+        }
+    }
+
+    private void markFailedDays(List<DeviceMetricsRollup> batch) {
+        Set<String> days = new TreeSet<>();
+        for (DeviceMetricsRollup rollup : batch) {
+            days.add(rollup.getBucketTime().toLocalDate().toString());
+        }
+        try {
+            stringRedisTemplate.opsForSet().add(FAILED_DAYS_KEY, days.toArray(new String[0]));
+        } catch (Exception e) {
+            log.error("记录汇总失败日期失败，请手动重算: days={}", days, e);
+        }
+    }
+
+    /**
+     * 汇总写入失败、待重算的日期
+     */
+    public Set<String> failedDays() {
+        Set<String> days = stringRedisTemplate.opsForSet().members(FAILED_DAYS_KEY);
+        return days == null ? new TreeSet<>() : new TreeSet<>(days);
+    }
+
+    /**
+     * 重算今天之前汇总写入失败的日期；当天仍在写入，留到次日处理
+     *
+     * @return 重算的天数
+     */
+    public int repairFailedDays() {
+        LocalDate today = LocalDate.now();
+        int repaired = 0;
+        for (String text : failedDays()) {
+            LocalDate day;
+            try {
+                day = LocalDate.parse(text);
+            } catch (Exception e) {
+                stringRedisTemplate.opsForSet().remove(FAILED_DAYS_KEY, text);
+                continue;
+            }
+            if (!day.isBefore(today)) {
+                continue;
+            }
+            LocalDateTime floor = rebuildableFrom();
+            if (floor != null && day.atStartOfDay().isBefore(floor)) {
+                log.warn("汇总失败日期的原始数据已超出保留期，无法重算: day={}", text);
+                stringRedisTemplate.opsForSet().remove(FAILED_DAYS_KEY, text);
+                continue;
+            }
+            rebuild(day.atStartOfDay(), day.plusDays(1).atStartOfDay());
+            stringRedisTemplate.opsForSet().remove(FAILED_DAYS_KEY, text);
+            repaired++;
+        }
+        return repaired;
+    }
+
+    /**
+     * 查询设备指标趋势，在点数不超过上限的前提下选择最细的粒度，超出时逐级降为更粗的粒度（最粗为 1d）
+     * 开始时间早于 1m 汇总保留期时不使用 1m 粒度
+     *
+     * @param deviceType 设备类型
+     * @param deviceId   设备编号
+     * @param from       开始时间
+     * @param to         结束时间
+     * @param maxPoints  点数上限
+     * @return resolution 与 points
+     */
+    public Map<String, Object> trend(String deviceType, String deviceId, LocalDateTime from, LocalDateTime to, int maxPoints) {
+        String resolution = pickResolution(from, to, maxPoints, minuteFloor());
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("resolution", resolution);
+        result.put("points", deviceMetricsRollupMapper.selectTrend(deviceType, deviceId, resolution,
+                truncate(from, resolution), to));
+        return result;
+    }
+
+    /**
+     * 由原始数据重算时间范围内的汇总，用于历史回填或汇总写入失败后的修复
+     * 原始数据已超出保留期的日期跳过，保留现有的 1h/1d 汇总，不会被清空
+     *
+     * @param from 开始时间，按天对齐
+     * @param to   结束时间，按天对齐
+     * @return 重算后的汇总行数
+     */
+    public int rebuild(LocalDateTime from, LocalDateTime to) {
+        LocalDateTime start = from.truncatedTo(ChronoUnit.DAYS);
+        LocalDateTime end = to.truncatedTo(ChronoUnit.DAYS);
+        if (end.isBefore(to)) {
+            end = end.plusDays(1);
+        }
+        LocalDateTime floor = rebuildableFrom();
+        if (floor != null && start.isBefore(floor)) {
+            log.warn("原始数据已超出保留期，跳过重算: from={}, to={}", start, floor.isBefore(end) ? floor : end);
+            start = floor;
+        }
+        int rows = 0;
+        // 按天处理，避免单条 INSERT ... SELECT 锁住过多数据
+        for (LocalDateTime day = start; day.isBefore(end); day = day.plusDays(1)) {
+            for (String resolution : RESOLUTIONS) {
+                deviceMetricsRollupMapper.deleteRange(resolution, day, day.plusDays(1));
+                rows += deviceMetricsRollupMapper.rebuildRange(resolution, day, day.plusDays(1));
+            }
+        }
+        log.info("设备指标汇总重算完成: from={}, to={}, rows={}", start, end, rows);
+        return rows;
+    }
+
+    /**
+     * 清理过期的 1m 汇总
+     */
+    public void purge() {
+        if (!enabled || minuteRetentionDays <= 0) {
+            return;
+        }
+        LocalDateTime cutoff = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).minusDays(minuteRetentionDays);
+        int rows = deviceMetricsRollupMapper.deleteRange(RESOLUTION_MINUTE, LocalDateTime.of(1970, 1, 1, 0, 0), cutoff);
+        if (rows > 0) {
+            log.info("过期 1m 汇总已清理: cutoff={}, rows={}", cutoff, rows);
+        }
+    }
+
+    /**
+     * 可由原始数据重算的最早时间，原始数据不过期时返回 null
+     * 分区维护删除上界不晚于“今天 - 保留天数”的分区，该日期及之后的原始数据完整
+     */
+    public LocalDateTime rebuildableFrom() {
+        if (!rawRetentionEnabled || rawRetentionDays <= 0) {
+            return null;
+        }
+        return LocalDate.now().minusDays(rawRetentionDays).atStartOfDay();
+    }
+
+    /**
+     * 仍保留 1m 汇总的最早时间，不清理时返回 null
+     */
+    private LocalDateTime minuteFloor() {
+        if (!enabled || minuteRetentionDays <= 0) {
+            return null;
+        }
+        return LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).minusDays(minuteRetentionDays);
+    }
+
+    /**
+     * @param minuteFloor 1m 汇总的最早保留时间，null 表示不限制
+     */
+    static String pickResolution(LocalDateTime from, LocalDateTime to, int maxPoints, LocalDateTime minuteFloor) {
+        long seconds = Math.max(Duration.between(from, to).getSeconds(), 1);
+        for (String resolution : RESOLUTIONS) {
+            if (RESOLUTION_MINUTE.equals(resolution) && minuteFloor != null && from.isBefore(minuteFloor)) {
+                continue;
+            }
+            long bucketSeconds = bucketSeconds(resolution);
+            if ((seconds + bucketSeconds - 1) / bucketSeconds <= maxPoints) {
+                return resolution;
+            }
+        }
+        return RESOLUTION_DAY;
+    }
+
+    private static long bucketSeconds(String resolution) {
+        switch (resolution) {
+            case RESOLUTION_MINUTE:
+                return 60;
+            case RESOLUTION_HOUR:
+                return 3600;
+            default:
+                return 86400;
+        }
+    }
+
+    private static LocalDateTime truncate(LocalDateTime time, String resolution) {
+        switch (resolution) {
+            case RESOLUTION_MINUTE:
+                return time.truncatedTo(ChronoUnit.MINUTES);
+            case RESOLUTION_HOUR:
+                return time.truncatedTo(ChronoUnit.HOURS);
+            default:
+                return time.truncatedTo(ChronoUnit.DAYS);
+        }
+    }
+
+    private static DeviceMetricsRollup newBucket(DeviceMetrics m, String resolution, LocalDateTime bucketTime) {
+        DeviceMetricsRollup rollup = new DeviceMetricsRollup();
+        rollup.setDeviceType(m.getDeviceType());
+        rollup.setDeviceId(m.getDeviceId());
+        rollup.setResolution(resolution);
+        rollup.setBucketTime(bucketTime);
+        rollup.setSampleCount(0);
+        rollup.setCoilSum(BigDecimal.ZERO);
+        rollup.setCoilCount(0);
+        rollup.setMachineSum(BigDecimal.ZERO);
+        rollup.setMachineCount(0);
+        rollup.setPumpSum(BigDecimal.ZERO);
+        rollup.setPumpCount(0);
+        return rollup;
+    }
+
+    private static void merge(DeviceMetricsRollup r, DeviceMetrics m) {
+        r.setSampleCount(r.getSampleCount() + 1);
+        BigDecimal coil = m.getCoilTemperature();
+        if (coil != null) {
+            r.setCoilMin(min(r.getCoilMin(), coil));
+            r.setCoilMax(max(r.getCoilMax(), coil));
+            r.setCoilSum(r.getCoilSum().add(coil));
+            r.setCoilCount(r.getCoilCount() + 1);
+        }
+        BigDecimal machine = m.getMachineTemperature();
+        if (machine != null) {
+            r.setMachineMin(min(r.getMachineMin(), machine));
+            r.setMachineMax(max(r.getMachineMax(), machine));
+            r.setMachineSum(r.getMachineSum().add(machine));
+            r.setMachineCount(r.getMachineCount() + 1);
+        }
+        BigDecimal pump = m.getPumpFlowRate();
+        if (pump != null) {
+            r.setPumpMin(min(r.getPumpMin(), pump));
+            r.setPumpMax(max(r.getPumpMax(), pump));
+            r.setPumpSum(r.getPumpSum().add(pump));
+            r.setPumpCount(r.getPumpCount() + 1);
+        }
+    }
+
+    private static BigDecimal min(BigDecimal current, BigDecimal value) {
+        return current == null || value.compareTo(current) < 0 ? value : current;
+    }
+
+    private static BigDecimal max(BigDecimal current, BigDecimal value) {
+        return current == null || value.compareTo(current) > 0 ? value : current;
+    }
+}
@@ -0,0 +1,406 @@
+package cc.mrbird.febs.common.service;
+
+import cc.mrbird.febs.common.domain.DeviceState;
+import cc.mrbird.febs.system.dao.DeviceMapper;
+import cc.mrbird.febs.system.domain.Device;
+import cc.mrbird.febs.system.websocket.WebSocketBus;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 设备状态表（write-behind）
+ * 以内存中的状态为准：心跳只更新内存并标记为脏，由定时任务合并后以批量 UPDATE 回写 device 表；
+ * 只有在线状态或治疗状态真正发生变化时才立即写库，避免每次心跳都查询并更新 MySQL。
+ * 设备离线后从内存移除，下次上线时重新从数据库加载，避免长期持有其他入口修改前的旧数据。
+ * 批量回写只写心跳时间和本节点收到的上报中实际变化过的字段，其他节点或后台修改过的字段不会被旧值覆盖；
+ * 后台修改设备后的失效通知经 {@link WebSocketBus} 广播到所有节点。
+ *
+ * @author FanK
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DeviceStateStore {
+
+    public static final String ONLINE = "online";
+    public static final String OFFLINE = "offline";
+
+    /**
+     * 失效通知在广播总线上使用的端点与主题
+     */
+    private static final String EVICT_ENDPOINT = "device-state";
+    private static final String EVICT_TOPIC = "evict";
+
+    private final DeviceMapper deviceMapper;
+
+    private final Map<Long, Entry> states = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> deviceNoIndex = new ConcurrentHashMap<>();
+    private final Set<Long> dirty = ConcurrentHashMap.newKeySet();
+    /**
+     * 正在批量回写的设备；期间发生的直写会把设备重新标记为脏，避免旧快照覆盖刚直写的数据
+     */
+    private final Set<Long> flushing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 批量回写单条 UPDATE 的最大设备数
+     */
+    @Value("${device-state.flush-batch-size:500}")
+    private int flushBatchSize;
+
+    /**
+     * Redis 心跳键的最小刷新间隔（毫秒），间隔内的心跳只更新内存
+     */
+    @Value("${device-state.heartbeat-refresh-ms:10000}")
+    private long heartbeatRefreshMs;
+
+    /**
+     * 心跳超时时间（毫秒），超过该时间后再收到的心跳视为重新上线；Redis 心跳截止时间也按该值顺延
+     */
+    @Getter
+    @Value("${device-state.heartbeat-timeout-ms:120000}")
+    private long heartbeatTimeoutMs;
+
+    /**
+     * 状态更新结果
+     */
+    @Getter
+    public static class Update {
+        private final DeviceState state;
+        /**
+         * 在线状态或治疗状态是否发生变化（已直写数据库）
+         */
+        private final boolean transition;
+        /**
+         * 是否需要刷新 Redis 心跳键
+         */
+        private final boolean heartbeatDue;
+
+        Update(DeviceState state, boolean transition, boolean heartbeatDue) {
+            this.state = state;
+            this.transition = transition;
+            this.heartbeatDue = heartbeatDue;
+        }
+    }
+
+    private static class Entry {
+        /**
+         * 当前状态，只在持有 Entry 锁时读写
+         */
+        DeviceState state;
+        long heartbeatPublishedAt;
+        /**
+         * 上次回写后由上报修改过、尚未回写的字段
+         */
+        boolean deviceNoPending;
+        boolean batTimesPending;
+        boolean capTimesPending;
+
+        Entry(DeviceState state) {
+            this.state = state;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        WebSocketBus.register(EVICT_ENDPOINT, (topic, frame) -> {
+            evictLocal(Long.valueOf(frame));
+            return 0;
+        });
+    }
+
+    /**
+     * 获取设备当前状态
+     *
+     * @param deviceId 设备ID
+     * @return 状态快照，设备不存在时返回 null
+     */
+    public DeviceState get(Long deviceId) {
+        Entry entry = load(deviceId);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            return entry.state.copy();
+        }
+    }
+
+    /**
+     * 通过设备编号获取设备ID，编号不唯一或不存在时返回 null
+     */
+    public Long resolveDeviceId(Integer deviceNo) {
+        if (deviceNo == null) {
+            return null;
+        }
+        Long cached = deviceNoIndex.get(deviceNo);
+        if (cached != null) {
+            return cached;
+        }
+        QueryWrapper<Device> wrapper = new QueryWrapper<>();
+        wrapper.eq("device_no", deviceNo);
+        wrapper.select("device_id");
+        List<Device> devices = deviceMapper.selectList(wrapper);
+        if (devices.size() != 1) {
+            if (devices.size() > 1) {
+                log.warn("通过deviceNo {} 查询到 {} 条记录，不做处理", deviceNo, devices.size());
+            }
+            return null;
+        }
+        Long deviceId = devices.get(0).getDeviceId();
+        deviceNoIndex.put(deviceNo, deviceId);
+        return deviceId;
+    }
+
+    /**
+     * 更新设备状态：在线状态或治疗状态变化时立即写库，否则仅标记为脏等待批量回写
+     *
+     * @param deviceId        设备ID
+     * @param status          在线状态，null 表示不变
+     * @param heartbeat       是否为心跳（更新最后心跳时间）
+     * @param deviceNo        设备编号，null 表示不变
+     * @param batTimes        拍子使用次数，null 表示不变
+     * @param capTimes        电容使用次数，null 表示不变
+     * @param treatmentStatus 治疗状态，null 表示不变
+     * @return 更新结果，设备不存在时返回 null
+     */
+    public Update update(Long deviceId, String status, boolean heartbeat, Integer deviceNo,
+                         Integer batTimes, Integer capTimes, Integer treatmentStatus) {
+        Entry entry = load(deviceId);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            DeviceState current = entry.state;
+            long now = System.currentTimeMillis();
+            // 长时间无心跳的设备可能已被其他节点判定超时下线，再次心跳时按上线处理
+            boolean expired = heartbeat && current.getLastHeartbeat() != null
+                    && now - current.getLastHeartbeat().getTime() >= heartbeatTimeoutMs;
+            boolean transition = expired
+                    || (status != null && !status.equals(current.getStatus()))
+                    || (treatmentStatus != null && !treatmentStatus.equals(current.getTreatmentStatus()));
+            boolean changed = transition
+                    || (deviceNo != null && !deviceNo.equals(current.getDeviceNo()))
+                    || (batTimes != null && !batTimes.equals(current.getBatTimes()))
+                    || (capTimes != null && !capTimes.equals(current.getCapTimes()));
+
+            // 在副本上修改，需要直写时写库成功后才替换内存状态，写库失败时内存保持原样，下次心跳仍会识别为状态变化
+            DeviceState next = current.copy();
+            if (status != null) {
+                next.setStatus(status);
+            }
+            if (deviceNo != null) {
+                next.setDeviceNo(deviceNo);
+            }
+            if (batTimes != null) {
+                next.setBatTimes(batTimes);
+            }
+            if (capTimes != null) {
+                next.setCapTimes(capTimes);
+            }
+            if (treatmentStatus != null) {
+                next.setTreatmentStatus(treatmentStatus);
+            }
+            if (heartbeat) {
+                next.setLastHeartbeat(new Date(now));
+            }
+            boolean offline = OFFLINE.equals(next.getStatus());
+            // 离线设备不再常驻内存，有未回写的数据时一并直写
+            boolean writeThrough = transition || (offline && (changed || heartbeat || dirty.contains(deviceId)));
+            if (writeThrough) {
+                writeThrough(next);
+                // 批量回写正在写入该设备的旧快照，重新标记为脏，由下一轮用最新数据覆盖
+                boolean stale = flushing.contains(deviceId);
+                entry.deviceNoPending = stale;
+                entry.batTimesPending = stale;
+                entry.capTimesPending = stale;
+                if (stale) {
+                    dirty.add(deviceId);
+                } else {
+                    dirty.remove(deviceId);
+                }
+            } else if (changed || heartbeat) {
+                entry.deviceNoPending |= deviceNo != null && !deviceNo.equals(current.getDeviceNo());
+                entry.batTimesPending |= batTimes != null && !batTimes.equals(current.getBatTimes());
+                entry.capTimesPending |= capTimes != null && !capTimes.equals(current.getCapTimes());
+                dirty.add(deviceId);
+            }
+
+            if (current.getDeviceNo() != null && !current.getDeviceNo().equals(next.getDeviceNo())) {
+                deviceNoIndex.remove(current.getDeviceNo(), deviceId);
+            }
+            entry.state = next;
+            boolean heartbeatDue = heartbeat && now - entry.heartbeatPublishedAt >= heartbeatRefreshMs;
+            if (heartbeatDue) {
+                entry.heartbeatPublishedAt = now;
+            }
+            if (offline && !flushing.contains(deviceId)) {
+                dirty.remove(deviceId);
+                states.remove(deviceId, entry);
+            }
+            return new Update(next.copy(), transition, heartbeatDue);
+        }
+    }
+
+    /**
+     * 移除设备的内存状态，设备信息被其他入口修改（如后台编辑、删除）后调用，下次访问时重新从数据库加载
+     * 本节点立即移除，并通知其他节点移除各自的内存状态
+     *
+     * @param deviceId 设备ID
+     */
+    public void evict(Long deviceId) {
+        if (deviceId == null) {
+            return;
+        }
+        WebSocketBus.publish(EVICT_ENDPOINT, EVICT_TOPIC, String.valueOf(deviceId));
+    }
+
+    private void evictLocal(Long deviceId) {
+        Entry entry = states.remove(deviceId);
+        dirty.remove(deviceId);
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.state.getDeviceNo() != null) {
+                    deviceNoIndex.remove(entry.state.getDeviceNo(), deviceId);
+                }
+            }
+        }
+    }
+
+    /**
+     * 定时将脏数据批量回写数据库
+     */
+    @Scheduled(fixedDelayString = "${device-state.flush-interval:5000}")
+    public void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        // 只在各设备的锁内取快照，写库时不持有任何锁，心跳处理不会被批量回写阻塞
+        List<DeviceState> snapshots = new ArrayList<>(dirty.size());
+        Iterator<Long> it = dirty.iterator();
+        while (it.hasNext()) {
+            Long deviceId = it.next();
+            it.remove();
+            Entry entry = states.get(deviceId);
+            if (entry != null) {
+                synchronized (entry) {
+                    flushing.add(deviceId);
+                    snapshots.add(pendingSnapshot(entry));
+                }
+            }
+        }
+        int chunk = Math.max(flushBatchSize, 1);
+        for (int from = 0; from < snapshots.size(); from += chunk) {
+            List<DeviceState> part = snapshots.subList(from, Math.min(from + chunk, snapshots.size()));
+            try {
+                deviceMapper.updateHeartbeatBatch(part);
+            } catch (Exception e) {
+                log.error("设备状态批量回写失败，下次重试: 数量={}", part.size(), e);
+                for (DeviceState s : part) {
+                    restorePending(s);
+                }
+            } finally {
+                for (DeviceState s : part) {
+                    flushing.remove(s.getDeviceId());
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    /**
+     * 取回写快照并清除待回写标记；未修改的字段置为 null，批量 UPDATE 中保持数据库原值
+     */
+    private DeviceState pendingSnapshot(Entry entry) {
+        DeviceState snapshot = entry.state.copy();
+        if (!entry.deviceNoPending) {
+            snapshot.setDeviceNo(null);
+        }
+        if (!entry.batTimesPending) {
+            snapshot.setBatTimes(null);
+        }
+        if (!entry.capTimesPending) {
+            snapshot.setCapTimes(null);
+        }
+        entry.deviceNoPending = false;
+        entry.batTimesPending = false;
+        entry.capTimesPending = false;
+        return snapshot;
+    }
+
+    /**
+     * 回写失败时恢复快照中携带的待回写标记
+     */
+    private void restorePending(DeviceState snapshot) {
+        Long deviceId = snapshot.getDeviceId();
+        Entry entry = states.get(deviceId);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            entry.deviceNoPending |= snapshot.getDeviceNo() != null;
+            entry.batTimesPending |= snapshot.getBatTimes() != null;
+            entry.capTimesPending |= snapshot.getCapTimes() != null;
+            dirty.add(deviceId);
+        }
+    }
+
+    private Entry load(Long deviceId) {
+        if (deviceId == null) {
+            return null;
+        }
+        Entry entry = states.get(deviceId);
+        if (entry != null) {
+            return entry;
+        }
+        Device device = deviceMapper.selectById(deviceId);
+        if (device == null) {
+            return null;
+        }
+        DeviceState state = new DeviceState();
+        state.setDeviceId(device.getDeviceId());
+        state.setDeviceNo(device.getDeviceNo());
+        state.setStatus(device.getStatus());
+        state.setLastHeartbeat(device.getLastHeartbeat());
+        state.setBatTimes(device.getBatTimes());
+        state.setCapTimes(device.getCapTimes());
+        state.setTreatmentStatus(device.getTreatmentStatus());
+        if (device.getDeviceNo() != null) {
+            deviceNoIndex.putIfAbsent(device.getDeviceNo(), deviceId);
+        }
+        Entry loaded = new Entry(state);
+        Entry existing = states.putIfAbsent(deviceId, loaded);
+        return existing != null ? existing : loaded;
+    }
+
+    private void writeThrough(DeviceState s) {
+        Device device = new Device();
+        device.setDeviceId(s.getDeviceId());
+        device.setStatus(s.getStatus());
+        device.setLastHeartbeat(s.getLastHeartbeat());
+        device.setDeviceNo(s.getDeviceNo());
+        device.setBatTimes(s.getBatTimes());
+        device.setCapTimes(s.getCapTimes());
+        device.setTreatmentStatus(s.getTreatmentStatus());
+        deviceMapper.updateById(device);
+        log.debug("设备状态变化已写库: deviceId={}, status={}, treatmentStatus={}",
+                s.getDeviceId(), s.getStatus(), s.getTreatmentStatus());
+    }
+}
@@ -0,0 +1,88 @@
+package cc.mrbird.febs.common.service.impl;
+
+import cc.mrbird.febs.common.service.DeviceMetricsBuffer;
+import cc.mrbird.febs.common.utils.MpmcRingBuffer;
+import cc.mrbird.febs.cos.entity.DeviceMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 进程内设备指标缓冲：无锁环形队列，直接存放 DeviceMetrics 对象，无序列化与网络往返。
+ * 进程退出前由批处理服务排空；进程崩溃时未入库的数据会丢失。
+ *
+ * @author FanK
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "device-metrics.buffer", name = "type", havingValue = "memory", matchIfMissing = true)
+public class MemoryDeviceMetricsBuffer implements DeviceMetricsBuffer {
+
+    private final MpmcRingBuffer<DeviceMetrics> ring;
+    private final Counter dropped;
+
+    public MemoryDeviceMetricsBuffer(@Value("${device-metrics.buffer.capacity:65536}") int capacity,
+                                     MeterRegistry meterRegistry) {
+        this.ring = new MpmcRingBuffer<>(capacity);
+        this.dropped = meterRegistry.counter("device.metrics.buffer.dropped");
+        Gauge.builder("device.metrics.buffer.size", ring, MpmcRingBuffer::size).register(meterRegistry);
+        log.info("设备指标缓冲: memory, capacity={}", ring.capacity());
+    }
+
+    @Override
+    public boolean offer(DeviceMetrics metrics) {
+        if (ring.offer(metrics)) {
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    @Override
+    public Batch poll(int maxCount) {
+        List<DeviceMetrics> items = null;
+        for (int i = 0; i < maxCount; i++) {
+            DeviceMetrics m = ring.poll();
+            if (m == null) {
+                break;
+            }
+            if (items == null) {
+                items = new ArrayList<>(Math.min(maxCount, ring.size() + 1));
+            }
+            items.add(m);
+        }
+        return items == null ? Batch.empty() : new Batch(items, Collections.emptyList());
+    }
+
+    @Override
+    public void ack(Batch batch) {
+        // 内存队列出队即移除，无需确认
+    }
+
+    @Override
+    public void nack(Batch batch) {
+        int lost = 0;
+        for (DeviceMetrics m : batch.getItems()) {
+            if (!ring.offer(m)) {
+                lost++;
+            }
+        }
+        if (lost > 0) {
+            dropped.increment(lost);
+            log.error("设备指标缓冲已满，重试数据被丢弃: 数量={}", lost);
+        }
+    }
+
+    @Override
+    public long size() {
+        return ring.size();
+    }
+}
@@ -0,0 +1,407 @@
+package cc.mrbird.febs.common.service.impl;
+
+import cc.mrbird.febs.common.service.DeviceMetricsBuffer;
+import cc.mrbird.febs.cos.entity.DeviceMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 基于 Redis Streams 的设备指标缓冲（持久化模式）
+ * 写入 XADD，读取 XREADGROUP COUNT n 一次往返取一批，入库成功后 XACK 并 XDEL。
+ * 未确认的数据保留在消费组的待确认列表中：启动时及批次失败后先重读本消费者的待确认数据；
+ * 其他消费者（如已崩溃、重启后改名的容器）空闲超时的待确认数据由定时任务 XCLAIM 到本消费者后重读，
+ * 因此进程崩溃后数据不会丢失，也不要求消费者名在重启前后保持一致。
+ * 容量上限在写入时检查（超过上限拒绝写入），不使用 MAXLEN 裁剪，避免删除尚未投递的数据。
+ *
+ * 当前依赖的 spring-data-redis 版本尚无 Stream API，这里通过 RedisConnection#execute 直接发送命令。
+ *
+ * @author FanK
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "device-metrics.buffer", name = "type", havingValue = "redis-stream")
+public class RedisStreamDeviceMetricsBuffer implements DeviceMetricsBuffer {
+
+    private static final DateTimeFormatter DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /**
+     * 未达到容量上限时 XADD，否则返回 nil
+     */
+    private static final String BOUNDED_XADD_SCRIPT =
+            "if redis.call('XLEN', KEYS[1]) >= tonumber(ARGV[1]) then return false end "
+                    + "return redis.call('XADD', KEYS[1], '*', unpack(ARGV, 2))";
+
+    /**
+     * 每次扫描待确认列表的条数
+     */
+    private static final int CLAIM_PAGE_SIZE = 100;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${device-metrics.buffer.stream-key:mqtt:stream:device-metrics}")
+    private String streamKey;
+
+    @Value("${device-metrics.buffer.group:device-metrics-writer}")
+    private String group;
+
+    @Value("${device-metrics.buffer.consumer:}")
+    private String consumer;
+
+    @Value("${device-metrics.queue.max-length:100000}")
+    private long maxLength;
+
+    /**
+     * 其他消费者的待确认数据空闲超过该时间（毫秒）后认领到本消费者
+     */
+    @Value("${device-metrics.buffer.claim-idle-ms:60000}")
+    private long claimIdleMs;
+
+    /**
+     * 单次认领扫描的最大页数
+     */
+    @Value("${device-metrics.buffer.claim-max-pages:20}")
+    private int claimMaxPages;
+
+    /**
+     * 是否正在重读本消费者的待确认数据，以及重读游标
+     */
+    private volatile boolean readPending = true;
+    private volatile String pendingCursor = "0";
+    /**
+     * 已取出尚未确认的消息ID，重读待确认数据时跳过，避免并行批次重复处理
+     */
+    private final Set<String> inflight = ConcurrentHashMap.newKeySet();
+
+    public RedisStreamDeviceMetricsBuffer(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (consumer == null || consumer.isEmpty()) {
+            try {
+                consumer = InetAddress.getLocalHost().getHostName();
+            } catch (Exception e) {
+                consumer = "default";
+            }
+        }
+        try {
+            execute("XGROUP", "CREATE", streamKey, group, "0", "MKSTREAM");
+        } catch (DataAccessException e) {
+            // BUSYGROUP：消费组已存在
+            if (e.getMessage() == null || !e.getMessage().contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+        log.info("设备指标缓冲: redis-stream, key={}, group={}, consumer={}", streamKey, group, consumer);
+    }
+
+    @Override
+    public boolean offer(DeviceMetrics m) {
+        List<String> args = new ArrayList<>(24);
+        args.add(BOUNDED_XADD_SCRIPT);
+        args.add("1");
+        args.add(streamKey);
+        args.add(String.valueOf(maxLength));
+        put(args, "deviceType", m.getDeviceType());
+        put(args, "deviceId", m.getDeviceId());
+        put(args, "msgId", m.getMsgId());
+        put(args, "coilTemperature", m.getCoilTemperature());
+        put(args, "machineTemperature", m.getMachineTemperature());
+        put(args, "pumpFlowRate", m.getPumpFlowRate());
+        put(args, "createTime", m.getCreateTime());
+        put(args, "serverTime", m.getServerTime());
+        try {
+            if (execute("EVAL", args.toArray(new String[0])) == null) {
+                log.warn("设备指标 Redis Stream 已达容量上限，拒绝写入: deviceId={}, msgId={}", m.getDeviceId(), m.getMsgId());
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("设备指标写入 Redis Stream 失败: deviceId={}, msgId={}", m.getDeviceId(), m.getMsgId(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized Batch poll(int maxCount) {
+        while (readPending) {
+            Batch batch = read(pendingCursor, maxCount);
+            if (batch == null) {
+                // 待确认数据已读完，切换为读取新消息
+                readPending = false;
+                pendingCursor = "0";
+            } else if (!batch.isEmpty()) {
+                return batch;
+            }
+        }
+        Batch batch = read(">", maxCount);
+        return batch == null ? Batch.empty() : batch;
+    }
+
+    @Override
+    public void ack(Batch batch) {
+        if (batch.getReceipts().isEmpty()) {
+            return;
+        }
+        List<String> args = new ArrayList<>(batch.getReceipts().size() + 2);
+        args.add(streamKey);
+        args.add(group);
+        args.addAll(batch.getReceipts());
+        try {
+            execute("XACK", args.toArray(new String[0]));
+            // 已入库的条目直接删除，使 XLEN 反映真实积压量
+            args.remove(1);
+            execute("XDEL", args.toArray(new String[0]));
+        } finally {
+            inflight.removeAll(batch.getReceipts());
+        }
+    }
+
+    @Override
+    public void nack(Batch batch) {
+        // 不确认，数据留在待确认列表中，下次从头重读
+        inflight.removeAll(batch.getReceipts());
+        synchronized (this) {
+            readPending = true;
+            pendingCursor = "0";
+        }
+    }
+
+    /**
+     * 认领其他消费者空闲超时的待确认数据（消费者崩溃或重启后改名），认领后由本消费者按待确认数据重读入库。
+     * XAUTOCLAIM 需要 Redis 6.2，这里用 XPENDING 扫描加 XCLAIM 实现
+     */
+    @Scheduled(fixedDelayString = "${device-metrics.buffer.claim-interval-ms:30000}")
+    public void claimIdle() {
+        try {
+            int claimed = 0;
+            String start = "-";
+            for (int page = 0; page < claimMaxPages; page++) {
+                // 扩展格式：[[id, 消费者, 空闲毫秒, 投递次数], ...]
+                Object reply = execute("XPENDING", streamKey, group, start, "+", String.valueOf(CLAIM_PAGE_SIZE));
+                if (!(reply instanceof List) || ((List<?>) reply).isEmpty()) {
+                    break;
+                }
+                List<?> entries = (List<?>) reply;
+                List<String> ids = new ArrayList<>();
+                String lastId = null;
+                for (Object e : entries) {
+                    List<?> entry = (List<?>) e;
+                    lastId = str(entry.get(0));
+                    long idle = Long.parseLong(str(entry.get(2)));
+                    if (!consumer.equals(str(entry.get(1))) && idle >= claimIdleMs) {
+                        ids.add(lastId);
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    List<String> args = new ArrayList<>(ids.size() + 4);
+                    args.add(streamKey);
+                    args.add(group);
+                    args.add(consumer);
+                    args.add(String.valueOf(claimIdleMs));
+                    args.addAll(ids);
+                    // JUSTID：只转移归属，不增加投递次数，数据由重读待确认列表取出
+                    args.add("JUSTID");
+                    Object result = execute("XCLAIM", args.toArray(new String[0]));
+                    claimed += result instanceof List ? ((List<?>) result).size() : 0;
+                }
+                if (entries.size() < CLAIM_PAGE_SIZE) {
+                    break;
+                }
+                start = nextId(lastId);
+            }
+            if (claimed > 0) {
+                log.warn("认领其他消费者空闲超时的设备指标数据: 数量={}, consumer={}", claimed, consumer);
+                synchronized (this) {
+                    readPending = true;
+                    pendingCursor = "0";
+                }
+            }
+        } catch (Exception e) {
+            log.error("认领空闲待确认设备指标数据失败", e);
+        }
+    }
+
+    /**
+     * Stream ID 的下一个值，用于 XPENDING 分页（排他区间语法需要 Redis 6.2）
+     */
+    private static String nextId(String id) {
+        int dash = id.indexOf('-');
+        return id.substring(0, dash) + "-" + (Long.parseLong(id.substring(dash + 1)) + 1);
+    }
+
+    /**
+     * 可读取的积压：尚未投递给任何消费者的条目（已确认的条目已 XDEL，XLEN 减去消费组待确认数），
+     * 加上正在重读时本消费者尚未取出的待确认条目。属于其他消费者的待确认条目不计入，避免刷写线程空转
+     */
+    @Override
+    public long size() {
+        Object len = execute("XLEN", streamKey);
+        long length = len instanceof Long ? (Long) len : 0L;
+        if (length == 0) {
+            return 0L;
+        }
+        // XPENDING 摘要：[总数, 最小ID, 最大ID, [[消费者, 数量], ...]]
+        Object reply = execute("XPENDING", streamKey, group);
+        long pendingTotal = 0;
+        long ownPending = 0;
+        if (reply instanceof List && !((List<?>) reply).isEmpty()) {
+            List<?> summary = (List<?>) reply;
+            pendingTotal = summary.get(0) instanceof Long ? (Long) summary.get(0) : 0L;
+            if (summary.size() > 3 && summary.get(3) instanceof List) {
+                for (Object c : (List<?>) summary.get(3)) {
+                    List<?> pair = (List<?>) c;
+                    if (consumer.equals(str(pair.get(0)))) {
+                        ownPending = Long.parseLong(str(pair.get(1)));
+                    }
+                }
+            }
+        }
+        long readable = Math.max(0L, length - pendingTotal);
+        if (readPending) {
+            readable += Math.max(0L, ownPending - inflight.size());
+        }
+        return readable;
+    }
+
+    @Override
+    public boolean isDurable() {
+        return true;
+    }
+
+    /**
+     * 读取一批数据，id 为 ">" 时读新消息，否则从该游标起重读待确认数据。
+     * 重读待确认数据且已无更多时返回 null
+     */
+    private Batch read(String id, int maxCount) {
+        Object reply = execute("XREADGROUP", "GROUP", group, consumer, "COUNT", String.valueOf(maxCount),
+                "STREAMS", streamKey, id);
+        List<Object> entries = entriesOf(reply);
+        boolean pending = !">".equals(id);
+        if (entries.isEmpty()) {
+            return pending ? null : Batch.empty();
+        }
+        List<DeviceMetrics> items = new ArrayList<>(entries.size());
+        List<String> receipts = new ArrayList<>(entries.size());
+        List<String> orphan = new ArrayList<>();
+        String lastId = null;
+        for (Object e : entries) {
+            List<?> entry = (List<?>) e;
+            String entryId = str(entry.get(0));
+            lastId = entryId;
+            Object fields = entry.size() > 1 ? entry.get(1) : null;
+            if (!(fields instanceof List)) {
+                // 已被删除的条目（如旧版本 MAXLEN 裁剪），只剩待确认记录
+                orphan.add(entryId);
+                continue;
+            }
+            if (pending && inflight.contains(entryId)) {
+                continue;
+            }
+            items.add(toMetrics((List<?>) fields));
+            receipts.add(entryId);
+        }
+        if (pending) {
+            pendingCursor = lastId;
+        }
+        if (!orphan.isEmpty()) {
+            ack(new Batch(Collections.emptyList(), orphan));
+        }
+        inflight.addAll(receipts);
+        return new Batch(items, receipts);
+    }
+
+    private DeviceMetrics toMetrics(List<?> fields) {
+        DeviceMetrics m = new DeviceMetrics();
+        for (int i = 0; i + 1 < fields.size(); i += 2) {
+            String value = str(fields.get(i + 1));
+            switch (str(fields.get(i))) {
+                case "deviceType":
+                    m.setDeviceType(value);
+                    break;
+                case "deviceId":
+                    m.setDeviceId(value);
+                    break;
+                case "msgId":
+                    m.setMsgId(value);
+                    break;
+                case "coilTemperature":
+                    m.setCoilTemperature(new BigDecimal(value));
+                    break;
+                case "machineTemperature":
+                    m.setMachineTemperature(new BigDecimal(value));
+                    break;
+                case "pumpFlowRate":
+                    m.setPumpFlowRate(new BigDecimal(value));
+                    break;
+                case "createTime":
+                    m.setCreateTime(LocalDateTime.parse(value, DATETIME_FORMATTER));
+                    break;
+                case "serverTime":
+                    m.setServerTime(LocalDateTime.parse(value, DATETIME_FORMATTER));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return m;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> entriesOf(Object reply) {
+        // [[stream, [[id, [field, value, ...]], ...]]]
+        if (!(reply instanceof List) || ((List<?>) reply).isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<?> stream = (List<?>) ((List<?>) reply).get(0);
+        if (stream.size() < 2 || !(stream.get(1) instanceof List)) {
+            return Collections.emptyList();
+        }
+        return (List<Object>) stream.get(1);
+    }
+
+    private static void put(List<String> args, String field, Object value) {
+        if (value == null) {
+            return;
+        }
+        args.add(field);
+        if (value instanceof BigDecimal) {
+            args.add(((BigDecimal) value).toPlainString());
+        } else if (value instanceof LocalDateTime) {
+            args.add(((LocalDateTime) value).format(DATETIME_FORMATTER));
+        } else {
+            args.add(value.toString());
+        }
+    }
+
+    private static String str(Object o) {
+        return o instanceof byte[] ? new String((byte[]) o, StandardCharsets.UTF_8) : String.valueOf(o);
+    }
+
+    private Object execute(String command, String... args) {
+        byte[][] raw = new byte[args.length][];
+        for (int i = 0; i < args.length; i++) {
+            raw[i] = args[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute(command, raw));
+    }
+}
@@ -0,0 +1,91 @@
+package cc.mrbird.febs.common.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界无锁环形队列（多生产者、多消费者）
+ * 每个槽位带一个序号，生产者/消费者通过 CAS 抢占位置，槽位序号表明该位置当前可写还是可读，
+ * 入队与出队均不加锁。容量会向上取整为 2 的幂。
+ *
+ * @param <E> 元素类型
+ */
+public final class MpmcRingBuffer<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequence;
+    private final AtomicLong enqueuePos = new AtomicLong();
+    private final AtomicLong dequeuePos = new AtomicLong();
+
+    public MpmcRingBuffer(int capacity) {
+        if (capacity < 2) {
+            capacity = 2;
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    /**
+     * 入队，队列已满时立即返回 false
+     */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        while (true) {
+            long pos = enqueuePos.get();
+            int idx = (int) (pos & mask);
+            long dif = sequence.get(idx) - pos;
+            if (dif == 0) {
+                if (enqueuePos.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(idx, e);
+                    // 发布：序号更新对消费者可见时元素已写入
+                    sequence.lazySet(idx, pos + 1);
+                    return true;
+                }
+            } else if (dif < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 出队，队列为空时立即返回 null
+     */
+    public E poll() {
+        while (true) {
+            long pos = dequeuePos.get();
+            int idx = (int) (pos & mask);
+            long dif = sequence.get(idx) - (pos + 1);
+            if (dif == 0) {
+                if (dequeuePos.compareAndSet(pos, pos + 1)) {
+                    E e = buffer.get(idx);
+                    buffer.lazySet(idx, null);
+                    sequence.lazySet(idx, pos + mask + 1);
+                    return e;
+                }
+            } else if (dif < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 近似元素数量（并发修改时仅供监控参考）
+     */
+    public int size() {
+        long size = enqueuePos.get() - dequeuePos.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,50 @@
+package cc.mrbird.febs.cos.controller;
+
+
+import cc.mrbird.febs.cos.service.IDeviceMetricsService;
+import cc.mrbird.febs.common.utils.R;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.InputStream;
+
+/**
+ * 设备指标数据 控制层
+ *
+ * @author FanK
+ */
+@Slf4j
+@RestController
+@RequestMapping("/cos/device-metrics")
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
+public class DeviceMetricsController {
+
+    private final IDeviceMetricsService deviceMetricsService;
+
+    /**
+     * 历史数据回灌：上传 CSV，逐行流式经 LOAD DATA LOCAL INFILE 写入
+     * 需开启 device-metrics.writer.load-data-enabled，并在数据源连接串中加入 allowLoadLocalInfile=true
+     *
+     * @param file CSV 文件
+     * @return 写入行数
+     */
+    @PostMapping("/import")
+    @RequiresPermissions("device-metrics:import")
+    public R importCsv(@RequestParam("file") MultipartFile file) {
+        if (file.isEmpty()) {
+            return R.error("文件为空");
+        }
+        try (InputStream in = file.getInputStream()) {
+            return R.ok(deviceMetricsService.importCsv(in));
+        } catch (IllegalStateException e) {
+            return R.error(e.getMessage());
+        } catch (Exception e) {
+            log.error("设备指标数据回灌失败", e);
+            return R.error("回灌失败: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package cc.mrbird.febs.cos.controller;
+
+
+import cc.mrbird.febs.common.service.DeviceMetricsDeadLetterService;
+import cc.mrbird.febs.common.utils.R;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * 设备指标死信队列 控制层
+ *
+ * @author FanK
+ */
+@RestController
+@RequestMapping("/cos/device-metrics/dlq")
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
+public class DeviceMetricsDeadLetterController {
+
+    private final DeviceMetricsDeadLetterService deviceMetricsDeadLetterService;
+
+    /**
+     * 各队列死信数量
+     *
+     * @return 结果
+     */
+    @GetMapping("/stats")
+    public R stats() {
+        return R.ok(deviceMetricsDeadLetterService.stats());
+    }
+
+    /**
+     * 查看死信
+     *
+     * @param queue  retry（等待重试）、parked（已搁置）或 inflight（重试处理中）
+     * @param offset 起始位置
+     * @param limit  条数
+     * @return 结果
+     */
+    @GetMapping("/list")
+    public R list(@RequestParam(value = "queue", defaultValue = "parked") String queue,
+                  @RequestParam(value = "offset", defaultValue = "0") Integer offset,
+                  @RequestParam(value = "limit", defaultValue = "50") Integer limit) {
+        return R.ok(deviceMetricsDeadLetterService.list(queue, Math.max(offset, 0), Math.min(Math.max(limit, 1), 500)));
+    }
+
+    /**
+     * 批量重放已搁置的死信，由定时重试分批入库
+     *
+     * @param limit 最多重放条数
+     * @return 结果
+     */
+    @PostMapping("/replay")
+    public R replay(@RequestParam(value = "limit", defaultValue = "1000") Integer limit) {
+        return R.ok(deviceMetricsDeadLetterService.replay(Math.max(limit, 0)));
+    }
+}
@@ -0,0 +1,80 @@
+package cc.mrbird.febs.cos.controller;
+
+
+import cc.mrbird.febs.common.service.DeviceMetricsRollupService;
+import cc.mrbird.febs.common.utils.R;
+import lombok.RequiredArgsConstructor;
+import org.apache.shiro.authz.annotation.RequiresPermissions;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * 设备指标趋势 控制层
+ *
+ * @author FanK
+ */
+@RestController
+@RequestMapping("/cos/device-metrics/rollup")
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
+public class DeviceMetricsRollupController {
+
+    private final DeviceMetricsRollupService deviceMetricsRollupService;
+
+    /**
+     * 查询设备指标趋势，按时间范围与点数上限自动选择 1m/1h/1d 粒度
+     *
+     * @param deviceType 设备类型
+     * @param deviceId   设备编号
+     * @param from       开始时间
+     * @param to         结束时间
+     * @param maxPoints  点数上限
+     * @return 结果
+     */
+    @GetMapping("/trend")
+    @RequiresPermissions("device-metrics:view")
+    public R trend(@RequestParam("deviceType") String deviceType,
+                   @RequestParam("deviceId") String deviceId,
+                   @RequestParam("from") @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime from,
+                   @RequestParam("to") @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime to,
+                   @RequestParam(value = "maxPoints", defaultValue = "500") Integer maxPoints) {
+        if (!to.isAfter(from)) {
+            return R.error("结束时间需晚于开始时间");
+        }
+        return R.ok(deviceMetricsRollupService.trend(deviceType, deviceId, from, to, Math.min(Math.max(maxPoints, 1), 5000)));
+    }
+
+    /**
+     * 查询汇总写入失败、待重算的日期
+     *
+     * @return 结果
+     */
+    @GetMapping("/failed-days")
+    @RequiresPermissions("device-metrics:view")
+    public R failedDays() {
+        return R.ok(deviceMetricsRollupService.failedDays());
+    }
+
+    /**
+     * 由原始数据重算汇总（按天对齐），原始数据已超出保留期的日期不重算
+     *
+     * @param from 开始时间
+     * @param to   结束时间
+     * @return 结果
+     */
+    @PostMapping("/rebuild")
+    @RequiresPermissions("device-metrics:rebuild")
+    public R rebuild(@RequestParam("from") @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime from,
+                     @RequestParam("to") @DateTimeFormat(pattern = "yyyy-MM-dd HH:mm:ss") LocalDateTime to) {
+        if (!to.isAfter(from)) {
+            return R.error("结束时间需晚于开始时间");
+        }
+        LocalDateTime floor = deviceMetricsRollupService.rebuildableFrom();
+        if (floor != null && !to.isAfter(floor)) {
+            return R.error("原始数据已超出保留期，最早可重算到 " + floor.toLocalDate());
+        }
+        return R.ok(deviceMetricsRollupService.rebuild(from, to));
+    }
+}
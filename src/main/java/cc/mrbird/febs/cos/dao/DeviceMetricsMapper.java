@@ -2,6 +2,10 @@ package cc.mrbird.febs.cos.dao;
 
 import cc.mrbird.febs.cos.entity.DeviceMetrics;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.LinkedHashMap;
+import java.util.List;
 
 /**
  * 设备指标数据 mapper层
@@ -10,6 +14,42 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface DeviceMetricsMapper extends BaseMapper<DeviceMetrics> {
 
+    /**
+     * 多行 VALUES 批量插入，一条语句写入整批数据
+     *
+     * @param list 设备指标数据
+     * @return 插入行数
+     */
+    int insertBatch(@Param("list") List<DeviceMetrics> list);
+
+    /**
+     * 查询 device_metrics 分区（name、bound、tableRows），未分区时为空
+     *
+     * @return 分区列表
+     */
+    List<LinkedHashMap<String, Object>> selectPartitions();
+
+    /**
+     * 从 p_max 中拆出新分区
+     *
+     * @param partitions 新分区（name、bound），须按边界升序
+     */
+    void splitMaxPartition(@Param("partitions") List<LinkedHashMap<String, String>> partitions);
+
+    /**
+     * 将分区数据复制到归档表 device_metrics_archive
+     *
+     * @param name 分区名
+     * @return 复制行数
+     */
+    int archivePartition(@Param("name") String name);
+
+    /**
+     * 删除分区
+     *
+     * @param name 分区名
+     */
+    void dropPartition(@Param("name") String name);
 }
 
 
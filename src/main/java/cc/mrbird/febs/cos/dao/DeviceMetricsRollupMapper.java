@@ -0,0 +1,56 @@
+package cc.mrbird.febs.cos.dao;
+
+import cc.mrbird.febs.cos.entity.DeviceMetricsRollup;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 设备指标降采样汇总 mapper层
+ *
+ * @author FanK
+ */
+public interface DeviceMetricsRollupMapper extends BaseMapper<DeviceMetricsRollup> {
+
+    /**
+     * 批量合并汇总：时间桶不存在则插入，存在则合并 min/max/sum/count
+     *
+     * @param list 本批次预聚合结果
+     * @return 影响行数
+     */
+    int upsertBatch(@Param("list") Collection<DeviceMetricsRollup> list);
+
+    /**
+     * 查询设备指标趋势
+     *
+     * @param deviceType 设备类型
+     * @param deviceId   设备编号
+     * @param resolution 粒度
+     * @param from       开始时间（含）
+     * @param to         结束时间（不含）
+     * @return 时间桶列表，含 min/max/avg/count
+     */
+    List<LinkedHashMap<String, Object>> selectTrend(@Param("deviceType") String deviceType,
+                                                    @Param("deviceId") String deviceId,
+                                                    @Param("resolution") String resolution,
+                                                    @Param("from") LocalDateTime from,
+                                                    @Param("to") LocalDateTime to);
+
+    /**
+     * 删除时间范围内某粒度的汇总
+     */
+    int deleteRange(@Param("resolution") String resolution,
+                    @Param("from") LocalDateTime from,
+                    @Param("to") LocalDateTime to);
+
+    /**
+     * 由原始数据重新计算时间范围内某粒度的汇总
+     */
+    int rebuildRange(@Param("resolution") String resolution,
+                     @Param("from") LocalDateTime from,
+                     @Param("to") LocalDateTime to);
+}
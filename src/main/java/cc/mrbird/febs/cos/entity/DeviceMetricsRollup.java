@@ -0,0 +1,73 @@
+package cc.mrbird.febs.cos.entity;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+/**
+ * 设备指标降采样汇总（1m/1h/1d）
+ *
+ * @author FanK
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("device_metrics_rollup")
+public class DeviceMetricsRollup implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 设备类型
+     */
+    private String deviceType;
+
+    /**
+     * 设备编号
+     */
+    private String deviceId;
+
+    /**
+     * 粒度：1m/1h/1d
+     */
+    private String resolution;
+
+    /**
+     * 时间桶起始时间
+     */
+    private LocalDateTime bucketTime;
+
+    /**
+     * 上报次数
+     */
+    private Integer sampleCount;
+
+    private BigDecimal coilMin;
+
+    private BigDecimal coilMax;
+
+    private BigDecimal coilSum;
+
+    private Integer coilCount;
+
+    private BigDecimal machineMin;
+
+    private BigDecimal machineMax;
+
+    private BigDecimal machineSum;
+
+    private Integer machineCount;
+
+    private BigDecimal pumpMin;
+
+    private BigDecimal pumpMax;
+
+    private BigDecimal pumpSum;
+
+    private Integer pumpCount;
+}
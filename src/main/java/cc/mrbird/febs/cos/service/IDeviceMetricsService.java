@@ -3,6 +3,10 @@ package cc.mrbird.febs.cos.service;
 import cc.mrbird.febs.cos.entity.DeviceMetrics;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -19,6 +23,27 @@ public interface IDeviceMetricsService extends IService<DeviceMetrics> {
      * @return 是否成功
      */
     boolean batchInsert(List<DeviceMetrics> metricsList);
+
+    /**
+     * 通过 LOAD DATA LOCAL INFILE 流式写入，适用于历史数据回灌
+     * 需在数据源连接串中开启 allowLoadLocalInfile=true
+     *
+     * @param metrics 设备指标数据
+     * @return 写入行数
+     * @throws SQLException 数据库异常
+     */
+    long loadData(Iterator<DeviceMetrics> metrics) throws SQLException;
+
+    /**
+     * 从 CSV 流式回灌历史数据（逐行解析后经 LOAD DATA 写入）
+     * 列顺序：device_type,device_id,coil_temperature,machine_temperature,pump_flow_rate,msg_id,create_time,server_time
+     *
+     * @param in CSV 输入流（UTF-8）
+     * @return 写入行数
+     * @throws IOException  读取异常
+     * @throws SQLException 数据库异常
+     */
+    long importCsv(InputStream in) throws IOException, SQLException;
 }
 
 
@@ -4,11 +4,30 @@ import cc.mrbird.febs.cos.dao.DeviceMetricsMapper;
 import cc.mrbird.febs.cos.entity.DeviceMetrics;
 import cc.mrbird.febs.cos.service.IDeviceMetricsService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.mysql.cj.jdbc.JdbcStatement;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * 设备指标数据 实现层
@@ -19,6 +38,43 @@ import java.util.List;
 @Service
 public class DeviceMetricsServiceImpl extends ServiceImpl<DeviceMetricsMapper, DeviceMetrics> implements IDeviceMetricsService {
 
+    /**
+     * 单行 VALUES 的固定开销估算（括号、分隔符、数值与时间字段）
+     */
+    private static final int ROW_OVERHEAD_BYTES = 120;
+    private static final int STATEMENT_OVERHEAD_BYTES = 256;
+    private static final DateTimeFormatter DATETIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String LOAD_DATA_SQL = "LOAD DATA LOCAL INFILE 'device_metrics.tsv' INTO TABLE device_metrics "
+            + "CHARACTER SET utf8mb4 FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' "
+            + "(device_type, device_id, coil_temperature, machine_temperature, pump_flow_rate, msg_id, create_time, server_time)";
+
+    @Autowired
+    private DataSource dataSource;
+
+    /**
+     * 单条 INSERT 语句的字节预算，需小于 MySQL max_allowed_packet
+     */
+    @Value("${device-metrics.writer.max-statement-bytes:1048576}")
+    private int maxStatementBytes;
+
+    /**
+     * 单条 INSERT 语句的最大行数
+     */
+    @Value("${device-metrics.writer.max-statement-rows:5000}")
+    private int maxStatementRows;
+
+    /**
+     * LOAD DATA 模式每次发送的行数
+     */
+    @Value("${device-metrics.writer.load-data-chunk-rows:50000}")
+    private int loadDataChunkRows;
+
+    /**
+     * 是否开启 LOAD DATA 回灌模式，开启前需在数据源连接串中加入 allowLoadLocalInfile=true
+     */
+    @Value("${device-metrics.writer.load-data-enabled:false}")
+    private boolean loadDataEnabled;
+
     @Override
     @Transactional(rollbackFor = Exception.class)
     public boolean batchInsert(List<DeviceMetrics> metricsList) {
@@ -26,12 +82,205 @@ public class DeviceMetricsServiceImpl extends ServiceImpl<DeviceMetricsMapper, D
             return true;
         }
         try {
-            return this.saveBatch(metricsList, 500);
+            // 按字节预算切分为若干条多行 INSERT
+            int from = 0;
+            int bytes = STATEMENT_OVERHEAD_BYTES;
+            for (int i = 0; i < metricsList.size(); i++) {
+                int rowBytes = estimateRowBytes(metricsList.get(i));
+                if (i > from && (bytes + rowBytes > maxStatementBytes || i - from >= maxStatementRows)) {
+                    baseMapper.insertBatch(metricsList.subList(from, i));
+                    from = i;
+                    bytes = STATEMENT_OVERHEAD_BYTES;
+                }
+                bytes += rowBytes;
+            }
+            baseMapper.insertBatch(metricsList.subList(from, metricsList.size()));
+            return true;
         } catch (Exception e) {
             log.error("批量插入设备指标数据失败", e);
             throw e;
         }
     }
-}
 
+    @Override
+    public long loadData(Iterator<DeviceMetrics> metrics) throws SQLException {
+        if (!loadDataEnabled) {
+            throw new IllegalStateException("未开启 LOAD DATA 回灌模式（device-metrics.writer.load-data-enabled）");
+        }
+        long total = 0;
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            JdbcStatement mysqlStatement = statement.unwrap(JdbcStatement.class);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(loadDataChunkRows * 96);
+            StringBuilder line = new StringBuilder(128);
+            int rows = 0;
+            while (metrics.hasNext()) {
+                appendRow(line, metrics.next());
+                byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+                buffer.write(bytes, 0, bytes.length);
+                line.setLength(0);
+                if (++rows >= loadDataChunkRows) {
+                    total += load(statement, mysqlStatement, buffer);
+                    rows = 0;
+                }
+            }
+            if (rows > 0) {
+                total += load(statement, mysqlStatement, buffer);
+            }
+        } catch (SQLException e) {
+            log.error("LOAD DATA 写入设备指标数据失败，已写入={}（需在连接串中开启 allowLoadLocalInfile=true）", total, e);
+            throw e;
+        }
+        return total;
+    }
+
+    @Override
+    public long importCsv(InputStream in) throws IOException, SQLException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        CsvIterator rows = new CsvIterator(reader);
+        long total = loadData(rows);
+        if (rows.error != null) {
+            throw rows.error;
+        }
+        log.info("设备指标数据回灌完成: 行数={}, 跳过={}", total, rows.skipped);
+        return total;
+    }
+
+    /**
+     * 逐行解析 CSV，不在内存中保留整个文件；列顺序：
+     * device_type,device_id,coil_temperature,machine_temperature,pump_flow_rate,msg_id,create_time,server_time
+     * 以 device_type 开头的行视为表头，列数不足或格式错误的行跳过
+     */
+    private static final class CsvIterator implements Iterator<DeviceMetrics> {
+        private final BufferedReader reader;
+        private DeviceMetrics next;
+        private IOException error;
+        private long skipped;
+
+        CsvIterator(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && error == null) {
+                String line;
+                try {
+                    line = reader.readLine();
+                } catch (IOException e) {
+                    error = e;
+                    return false;
+                }
+                if (line == null) {
+                    return false;
+                }
+                if (line.trim().isEmpty() || line.startsWith("device_type")) {
+                    continue;
+                }
+                next = parseCsvLine(line);
+                if (next == null) {
+                    skipped++;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public DeviceMetrics next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            DeviceMetrics m = next;
+            next = null;
+            return m;
+        }
+    }
+
+    private static DeviceMetrics parseCsvLine(String line) {
+        String[] f = line.split(",", -1);
+        if (f.length < 8 || f[0].trim().isEmpty() || f[1].trim().isEmpty()) {
+            return null;
+        }
+        try {
+            DeviceMetrics m = new DeviceMetrics();
+            m.setDeviceType(f[0].trim());
+            m.setDeviceId(f[1].trim());
+            m.setCoilTemperature(decimal(f[2]));
+            m.setMachineTemperature(decimal(f[3]));
+            m.setPumpFlowRate(decimal(f[4]));
+            m.setMsgId(f[5].trim().isEmpty() ? null : f[5].trim());
+            m.setCreateTime(LocalDateTime.parse(f[6].trim(), DATETIME_FORMATTER));
+            m.setServerTime(f[7].trim().isEmpty() ? m.getCreateTime() : LocalDateTime.parse(f[7].trim(), DATETIME_FORMATTER));
+            return m;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static BigDecimal decimal(String s) {
+        return s.trim().isEmpty() ? null : new BigDecimal(s.trim());
+    }
+
+    private long load(Statement statement, JdbcStatement mysqlStatement, ByteArrayOutputStream buffer) throws SQLException {
+        mysqlStatement.setLocalInfileInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+        buffer.reset();
+        try {
+            return statement.executeUpdate(LOAD_DATA_SQL);
+        } finally {
+            mysqlStatement.setLocalInfileInputStream(null);
+        }
+    }
+
+    private static int estimateRowBytes(DeviceMetrics m) {
+        return ROW_OVERHEAD_BYTES + length(m.getDeviceType()) + length(m.getDeviceId()) + length(m.getMsgId());
+    }
+
+    private static int length(String s) {
+        // utf8mb4 最坏情况按 4 字节估算
+        return s == null ? 4 : s.length() * 4;
+    }
+
+    private static void appendRow(StringBuilder sb, DeviceMetrics m) {
+        appendField(sb, m.getDeviceType()).append('\t');
+        appendField(sb, m.getDeviceId()).append('\t');
+        appendField(sb, m.getCoilTemperature()).append('\t');
+        appendField(sb, m.getMachineTemperature()).append('\t');
+        appendField(sb, m.getPumpFlowRate()).append('\t');
+        appendField(sb, m.getMsgId()).append('\t');
+        appendField(sb, m.getCreateTime() == null ? LocalDateTime.now() : m.getCreateTime()).append('\t');
+        appendField(sb, m.getServerTime() == null ? LocalDateTime.now() : m.getServerTime()).append('\n');
+    }
 
+    private static StringBuilder appendField(StringBuilder sb, Object value) {
+        if (value == null) {
+            return sb.append("\\N");
+        }
+        if (value instanceof BigDecimal) {
+            return sb.append(((BigDecimal) value).toPlainString());
+        }
+        if (value instanceof LocalDateTime) {
+            return sb.append(((LocalDateTime) value).format(DATETIME_FORMATTER));
+        }
+        String s = value.toString();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb;
+    }
+}
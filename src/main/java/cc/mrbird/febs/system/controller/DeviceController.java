@@ -3,9 +3,11 @@ package cc.mrbird.febs.system.controller;
 import cc.mrbird.febs.common.authentication.JWTUtil;
 import cc.mrbird.febs.common.utils.FebsUtil;
 import cc.mrbird.febs.common.domain.FebsResponse;
+import cc.mrbird.febs.common.service.DeviceStateStore;
 import cc.mrbird.febs.system.domain.Device;
 import cc.mrbird.febs.system.service.DeviceService;
 import cc.mrbird.febs.system.websocket.DeviceWebSocketServer;
+import cc.mrbird.febs.system.websocket.WebSocketOutbound;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.core.metadata.IPage;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
@@ -21,6 +23,8 @@ import java.util.Date;
 public class DeviceController {
     @Autowired
     private DeviceService deviceService;
+    @Autowired
+    private DeviceStateStore deviceStateStore;
 
     @GetMapping
     public List<Device> list() {
@@ -53,6 +57,8 @@ public class DeviceController {
     public boolean update(@RequestBody Device device) {
         boolean updated = deviceService.updateById(device);
         if (updated) {
+            // 内存状态表以数据库为准重新加载
+            deviceStateStore.evict(device.getDeviceId());
             // 推送WebSocket状态变更，包含新字段
             try {
                 String msg = String.format(
@@ -74,7 +80,9 @@ public class DeviceController {
 
     @DeleteMapping("/{id}")
     public boolean delete(@PathVariable Long id) {
-        return deviceService.removeById(id);
+        boolean removed = deviceService.removeById(id);
+        deviceStateStore.evict(id);
+        return removed;
     }
     
     /**
@@ -139,4 +147,12 @@ public class DeviceController {
             return new FebsResponse().put("success", false).message("Redis连接检查失败: " + e.getMessage());
         }
     }
-} 
\ No newline at end of file
+    
+    /**
+     * WebSocket 各会话发送队列积压情况
+     */
+    @GetMapping("/wsOutboundStats")
+    public FebsResponse wsOutboundStats() {
+        return new FebsResponse().put("success", true).put("data", WebSocketOutbound.stats());
+    }
+}
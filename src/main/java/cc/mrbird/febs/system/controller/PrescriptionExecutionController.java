@@ -17,7 +17,9 @@ import org.springframework.web.bind.annotation.*;
 import java.util.Date;
 import java.util.List;
 import cc.mrbird.febs.system.service.DeviceService;
+import cc.mrbird.febs.system.service.PrescriptionClaimArbiter;
 import cc.mrbird.febs.system.domain.Device;
+import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
 
 @RestController
 @RequestMapping("/prescription-execution")
@@ -38,6 +40,9 @@ public class PrescriptionExecutionController {
     @Autowired
     private DeviceService deviceService;
 
+    @Autowired
+    private PrescriptionClaimArbiter claimArbiter;
+
     /**
      * 获取所有处方执行记录
      */
@@ -206,6 +211,14 @@ public class PrescriptionExecutionController {
             boolean success = prescriptionExecutionService.updateById(execution);
             
             if (success) {
+                // 重置为待领取后清除认领设备和本地认领缓存，允许任意设备重新认领
+                if (execution.getStatus() != null && execution.getStatus() == 0) {
+                    prescriptionExecutionService.update(new UpdateWrapper<PrescriptionExecution>()
+                            .set("claimed_device_no", null)
+                            .set("claimed_time", null)
+                            .eq("id", execution.getId()));
+                    claimArbiter.evict(execution.getId());
+                }
                 return new FebsResponse().put("success", true).message("处方执行记录更新成功");
             } else {
                 return new FebsResponse().put("success", false).message("处方执行记录更新失败");
@@ -224,6 +237,7 @@ public class PrescriptionExecutionController {
             boolean success = prescriptionExecutionService.removeById(id);
             
             if (success) {
+                claimArbiter.evict(id);
                 return new FebsResponse().put("success", true).message("处方执行记录删除成功");
             } else {
                 return new FebsResponse().put("success", false).message("处方执行记录删除失败");
@@ -242,6 +256,7 @@ public class PrescriptionExecutionController {
             boolean success = prescriptionExecutionService.removeByIds(ids);
             
             if (success) {
+                ids.forEach(claimArbiter::evict);
                 return new FebsResponse().put("success", true).message("批量删除成功");
             } else {
                 return new FebsResponse().put("success", false).message("批量删除失败");
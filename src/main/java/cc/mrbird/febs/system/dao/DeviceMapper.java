@@ -1,9 +1,21 @@
 package cc.mrbird.febs.system.dao;
 
+import cc.mrbird.febs.common.domain.DeviceState;
 import cc.mrbird.febs.system.domain.Device;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 @Mapper
 public interface DeviceMapper extends BaseMapper<Device> {
-} 
\ No newline at end of file
+
+    /**
+     * 批量回写心跳时间与计数类字段（不含在线状态与治疗状态，二者由状态变化时直接写入）
+     *
+     * @param list 设备状态快照
+     * @return 影响行数
+     */
+    int updateHeartbeatBatch(@Param("list") List<DeviceState> list);
+}
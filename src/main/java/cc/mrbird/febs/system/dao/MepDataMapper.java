@@ -6,6 +6,7 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -18,4 +19,19 @@ public interface MepDataMapper extends BaseMapper<MepData> {
      * 根据MEP记录ID查询MEP数据
      */
     List<MepDataVO> selectByMepRecordId(@Param("mepRecordId") Long mepRecordId);
+    
+    /**
+     * 根据MEP记录ID批量查询MEP数据，结果按MEP记录ID、id 排序
+     *
+     * @param mepRecordIds MEP记录ID，不能为空
+     */
+    List<MepDataVO> selectByMepRecordIds(@Param("mepRecordIds") Collection<Long> mepRecordIds);
+    
+    /**
+     * 多行 VALUES 批量插入MEP数据
+     *
+     * @param list MEP数据
+     * @return 插入行数
+     */
+    int insertBatch(@Param("list") List<MepData> list);
 }
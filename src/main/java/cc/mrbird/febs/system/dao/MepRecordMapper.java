@@ -23,4 +23,11 @@ public interface MepRecordMapper extends BaseMapper<MepRecord> {
      * 根据患者唯一标识查询MEP记录列表（包括关联的和独立的）
      */
     List<MepRecordVO> selectByPatientIdentifier(@Param("patientIdentifier") String patientIdentifier);
+    
+    /**
+     * 幂等插入，依赖 server_record_id 唯一索引
+     *
+     * @return 1 表示新插入，0 表示记录已存在
+     */
+    int insertIfAbsent(MepRecord record);
 }
@@ -3,7 +3,16 @@ package cc.mrbird.febs.system.dao;
 import cc.mrbird.febs.system.domain.PrescriptionExecution;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
 
 @Mapper
 public interface PrescriptionExecutionMapper extends BaseMapper<PrescriptionExecution> {
-} 
\ No newline at end of file
+
+    /**
+     * 条件认领：仅当记录仍为待领取(0)且未被其他设备认领时更新为已领取(1)
+     *
+     * @return 影响行数，1 表示认领成功
+     */
+    int claim(@Param("id") Long id, @Param("deviceNo") Integer deviceNo, @Param("deviceId") Long deviceId,
+              @Param("progress") String progress);
+}
@@ -0,0 +1,21 @@
+package cc.mrbird.febs.system.dao;
+
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+/**
+ * 记录上传日志Mapper
+ * 每次上传的 serverRecordId 在 record_upload_log 中唯一，用于识别重传
+ */
+@Mapper
+public interface RecordUploadLogMapper {
+    
+    /**
+     * 登记一次上传，依赖 server_record_id 主键
+     *
+     * @param serverRecordId 服务器记录ID
+     * @param recordType 记录类型：TR、MEP
+     * @return 1 首次上传，0 已登记（重传）
+     */
+    int insertIfAbsent(@Param("serverRecordId") String serverRecordId, @Param("recordType") String recordType);
+}
@@ -6,6 +6,7 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -18,4 +19,19 @@ public interface TbsPrescriptionMapper extends BaseMapper<TbsPrescription> {
      * 根据治疗记录ID查询TBS处方记录
      */
     List<TbsPrescriptionVO> selectByTreatmentRecordId(@Param("treatmentRecordId") Long treatmentRecordId);
+    
+    /**
+     * 根据治疗记录ID批量查询TBS处方记录，结果按治疗记录ID、id 排序
+     *
+     * @param treatmentRecordIds 治疗记录ID，不能为空
+     */
+    List<TbsPrescriptionVO> selectByTreatmentRecordIds(@Param("treatmentRecordIds") Collection<Long> treatmentRecordIds);
+    
+    /**
+     * 多行 VALUES 批量插入TBS处方记录
+     *
+     * @param list TBS处方记录
+     * @return 插入行数
+     */
+    int insertBatch(@Param("list") List<TbsPrescription> list);
 }
@@ -45,4 +45,11 @@ public interface TreatmentRecordMapper extends BaseMapper<TreatmentRecord> {
      * 查询治疗记录列表（不分页）
      */
     List<TreatmentRecordVO> selectTreatmentRecordList(@Param("query") Object query);
+    
+    /**
+     * 幂等插入，依赖 message_id（serverRecordId） 唯一索引
+     *
+     * @return 1 表示新插入，0 表示记录已存在
+     */
+    int insertIfAbsent(TreatmentRecord record);
 }
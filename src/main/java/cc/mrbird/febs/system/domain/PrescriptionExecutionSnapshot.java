@@ -0,0 +1,41 @@
+package cc.mrbird.febs.system.domain;
+
+import lombok.Data;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 待领取处方快照
+ * 上位机连接或重连时一次性下发全部待领取记录，替代逐条推送
+ */
+@Data
+public class PrescriptionExecutionSnapshot implements Serializable {
+    
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * 消息类型
+     */
+    private String messageType = "PRESCRIPTION_SNAPSHOT";
+    
+    /**
+     * 时间戳
+     */
+    private Date timestamp;
+    
+    /**
+     * 医院ID，为空表示全部医院
+     */
+    private Long hospitalId;
+    
+    /**
+     * 记录数
+     */
+    private Integer total;
+    
+    /**
+     * 待领取记录，按创建时间升序
+     */
+    private List<PrescriptionExecutionNotification> executions;
+}
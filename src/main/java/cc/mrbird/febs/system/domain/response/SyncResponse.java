@@ -1,6 +1,8 @@
 package cc.mrbird.febs.system.domain.response;
 
 import lombok.Data;
+
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -65,6 +67,55 @@ public class SyncResponse {
          * MEP记录列表
          */
         private List<MepRecordDTO> mepRecords;
+        
+        /**
+         * 同步模式：FULL（全量）、DELTA（增量）
+         */
+        private String syncMode;
+        
+        /**
+         * 增量同步：治疗记录的新水位，下次请求原样带回
+         */
+        private Cursor treatmentCursor;
+        
+        /**
+         * 增量同步：MEP记录的新水位，下次请求原样带回
+         */
+        private Cursor mepCursor;
+        
+        /**
+         * 增量同步：是否还有未返回的治疗记录，为 true 时应立即用新水位继续请求
+         */
+        private Boolean hasMoreTreatment;
+        
+        /**
+         * 增量同步：是否还有未返回的MEP记录
+         */
+        private Boolean hasMoreMep;
+    }
+    
+    /**
+     * 增量同步水位：已同步到的最后一条记录的更新时间和ID
+     * 记录按 (updateTime, id) 排序，下次只返回排在水位之后的新增或修改的记录
+     */
+    @Data
+    public static class Cursor {
+        /**
+         * 更新时间（毫秒时间戳，取自 DATETIME 列，精度为秒，毫秒部分恒为0）
+         */
+        private Long updateTime;
+        
+        /**
+         * 记录ID
+         */
+        private Long id;
+        
+        public static Cursor of(Date updateTime, Long id) {
+            Cursor cursor = new Cursor();
+            cursor.setUpdateTime(updateTime != null ? updateTime.getTime() : 0L);
+            cursor.setId(id);
+            return cursor;
+        }
     }
     
     public static SyncResponse success(SyncData data) {
@@ -0,0 +1,143 @@
+package cc.mrbird.febs.system.service;
+
+import cc.mrbird.febs.system.dao.PrescriptionExecutionMapper;
+import cc.mrbird.febs.system.domain.PrescriptionExecution;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 处方认领仲裁
+ * 以 prescription_execution 上的条件 UPDATE（status 0 -> 1，且 claimed_device_no 为空或为本设备）作为唯一裁决，
+ * 多个应用节点并发认领同一记录时只有一个能成功。
+ * 本地缓存只记录已裁决的认领结果（带秒级过期和容量上限），仅用于快速拒绝其他设备的认领，
+ * 本设备的重复认领始终经条件 UPDATE 与数据库确认，不会因其他节点上的重置而误判归属。
+ */
+@Service
+public class PrescriptionClaimArbiter {
+
+    public enum Outcome {
+        /**
+         * 认领成功
+         */
+        CLAIMED,
+        /**
+         * 本设备此前已认领（重复请求）
+         */
+        ALREADY_OWNED,
+        /**
+         * 已被其他设备认领或已进入后续状态
+         */
+        ALREADY_CLAIMED,
+        /**
+         * 记录不存在
+         */
+        NOT_FOUND
+    }
+
+    @Getter
+    public static class ClaimResult {
+        private final Outcome outcome;
+        /**
+         * 认领该记录的设备编号
+         */
+        private final Integer claimedDeviceNo;
+
+        ClaimResult(Outcome outcome, Integer claimedDeviceNo) {
+            this.outcome = outcome;
+            this.claimedDeviceNo = claimedDeviceNo;
+        }
+    }
+
+    @Autowired
+    private PrescriptionExecutionMapper prescriptionExecutionMapper;
+
+    /**
+     * 本地认领结果缓存过期时间（秒）
+     */
+    @Value("${prescription-execution.claim-cache.ttl-seconds:10}")
+    private long cacheTtlSeconds;
+
+    /**
+     * 本地认领结果缓存最大条数
+     */
+    @Value("${prescription-execution.claim-cache.max-size:10000}")
+    private long cacheMaxSize;
+
+    /**
+     * executionId -> 认领设备编号
+     */
+    private Cache<Long, Integer> claimed;
+
+    @PostConstruct
+    public void init() {
+        claimed = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(cacheMaxSize, 1))
+                .expireAfterWrite(Math.max(cacheTtlSeconds, 1), TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * 认领处方执行记录
+     *
+     * @param executionId 执行记录ID
+     * @param deviceNo    设备编号
+     * @param deviceId    设备ID，可为空
+     * @return 认领结果
+     */
+    public ClaimResult claim(Long executionId, Integer deviceNo, Long deviceId) {
+        return claim(executionId, deviceNo, deviceId, "已被设备" + deviceNo + "领取");
+    }
+
+    /**
+     * 认领处方执行记录
+     *
+     * @param executionId 执行记录ID
+     * @param deviceNo    设备编号，旧版上位机确认消息中可能为空
+     * @param deviceId    设备ID，可为空
+     * @param progress    认领成功后写入的进度描述
+     * @return 认领结果
+     */
+    public ClaimResult claim(Long executionId, Integer deviceNo, Long deviceId, String progress) {
+        // 缓存只用于快速拒绝其他设备；本设备的归属必须经数据库确认，记录可能已在其他节点被重置并由其他设备认领
+        Integer owner = claimed.getIfPresent(executionId);
+        if (owner != null && !owner.equals(deviceNo)) {
+            return new ClaimResult(Outcome.ALREADY_CLAIMED, owner);
+        }
+
+        int rows = prescriptionExecutionMapper.claim(executionId, deviceNo, deviceId, progress);
+        if (rows > 0) {
+            if (deviceNo != null) {
+                claimed.put(executionId, deviceNo);
+            }
+            return new ClaimResult(Outcome.CLAIMED, deviceNo);
+        }
+
+        // 未命中条件更新，读取当前状态判断原因
+        PrescriptionExecution current = prescriptionExecutionMapper.selectById(executionId);
+        if (current == null) {
+            return new ClaimResult(Outcome.NOT_FOUND, null);
+        }
+        Integer currentOwner = current.getClaimedDeviceNo();
+        if (currentOwner != null && current.getStatus() != null && current.getStatus() != 0) {
+            claimed.put(executionId, currentOwner);
+        }
+        if (currentOwner != null && currentOwner.equals(deviceNo)) {
+            return new ClaimResult(Outcome.ALREADY_OWNED, currentOwner);
+        }
+        return new ClaimResult(Outcome.ALREADY_CLAIMED, currentOwner);
+    }
+
+    /**
+     * 移除本地缓存的认领结果，记录被重置为待领取或删除时调用
+     */
+    public void evict(Long executionId) {
+        claimed.invalidate(executionId);
+    }
+}
@@ -1,14 +1,34 @@
 package cc.mrbird.febs.system.service;
 
+import cc.mrbird.febs.system.domain.Device;
+import cc.mrbird.febs.system.domain.Hospital;
+import cc.mrbird.febs.system.domain.Patient;
+import cc.mrbird.febs.system.domain.Prescription;
 import cc.mrbird.febs.system.domain.PrescriptionExecution;
 import cc.mrbird.febs.system.domain.PrescriptionExecutionNotification;
+import cc.mrbird.febs.system.domain.PrescriptionExecutionSnapshot;
+import cc.mrbird.febs.system.domain.User;
 import cc.mrbird.febs.system.websocket.PrescriptionExecutionWebSocketServer;
+import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
 /**
  * 处方执行记录通知服务
  */
+@Slf4j
 @Service
 public class PrescriptionExecutionNotificationService {
     
@@ -27,37 +47,22 @@ public class PrescriptionExecutionNotificationService {
     @Autowired
     private HospitalService hospitalService;
     
+    @Autowired
+    private PrescriptionExecutionService prescriptionExecutionService;
+    
     /**
      * 处理处方执行记录创建后的通知
      */
     public void notifyPrescriptionExecutionCreated(PrescriptionExecution execution) {
         try {
-            System.out.println("=== 开始构建WebSocket通知数据 ===");
-            System.out.println("执行记录ID: " + execution.getId());
-            
             // 构建通知数据
             PrescriptionExecutionNotification notification = buildNotification(execution);
             
-            System.out.println("=== 通知数据构建完成 ===");
-            System.out.println("消息类型: " + notification.getMessageType());
-            System.out.println("时间戳: " + notification.getTimestamp());
-            System.out.println("处方信息: " + (notification.getPrescriptionInfo() != null ? "已获取" : "未获取"));
-            System.out.println("患者信息: " + (notification.getPatientInfo() != null ? "已获取" : "未获取"));
-            System.out.println("设备信息: " + (notification.getDeviceInfo() != null ? "已获取" : "未获取"));
-            System.out.println("执行人信息: " + (notification.getExecutorInfo() != null ? "已获取" : "未获取"));
-            System.out.println("医院信息: " + (notification.getHospitalInfo() != null ? "已获取" : "未获取"));
-            
             // 通过WebSocket推送通知
-            System.out.println("=== 开始WebSocket广播 ===");
-            PrescriptionExecutionWebSocketServer.broadcastPrescriptionExecutionCreated(notification);
-            
-            System.out.println("=== WebSocket广播完成 ===");
-            System.out.println("处方执行记录创建通知已发送，执行记录ID: " + execution.getId());
+            PrescriptionExecutionWebSocketServer.broadcastPrescriptionExecutionCreated(execution.getHospitalId(), notification);
+            log.debug("处方执行记录创建通知已发送，执行记录ID: {}", execution.getId());
         } catch (Exception e) {
-            System.err.println("=== WebSocket通知发送失败 ===");
-            System.err.println("错误信息: " + e.getMessage());
-            System.err.println("执行记录ID: " + execution.getId());
-            e.printStackTrace();
+            log.error("处方执行记录创建通知发送失败，执行记录ID: {}", execution.getId(), e);
         }
     }
     
@@ -66,12 +71,71 @@ public class PrescriptionExecutionNotificationService {
      * 注意：此方法需要 public，供 WebSocketServer 调用
      */
     public PrescriptionExecutionNotification buildNotification(PrescriptionExecution execution) {
-        System.out.println("=== 开始构建通知数据 ===");
+        Prescription prescription = execution.getPrescriptionId() != null ? prescriptionService.getById(execution.getPrescriptionId()) : null;
+        Patient patient = execution.getPatientId() != null ? patientService.getById(execution.getPatientId()) : null;
+        // 广播模式下deviceId可能为null
+        Device device = execution.getDeviceId() != null ? deviceService.getById(execution.getDeviceId()) : null;
+        User executor = execution.getExecutorId() != null ? userService.getById(execution.getExecutorId()) : null;
+        Hospital hospital = execution.getHospitalId() != null ? hospitalService.getById(execution.getHospitalId()) : null;
+        return assemble(execution, prescription, patient, device, executor, hospital);
+    }
+    
+    /**
+     * 批量构建通知数据
+     * 关联的处方、患者、设备、执行人、医院各用一次 IN 查询加载，查询次数与记录数无关
+     *
+     * @param executions 执行记录
+     * @return 通知数据，顺序与 executions 一致
+     */
+    public List<PrescriptionExecutionNotification> buildNotifications(List<PrescriptionExecution> executions) {
+        if (executions == null || executions.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, Prescription> prescriptions = index(prescriptionService::listByIds, executions, PrescriptionExecution::getPrescriptionId, Prescription::getId);
+        Map<Long, Patient> patients = index(patientService::listByIds, executions, PrescriptionExecution::getPatientId, Patient::getId);
+        Map<Long, Device> devices = index(deviceService::listByIds, executions, PrescriptionExecution::getDeviceId, Device::getDeviceId);
+        Map<Long, User> executors = index(userService::listByIds, executions, PrescriptionExecution::getExecutorId, User::getUserId);
+        Map<Long, Hospital> hospitals = index(hospitalService::listByIds, executions, PrescriptionExecution::getHospitalId, Hospital::getHospitalId);
         
+        List<PrescriptionExecutionNotification> notifications = new ArrayList<>(executions.size());
+        for (PrescriptionExecution execution : executions) {
+            notifications.add(assemble(execution,
+                    prescriptions.get(execution.getPrescriptionId()),
+                    patients.get(execution.getPatientId()),
+                    devices.get(execution.getDeviceId()),
+                    executors.get(execution.getExecutorId()),
+                    hospitals.get(execution.getHospitalId())));
+        }
+        return notifications;
+    }
+    
+    /**
+     * 待领取处方快照，供上位机连接或重连时一次性同步
+     * 无论待领取记录多少，固定为 1 次执行记录查询 + 5 次关联 IN 查询
+     *
+     * @param hospitalId 医院ID，为 null 时返回全部医院
+     * @return 快照
+     */
+    public PrescriptionExecutionSnapshot pendingSnapshot(Long hospitalId) {
+        List<PrescriptionExecution> pending = prescriptionExecutionService.list(
+                new LambdaQueryWrapper<PrescriptionExecution>()
+                        .eq(PrescriptionExecution::getStatus, 0)
+                        .eq(hospitalId != null, PrescriptionExecution::getHospitalId, hospitalId)
+                        .orderByAsc(PrescriptionExecution::getCreatedAt));
+        PrescriptionExecutionSnapshot snapshot = new PrescriptionExecutionSnapshot();
+        snapshot.setTimestamp(new Date());
+        snapshot.setHospitalId(hospitalId);
+        snapshot.setExecutions(buildNotifications(pending));
+        snapshot.setTotal(snapshot.getExecutions().size());
+        return snapshot;
+    }
+    
+    private PrescriptionExecutionNotification assemble(PrescriptionExecution execution, Prescription prescription, Patient patient,
+                                                       Device device, User executor, Hospital hospital) {
         PrescriptionExecutionNotification notification = new PrescriptionExecutionNotification();
         
         // 根据状态设置消息类型
-        if (execution.getStatus() == 0) {
+        if (execution.getStatus() != null && execution.getStatus() == 0) {
             // 状态为0（待领取），使用广播消息类型
             notification.setMessageType("PRESCRIPTION_BROADCAST");
         } else {
@@ -79,131 +143,113 @@ public class PrescriptionExecutionNotificationService {
             notification.setMessageType("PRESCRIPTION_EXECUTION_CREATED");
         }
         
-        notification.setTimestamp(new java.util.Date());
+        notification.setTimestamp(new Date());
         notification.setExecutionId(execution.getId());
         notification.setExecutionStatus(execution.getStatus());
         
-        System.out.println("基础信息设置完成 - 执行ID: " + execution.getId() + ", 状态: " + execution.getStatus() + ", 消息类型: " + notification.getMessageType());
-        
-        // 获取处方信息
-        if (execution.getPrescriptionId() != null) {
-            System.out.println("正在查询处方信息，处方ID: " + execution.getPrescriptionId());
-            cc.mrbird.febs.system.domain.Prescription prescription = prescriptionService.getById(execution.getPrescriptionId());
-            if (prescription != null) {
-                System.out.println("处方信息查询成功: " + prescription.getPresPartName());
-                PrescriptionExecutionNotification.PrescriptionInfo prescriptionInfo = new PrescriptionExecutionNotification.PrescriptionInfo();
-                prescriptionInfo.setId(prescription.getId());
-                prescriptionInfo.setPresType(prescription.getPresType());
-                prescriptionInfo.setStatus(prescription.getStatus());
-                prescriptionInfo.setPresStrength(prescription.getPresStrength());
-                prescriptionInfo.setPresFreq(prescription.getPresFreq() != null ? prescription.getPresFreq().toString() : null);
-                prescriptionInfo.setLastTime(prescription.getLastTime() != null ? prescription.getLastTime().toString() : null);
-                prescriptionInfo.setPauseTime(prescription.getPauseTime());
-                prescriptionInfo.setRepeatCount(prescription.getRepeatCount());
-                prescriptionInfo.setTotalCount(prescription.getTotalCount());
-                prescriptionInfo.setTotalTime(prescription.getTotalTime());
-                prescriptionInfo.setPresPartId(prescription.getPresPartId());
-                prescriptionInfo.setPresPartName(prescription.getPresPartName());
-                prescriptionInfo.setStandardPresId(prescription.getStandardPresId());
-                prescriptionInfo.setStandardPresName(prescription.getStandardPresName());
-                prescriptionInfo.setTbsType(prescription.getTbsType());
-                prescriptionInfo.setInnerCount(prescription.getInnerCount());
-                prescriptionInfo.setInterFreq(prescription.getInterFreq() != null ? prescription.getInterFreq().toString() : null);
-                prescriptionInfo.setInterCount(prescription.getInterCount());
-                prescriptionInfo.setPeriods(prescription.getPeriods());
-                prescriptionInfo.setCreatedAt(prescription.getCreatedAt());
-                notification.setPrescriptionInfo(prescriptionInfo);
-            } else {
-                System.out.println("处方信息查询失败，处方ID: " + execution.getPrescriptionId());
-            }
-        } else {
-            System.out.println("处方ID为空，跳过处方信息查询");
+        // 处方信息
+        if (prescription != null) {
+            PrescriptionExecutionNotification.PrescriptionInfo prescriptionInfo = new PrescriptionExecutionNotification.PrescriptionInfo();
+            prescriptionInfo.setId(prescription.getId());
+            prescriptionInfo.setPresType(prescription.getPresType());
+            prescriptionInfo.setStatus(prescription.getStatus());
+            prescriptionInfo.setPresStrength(prescription.getPresStrength());
+            prescriptionInfo.setPresFreq(prescription.getPresFreq() != null ? prescription.getPresFreq().toString() : null);
+            prescriptionInfo.setLastTime(prescription.getLastTime() != null ? prescription.getLastTime().toString() : null);
+            prescriptionInfo.setPauseTime(prescription.getPauseTime());
+            prescriptionInfo.setRepeatCount(prescription.getRepeatCount());
+            prescriptionInfo.setTotalCount(prescription.getTotalCount());
+            prescriptionInfo.setTotalTime(prescription.getTotalTime());
+            prescriptionInfo.setPresPartId(prescription.getPresPartId());
+            prescriptionInfo.setPresPartName(prescription.getPresPartName());
+            prescriptionInfo.setStandardPresId(prescription.getStandardPresId());
+            prescriptionInfo.setStandardPresName(prescription.getStandardPresName());
+            prescriptionInfo.setTbsType(prescription.getTbsType());
+            prescriptionInfo.setInnerCount(prescription.getInnerCount());
+            prescriptionInfo.setInterFreq(prescription.getInterFreq() != null ? prescription.getInterFreq().toString() : null);
+            prescriptionInfo.setInterCount(prescription.getInterCount());
+            prescriptionInfo.setPeriods(prescription.getPeriods());
+            prescriptionInfo.setCreatedAt(prescription.getCreatedAt());
+            notification.setPrescriptionInfo(prescriptionInfo);
+        } else if (execution.getPrescriptionId() != null) {
+            log.debug("处方信息查询失败，处方ID: {}", execution.getPrescriptionId());
         }
         
-        // 获取患者信息
-        if (execution.getPatientId() != null) {
-            System.out.println("正在查询患者信息，患者ID: " + execution.getPatientId());
-            cc.mrbird.febs.system.domain.Patient patient = patientService.getById(execution.getPatientId());
-            if (patient != null) {
-                System.out.println("患者信息查询成功: " + patient.getName());
-                PrescriptionExecutionNotification.PatientInfo patientInfo = new PrescriptionExecutionNotification.PatientInfo();
-                patientInfo.setId(patient.getId());
-                patientInfo.setName(patient.getName());
-                patientInfo.setIdCard(patient.getIdCard());
-                patientInfo.setGender(patient.getGender());
-                patientInfo.setBirthday(patient.getBirthday());
-                patientInfo.setHisId(patient.getHisId());
-                patientInfo.setCode(patient.getCode());
-                notification.setPatientInfo(patientInfo);
-            } else {
-                System.out.println("患者信息查询失败，患者ID: " + execution.getPatientId());
-            }
-        } else {
-            System.out.println("患者ID为空，跳过患者信息查询");
+        // 患者信息
+        if (patient != null) {
+            PrescriptionExecutionNotification.PatientInfo patientInfo = new PrescriptionExecutionNotification.PatientInfo();
+            patientInfo.setId(patient.getId());
+            patientInfo.setName(patient.getName());
+            patientInfo.setIdCard(patient.getIdCard());
+            patientInfo.setGender(patient.getGender());
+            patientInfo.setBirthday(patient.getBirthday());
+            patientInfo.setHisId(patient.getHisId());
+            patientInfo.setCode(patient.getCode());
+            notification.setPatientInfo(patientInfo);
+        } else if (execution.getPatientId() != null) {
+            log.debug("患者信息查询失败，患者ID: {}", execution.getPatientId());
         }
         
-        // 获取设备信息（广播模式下deviceId可能为null）
-        if (execution.getDeviceId() != null) {
-            System.out.println("正在查询设备信息，设备ID: " + execution.getDeviceId());
-            cc.mrbird.febs.system.domain.Device device = deviceService.getById(execution.getDeviceId());
-            if (device != null) {
-                System.out.println("设备信息查询成功: " + device.getSn());
-                PrescriptionExecutionNotification.DeviceInfo deviceInfo = new PrescriptionExecutionNotification.DeviceInfo();
-                deviceInfo.setDeviceId(device.getDeviceId());
-                deviceInfo.setDeviceNo(device.getDeviceNo());        // 设置设备编号
-                deviceInfo.setDeviceType(device.getDeviceType());
-                deviceInfo.setSn(device.getSn());
-                deviceInfo.setStatus(device.getStatus());
-                deviceInfo.setLastHeartbeat(device.getLastHeartbeat());
-                notification.setDeviceInfo(deviceInfo);
-                
-                System.out.println("设备编号已设置: " + device.getDeviceNo());
-            } else {
-                System.out.println("设备信息查询失败，设备ID: " + execution.getDeviceId());
-            }
-        } else {
-            System.out.println("设备ID为空（广播模式），跳过设备信息查询");
+        // 设备信息
+        if (device != null) {
+            PrescriptionExecutionNotification.DeviceInfo deviceInfo = new PrescriptionExecutionNotification.DeviceInfo();
+            deviceInfo.setDeviceId(device.getDeviceId());
+            deviceInfo.setDeviceNo(device.getDeviceNo());        // 设置设备编号
+            deviceInfo.setDeviceType(device.getDeviceType());
+            deviceInfo.setSn(device.getSn());
+            deviceInfo.setStatus(device.getStatus());
+            deviceInfo.setLastHeartbeat(device.getLastHeartbeat());
+            notification.setDeviceInfo(deviceInfo);
+        } else if (execution.getDeviceId() != null) {
+            log.debug("设备信息查询失败，设备ID: {}", execution.getDeviceId());
         }
         
-        // 获取执行人信息
-        if (execution.getExecutorId() != null) {
-            System.out.println("正在查询执行人信息，执行人ID: " + execution.getExecutorId());
-            cc.mrbird.febs.system.domain.User user = userService.getById(execution.getExecutorId());
-            if (user != null) {
-                System.out.println("执行人信息查询成功: " + user.getUsername());
-                PrescriptionExecutionNotification.UserInfo userInfo = new PrescriptionExecutionNotification.UserInfo();
-                userInfo.setUserId(user.getUserId());
-                userInfo.setUsername(user.getUsername());
-                userInfo.setEmail(user.getEmail());
-                userInfo.setMobile(user.getMobile());
-                notification.setExecutorInfo(userInfo);
-            } else {
-                System.out.println("执行人信息查询失败，执行人ID: " + execution.getExecutorId());
-            }
-        } else {
-            System.out.println("执行人ID为空，跳过执行人信息查询");
+        // 执行人信息
+        if (executor != null) {
+            PrescriptionExecutionNotification.UserInfo userInfo = new PrescriptionExecutionNotification.UserInfo();
+            userInfo.setUserId(executor.getUserId());
+            userInfo.setUsername(executor.getUsername());
+            userInfo.setEmail(executor.getEmail());
+            userInfo.setMobile(executor.getMobile());
+            notification.setExecutorInfo(userInfo);
+        } else if (execution.getExecutorId() != null) {
+            log.debug("执行人信息查询失败，执行人ID: {}", execution.getExecutorId());
         }
         
-        // 获取医院信息
-        if (execution.getHospitalId() != null) {
-            System.out.println("正在查询医院信息，医院ID: " + execution.getHospitalId());
-            cc.mrbird.febs.system.domain.Hospital hospital = hospitalService.getById(execution.getHospitalId());
-            if (hospital != null) {
-                System.out.println("医院信息查询成功: " + hospital.getName());
-                PrescriptionExecutionNotification.HospitalInfo hospitalInfo = new PrescriptionExecutionNotification.HospitalInfo();
-                hospitalInfo.setHospitalId(hospital.getHospitalId());
-                hospitalInfo.setName(hospital.getName());
-                hospitalInfo.setAddress(hospital.getAddress());
-                hospitalInfo.setContact(hospital.getContact());
-                notification.setHospitalInfo(hospitalInfo);
-            } else {
-                System.out.println("医院信息查询失败，医院ID: " + execution.getHospitalId());
-            }
-        } else {
-            System.out.println("医院ID为空，跳过医院信息查询");
+        // 医院信息
+        if (hospital != null) {
+            PrescriptionExecutionNotification.HospitalInfo hospitalInfo = new PrescriptionExecutionNotification.HospitalInfo();
+            hospitalInfo.setHospitalId(hospital.getHospitalId());
+            hospitalInfo.setName(hospital.getName());
+            hospitalInfo.setAddress(hospital.getAddress());
+            hospitalInfo.setContact(hospital.getContact());
+            notification.setHospitalInfo(hospitalInfo);
+        } else if (execution.getHospitalId() != null) {
+            log.debug("医院信息查询失败，医院ID: {}", execution.getHospitalId());
         }
         
-        System.out.println("=== 通知数据构建完成 ===");
         return notification;
     }
-} 
\ No newline at end of file
+    
+    /**
+     * 收集去重后的关联ID，一次 IN 查询加载并按ID建立索引
+     */
+    private static <T> Map<Long, T> index(Function<Collection<Long>, Collection<T>> loader, List<PrescriptionExecution> executions,
+                                          Function<PrescriptionExecution, Long> foreignKey, Function<T, Long> primaryKey) {
+        Set<Long> ids = new LinkedHashSet<>();
+        for (PrescriptionExecution execution : executions) {
+            Long id = foreignKey.apply(execution);
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<Long, T> result = new HashMap<>(ids.size() * 2);
+        for (T entity : loader.apply(ids)) {
+            result.put(primaryKey.apply(entity), entity);
+        }
+        return result;
+    }
+}
@@ -1,19 +1,145 @@
 package cc.mrbird.febs.system.service;
 
 import cc.mrbird.febs.system.domain.PrescriptionExecution;
+import com.baomidou.mybatisplus.core.conditions.update.LambdaUpdateWrapper;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 处方执行记录状态更新服务
+ * 设备上报的执行进度先进入按 executionId 合并的待写队列，同一记录在一个刷写周期内只保留最新一次进度，
+ * 由单线程写入器定时落库；完成、异常等终态立即提交写入。调用方无需等待数据库即可回复设备。
  */
+@Slf4j
 @Service
 public class PrescriptionExecutionStatusService {
 
+    private static final int STATUS_COMPLETED = 3;
+    private static final int STATUS_ERROR = 4;
+
     @Autowired
     private PrescriptionExecutionService prescriptionExecutionService;
 
+    /**
+     * executionId -> 最新一次未落库的状态
+     */
+    private final Map<Long, PrescriptionExecution> pendingUpdates = new ConcurrentHashMap<>();
+
+    /**
+     * 单线程写入，保证同一记录的进度与终态按提交顺序落库
+     */
+    private final ExecutorService writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "prescriptionStatusWriter");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * 应用停止中，定时刷写不再提交，剩余进度由 shutdown 落库
+     */
+    private volatile boolean stopping;
+
+    /**
+     * 提交执行进度（异步落库）
+     * 非终态进度按 executionId 合并，等待定时刷写；终态立即提交写入
+     */
+    public void submitExecutionProgress(Long executionId, String status, Integer progress, String message, Date updateTime) {
+        Integer newStatus = parseStatus(status);
+        PrescriptionExecution update = new PrescriptionExecution();
+        update.setId(executionId);
+        update.setStatus(newStatus);
+        update.setUpdatedAt(updateTime);
+        update.setProgress(buildProgress(newStatus, progress, message));
+        pendingUpdates.merge(executionId, update, PrescriptionExecutionStatusService::keepTerminal);
+        if (isTerminal(newStatus)) {
+            try {
+                writer.execute(() -> flush(executionId));
+            } catch (RejectedExecutionException e) {
+                // 写入器已关闭（应用停止中），终态直接在调用线程落库
+                flush(executionId);
+            }
+        }
+    }
+
+    /**
+     * 定时刷写合并后的进度
+     */
+    @Scheduled(fixedDelayString = "${prescription-execution.status-flush-ms:1000}")
+    public void flushPendingUpdates() {
+        if (stopping || pendingUpdates.isEmpty()) {
+            return;
+        }
+        try {
+            writer.execute(this::flushAll);
+        } catch (RejectedExecutionException e) {
+            log.debug("处方执行进度写入器已关闭，跳过定时刷写");
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopping = true;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+
+    private void flushAll() {
+        List<Long> ids = new ArrayList<>(pendingUpdates.keySet());
+        for (Long id : ids) {
+            flush(id);
+        }
+    }
+
+    private void flush(Long executionId) {
+        PrescriptionExecution update = pendingUpdates.remove(executionId);
+        if (update == null) {
+            return;
+        }
+        try {
+            // 只写变化的字段；非终态更新不覆盖已落库的终态（设备上报乱序时）
+            LambdaUpdateWrapper<PrescriptionExecution> wrapper = new LambdaUpdateWrapper<PrescriptionExecution>()
+                    .eq(PrescriptionExecution::getId, executionId)
+                    .notIn(!isTerminal(update.getStatus()), PrescriptionExecution::getStatus, STATUS_COMPLETED, STATUS_ERROR);
+            if (!prescriptionExecutionService.update(update, wrapper)) {
+                log.warn("处方执行进度未落库（记录不存在或已结束），ID: {}", executionId);
+            }
+        } catch (Exception e) {
+            log.error("处方执行进度落库失败，下个周期重试，ID: {}", executionId, e);
+            // 放回下个周期重试；期间又有新进度时，终态不会被非终态覆盖
+            pendingUpdates.merge(executionId, update, (newer, failed) -> keepTerminal(failed, newer));
+        }
+    }
+
+    /**
+     * 合并同一记录的两次更新：排队中的终态不会被后到的非终态进度替换
+     *
+     * @param queued 已排队的更新
+     * @param next   新提交的更新
+     */
+    private static PrescriptionExecution keepTerminal(PrescriptionExecution queued, PrescriptionExecution next) {
+        return isTerminal(queued.getStatus()) && !isTerminal(next.getStatus()) ? queued : next;
+    }
+
     /**
      * 更新处方执行记录状态
      */
@@ -92,16 +218,7 @@ public class PrescriptionExecutionStatusService {
             execution.setUpdatedAt(updateTime);
             
             // 更新进度描述
-            // 优先使用消息内容，如果没有消息则使用状态对应的默认描述
-            if (message != null && !message.trim().isEmpty()) {
-                execution.setProgress(message);
-            } else if (progress != null) {
-                // 如果有进度百分比，结合状态描述
-                execution.setProgress(getProgressDescription(newStatus) + " (" + progress + "%)");
-            } else {
-                // 否则使用默认状态描述
-                execution.setProgress(getProgressDescription(newStatus));
-            }
+            execution.setProgress(buildProgress(newStatus, progress, message));
             
             // 可以添加额外的字段来存储设备ID和消息
             // 如果有扩展字段，可以在这里设置
@@ -129,6 +246,23 @@ public class PrescriptionExecutionStatusService {
         }
     }
 
+    /**
+     * 进度描述：优先使用消息内容，其次为状态描述加进度百分比，否则为状态对应的默认描述
+     */
+    private String buildProgress(Integer status, Integer progress, String message) {
+        if (message != null && !message.trim().isEmpty()) {
+            return message;
+        }
+        if (progress != null) {
+            return getProgressDescription(status) + " (" + progress + "%)";
+        }
+        return getProgressDescription(status);
+    }
+
+    private static boolean isTerminal(Integer status) {
+        return status != null && (status == STATUS_COMPLETED || status == STATUS_ERROR);
+    }
+
     /**
      * 解析状态字符串为整数
      * 状态定义：0-待下发/1-已下发/2-执行中/3-完成/4-异常
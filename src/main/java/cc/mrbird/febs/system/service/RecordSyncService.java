@@ -16,6 +16,21 @@ public interface RecordSyncService {
      * @return 同步响应
      */
     SyncResponse syncPatientRecords(String patientIdentifier, String syncType, Integer requestDeviceNo);
+    
+    /**
+     * 增量同步：只返回水位之后新增或修改的记录，按 (updateTime, id) 升序分页
+     * 
+     * @param patientIdentifier 患者唯一标识
+     * @param syncType 同步类型：ALL、TREATMENT、MEP
+     * @param requestDeviceNo 请求设备编号
+     * @param treatmentCursor 治疗记录水位，为 null 时从头开始
+     * @param mepCursor MEP记录水位，为 null 时从头开始
+     * @param pageSize 每种记录本次最多返回的条数，为 null 时使用默认值
+     * @return 同步响应，包含新水位及是否还有更多记录
+     */
+    SyncResponse syncPatientRecordsDelta(String patientIdentifier, String syncType, Integer requestDeviceNo,
+                                         SyncResponse.Cursor treatmentCursor, SyncResponse.Cursor mepCursor,
+                                         Integer pageSize);
 }
 
 
@@ -21,6 +21,7 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.math.BigDecimal;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -43,6 +44,11 @@ public class MepRecordServiceImpl implements MepRecordService {
     @Autowired
     private PatientMapper patientMapper;
     
+    /**
+     * MEP数据单条批量 INSERT 的最大行数
+     */
+    private static final int BATCH_INSERT_ROWS = 500;
+    
     private final SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
     private final SimpleDateFormat yearFormat = new SimpleDateFormat("yyyy");
@@ -69,12 +75,13 @@ public class MepRecordServiceImpl implements MepRecordService {
                 log.info("生成patientIdentifier: {}", patientIdentifier);
             }
             
-            // 3. 生成服务器记录ID
-            String serverRecordId = ServerRecordIdGenerator.generateMepRecordId(deviceNo, localMepRecordId);
+            // 3. 生成服务器记录ID（由设备号、本地记录ID和记录时间确定，重复上传得到相同ID）
+            String serverRecordId = ServerRecordIdGenerator.generateMepRecordId(
+                    deviceNo, localMepRecordId, jsonNode.get("recordTime").asText());
             
-            // 4. 检查是否已存在相同的服务器记录ID（防止重复上传）
-            MepRecord existingRecord = getByServerRecordId(serverRecordId);
-            if (existingRecord != null) {
+            // 4. 幂等保存MEP记录主表（server_record_id 唯一），重复上传只消耗这一条语句
+            MepRecord mepRecord = buildMepRecord(jsonNode, patientIdentifier, serverRecordId, null);
+            if (mepRecordMapper.insertIfAbsent(mepRecord) == 0) {
                 log.warn("MEP记录已存在，serverRecordId: {}", serverRecordId);
                 return serverRecordId; // 返回已存在的ID
             }
@@ -84,28 +91,24 @@ public class MepRecordServiceImpl implements MepRecordService {
             Long treatmentRecordId = findOrCreateTreatmentRecord(jsonNode, patientIdentifier, deviceNo);
             if (treatmentRecordId != null) {
                 log.info("找到或创建了关联的治疗记录: treatmentRecordId={}", treatmentRecordId);
-            } else {
-                log.info("未找到关联的治疗记录，将独立保存MEP记录");
-            }
-            
-            // 6. 构建MEP记录实体
-            MepRecord mepRecord = buildMepRecord(jsonNode, patientIdentifier, serverRecordId, treatmentRecordId);
-            
-            // 7. 保存MEP记录主表
-            mepRecordMapper.insert(mepRecord);
-            if (treatmentRecordId != null) {
+                MepRecord link = new MepRecord();
+                link.setId(mepRecord.getId());
+                link.setTreatmentRecordId(treatmentRecordId);
+                mepRecordMapper.updateById(link);
+                mepRecord.setTreatmentRecordId(treatmentRecordId);
                 log.info("MEP记录主表保存成功，ID: {}, serverRecordId: {}, treatmentRecordId: {}", 
                          mepRecord.getId(), serverRecordId, treatmentRecordId);
             } else {
+                log.info("未找到关联的治疗记录，将独立保存MEP记录");
                 log.info("MEP记录主表保存成功（独立保存），ID: {}, serverRecordId: {}", 
                          mepRecord.getId(), serverRecordId);
             }
             
-            // 8. 保存MEP数据
+            // 6. 保存MEP数据
             if (jsonNode.has("mepDataList") && jsonNode.get("mepDataList").isArray()) {
                 saveMepDataList(jsonNode.get("mepDataList"), mepRecord.getId());
                 
-                // 8.1 从mepData中计算MEP值并更新治疗主表和患者表
+                // 6.1 从mepData中计算MEP值并更新治疗主表和患者表
                 if (treatmentRecordId != null) {
                     updateMepValueFromMepData(mepRecord.getId(), treatmentRecordId, mepRecord.getPatientIdentifier());
                 }
@@ -130,6 +133,9 @@ public class MepRecordServiceImpl implements MepRecordService {
     
     @Override
     public MepRecord getByServerRecordId(String serverRecordId) {
+        if (!ServerRecordIdGenerator.isType(serverRecordId, ServerRecordIdGenerator.TYPE_MEP)) {
+            return null; // 非MEP记录ID，无需查库
+        }
         LambdaQueryWrapper<MepRecord> wrapper = new LambdaQueryWrapper<>();
         wrapper.eq(MepRecord::getServerRecordId, serverRecordId);
         return mepRecordMapper.selectOne(wrapper);
@@ -305,9 +311,10 @@ public class MepRecordServiceImpl implements MepRecordService {
     }
     
     /**
-     * 保存MEP数据列表
+     * 保存MEP数据列表（多行批量插入）
      */
     private void saveMepDataList(JsonNode mepDataArray, Long mepRecordId) throws Exception {
+        List<MepData> rows = new ArrayList<>(mepDataArray.size());
         for (JsonNode data : mepDataArray) {
             MepData mepData = new MepData();
             
@@ -324,9 +331,12 @@ public class MepRecordServiceImpl implements MepRecordService {
             mepData.setCreateTime(new Date());
             mepData.setUpdateTime(new Date());
             
-            mepDataMapper.insert(mepData);
-            log.info("MEP数据保存成功，ID: {}", mepData.getId());
+            rows.add(mepData);
+        }
+        for (int from = 0; from < rows.size(); from += BATCH_INSERT_ROWS) {
+            mepDataMapper.insertBatch(rows.subList(from, Math.min(from + BATCH_INSERT_ROWS, rows.size())));
         }
+        log.info("MEP数据保存成功，MEP记录ID: {}, 数量: {}", mepRecordId, rows.size());
     }
     
     /**
@@ -336,7 +346,7 @@ public class MepRecordServiceImpl implements MepRecordService {
      * 冲突处理：
      * 1. 先通过 patientIdentifier + deviceNo 查找是否已存在任何治疗记录（包括正常上传和自动创建的）
      * 2. 如果存在，直接返回（避免重复创建）
-     * 3. 如果不存在，创建一个新的，使用时间戳作为虚拟的 localMedicalRecordId
+     * 3. 如果不存在，创建一个新的，服务器记录ID由MEP记录确定（TRM 类型），同一MEP记录重复上传不会重复创建
      */
     private Long createTreatmentRecordFromMep(JsonNode jsonNode, String patientIdentifier, Integer deviceNo) {
         try {
@@ -354,11 +364,12 @@ public class MepRecordServiceImpl implements MepRecordService {
                 return existingRecord.getId();
             }
             
-            // 2. 生成虚拟的localMedicalRecordId（使用时间戳确保唯一性）
-            Long virtualLocalMedicalRecordId = System.currentTimeMillis();
+            // 2. 自动创建的治疗记录沿用MEP的本地记录ID，与MEP记录一一对应
+            Long localMepRecordId = jsonNode.get("localMepRecordId").asLong();
             
             // 3. 生成服务器记录ID
-            String serverRecordId = ServerRecordIdGenerator.generateTreatmentRecordId(deviceNo, virtualLocalMedicalRecordId);
+            String serverRecordId = ServerRecordIdGenerator.generateTreatmentRecordIdFromMep(
+                    deviceNo, localMepRecordId, jsonNode.get("recordTime").asText());
             
             // 4. 再次检查是否已存在（防止并发创建）
             existingRecord = treatmentRecordMapper.selectByServerRecordId(serverRecordId);
@@ -433,8 +444,11 @@ public class MepRecordServiceImpl implements MepRecordService {
             treatmentRecord.setCreateTime(new Date());
             treatmentRecord.setUpdateTime(new Date());
             
-            // 7. 保存治疗记录
-            treatmentRecordMapper.insert(treatmentRecord);
+            // 7. 保存治疗记录（message_id 唯一，并发创建时只有一次插入生效）
+            if (treatmentRecordMapper.insertIfAbsent(treatmentRecord) == 0) {
+                existingRecord = treatmentRecordMapper.selectByServerRecordId(serverRecordId);
+                return existingRecord != null ? existingRecord.getId() : null;
+            }
             log.info("自动创建治疗记录成功，ID: {}, serverRecordId: {}, patientIdentifier: {}", 
                     treatmentRecord.getId(), serverRecordId, patientIdentifier);
             
@@ -15,13 +15,20 @@ import cc.mrbird.febs.system.dao.PrescriptionRecordMapper;
 import cc.mrbird.febs.system.dao.TbsPrescriptionMapper;
 import cc.mrbird.febs.system.dao.MepDataMapper;
 import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
+import com.baomidou.mybatisplus.core.toolkit.support.SFunction;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import lombok.extern.slf4j.Slf4j;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
@@ -31,6 +38,34 @@ import java.util.stream.Collectors;
 @Service
 public class RecordSyncServiceImpl implements RecordSyncService {
     
+    /**
+     * 批量查询子记录时单条 IN 列表的最大ID数
+     */
+    private static final int IN_LIST_SIZE = 1000;
+    
+    private static final String SYNC_MODE_FULL = "FULL";
+    private static final String SYNC_MODE_DELTA = "DELTA";
+    
+    /**
+     * 增量同步每种记录默认返回的条数
+     */
+    @Value("${record-sync.page-size:200}")
+    private int defaultPageSize;
+    
+    /**
+     * 增量同步每种记录单次最多返回的条数
+     */
+    @Value("${record-sync.max-page-size:1000}")
+    private int maxPageSize;
+    
+    /**
+     * 增量同步的安全窗口（毫秒），只返回 update_time 早于 (当前时间 - 窗口) 的记录。
+     * update_time 由应用在事务提交前写入，提交顺序与 update_time 顺序不一致；
+     * 窗口需大于最长写事务耗时与各节点时钟偏差，窗口之前的记录视为已全部提交，水位不会越过未提交的记录
+     */
+    @Value("${record-sync.safety-window-ms:5000}")
+    private long safetyWindowMs;
+    
     @Autowired
     private TreatmentRecordMapper treatmentRecordMapper;
     
@@ -58,6 +93,7 @@ public class RecordSyncServiceImpl implements RecordSyncService {
             
             SyncResponse.SyncData syncData = new SyncResponse.SyncData();
             syncData.setPatientIdentifier(patientIdentifier);
+            syncData.setSyncMode(SYNC_MODE_FULL);
             
             // 根据syncType查询不同类型的记录
             List<TreatmentRecordDTO> treatmentRecords = new ArrayList<>();
@@ -88,16 +124,128 @@ public class RecordSyncServiceImpl implements RecordSyncService {
         }
     }
     
+    @Override
+    public SyncResponse syncPatientRecordsDelta(String patientIdentifier, String syncType, Integer requestDeviceNo,
+                                                SyncResponse.Cursor treatmentCursor, SyncResponse.Cursor mepCursor,
+                                                Integer pageSize) {
+        try {
+            int limit = pageSize == null || pageSize <= 0 ? defaultPageSize : Math.min(pageSize, maxPageSize);
+            log.info("开始增量同步患者记录，patientIdentifier: {}, syncType: {}, requestDeviceNo: {}, treatmentCursor: {}, mepCursor: {}, pageSize: {}", 
+                     patientIdentifier, syncType, requestDeviceNo, treatmentCursor, mepCursor, limit);
+            
+            SyncResponse.SyncData syncData = new SyncResponse.SyncData();
+            syncData.setPatientIdentifier(patientIdentifier);
+            syncData.setSyncMode(SYNC_MODE_DELTA);
+            Date horizon = stableHorizon();
+            
+            List<TreatmentRecordDTO> treatmentRecords = new ArrayList<>();
+            List<MepRecordDTO> mepRecords = new ArrayList<>();
+            
+            if ("ALL".equals(syncType) || "TREATMENT".equals(syncType)) {
+                LambdaQueryWrapper<TreatmentRecord> wrapper = new LambdaQueryWrapper<>();
+                wrapper.eq(TreatmentRecord::getPatientIdentifier, patientIdentifier);
+                afterCursor(wrapper, TreatmentRecord::getUpdateTime, TreatmentRecord::getId, treatmentCursor, horizon, limit);
+                List<TreatmentRecord> records = treatmentRecordMapper.selectList(wrapper);
+                
+                boolean hasMore = records.size() > limit;
+                if (hasMore) {
+                    records = records.subList(0, limit);
+                }
+                treatmentRecords = toTreatmentRecordDTOs(records);
+                syncData.setHasMoreTreatment(hasMore);
+                if (records.isEmpty()) {
+                    syncData.setTreatmentCursor(treatmentCursor);
+                } else {
+                    TreatmentRecord last = records.get(records.size() - 1);
+                    syncData.setTreatmentCursor(SyncResponse.Cursor.of(last.getUpdateTime(), last.getId()));
+                }
+            }
+            
+            if ("ALL".equals(syncType) || "MEP".equals(syncType)) {
+                LambdaQueryWrapper<MepRecord> wrapper = new LambdaQueryWrapper<>();
+                wrapper.eq(MepRecord::getPatientIdentifier, patientIdentifier);
+                afterCursor(wrapper, MepRecord::getUpdateTime, MepRecord::getId, mepCursor, horizon, limit);
+                List<MepRecord> records = mepRecordMapper.selectList(wrapper);
+                
+                boolean hasMore = records.size() > limit;
+                if (hasMore) {
+                    records = records.subList(0, limit);
+                }
+                mepRecords = toMepRecordDTOs(records);
+                syncData.setHasMoreMep(hasMore);
+                if (records.isEmpty()) {
+                    syncData.setMepCursor(mepCursor);
+                } else {
+                    MepRecord last = records.get(records.size() - 1);
+                    syncData.setMepCursor(SyncResponse.Cursor.of(last.getUpdateTime(), last.getId()));
+                }
+            }
+            
+            syncData.setTreatmentRecords(treatmentRecords);
+            syncData.setMepRecords(mepRecords);
+            syncData.setTotalTreatmentCount(treatmentRecords.size());
+            syncData.setTotalMepCount(mepRecords.size());
+            
+            log.info("增量同步完成，治疗记录: {} 条，MEP记录: {} 条", treatmentRecords.size(), mepRecords.size());
+            
+            return SyncResponse.success(syncData);
+            
+        } catch (Exception e) {
+            log.error("增量同步患者记录失败", e);
+            return SyncResponse.error("同步失败: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 只查询排在水位 (updateTime, id) 之后、且早于稳定时间点的记录，按 (updateTime, id) 升序，多取一条用于判断是否还有更多。
+     * 稳定时间点之前的时间刻度不会再有新提交或再次修改的记录，因此返回的水位之前不会遗漏记录，
+     * 同一刻度内 id 小于水位的记录也不会在水位发出后被修改
+     */
+    private <T> void afterCursor(LambdaQueryWrapper<T> wrapper, SFunction<T, ?> updateTime, SFunction<T, ?> id,
+                                 SyncResponse.Cursor cursor, Date horizon, int limit) {
+        if (cursor != null && cursor.getUpdateTime() != null && cursor.getId() != null) {
+            Date time = new Date(cursor.getUpdateTime());
+            Long lastId = cursor.getId();
+            wrapper.and(w -> w.gt(updateTime, time).or(o -> o.eq(updateTime, time).gt(id, lastId)));
+        }
+        wrapper.lt(updateTime, horizon);
+        wrapper.orderByAsc(updateTime).orderByAsc(id).last("LIMIT " + (limit + 1));
+    }
+    
+    /**
+     * 稳定时间点：当前时间减去安全窗口后截断到整秒。
+     * update_time 为 DATETIME 列，精度为秒（写入时毫秒部分被四舍五入），水位与比较都以秒为单位，
+     * 截断保证稳定时间点所在的整秒不会被部分返回
+     */
+    private Date stableHorizon() {
+        long millis = System.currentTimeMillis() - safetyWindowMs;
+        return new Date(millis - Math.floorMod(millis, 1000L));
+    }
+    
     /**
      * 同步治疗记录
      */
     private List<TreatmentRecordDTO> syncTreatmentRecords(String patientIdentifier) {
-        List<TreatmentRecord> records = treatmentRecordMapper.selectByPatientIdentifier(patientIdentifier);
+        return toTreatmentRecordDTOs(treatmentRecordMapper.selectByPatientIdentifier(patientIdentifier));
+    }
+    
+    private List<TreatmentRecordDTO> toTreatmentRecordDTOs(List<TreatmentRecord> records) {
+        if (records.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        // 子记录按治疗记录ID批量查询后在内存中分组，查询次数与记录条数无关
+        List<Long> ids = records.stream().map(TreatmentRecord::getId).collect(Collectors.toList());
+        Map<Long, List<PrescriptionRecordVO>> prescriptionMap = groupByParent(ids,
+                prescriptionRecordMapper::selectByTreatmentRecordIds, PrescriptionRecordVO::getTreatmentRecordId);
+        Map<Long, List<TbsPrescriptionVO>> tbsPrescriptionMap = groupByParent(ids,
+                tbsPrescriptionMapper::selectByTreatmentRecordIds, TbsPrescriptionVO::getTreatmentRecordId);
         
         return records.stream().map(record -> {
             TreatmentRecordDTO dto = new TreatmentRecordDTO();
             
-            dto.setServerRecordId(record.getServerRecordId());
+            // treatment_record 没有 server_record_id 列，serverRecordId 保存在 message_id
+            dto.setServerRecordId(record.getServerRecordId() != null ? record.getServerRecordId() : record.getMessageId());
             dto.setSourceDeviceNo(record.getSourceDeviceNo());
             dto.setPatientName(record.getPatientName());
             dto.setPatientSex(record.getPatientSex());
@@ -114,12 +262,12 @@ public class RecordSyncServiceImpl implements RecordSyncService {
             dto.setMepValue(record.getMepValue());
             dto.setMedicalRecordRemark(record.getMedicalRecordRemark());
             
-            // 查询关联的处方记录
-            List<PrescriptionRecordVO> prescriptions = prescriptionRecordMapper.selectByTreatmentRecordId(record.getId());
+            // 关联的处方记录
+            List<PrescriptionRecordVO> prescriptions = prescriptionMap.getOrDefault(record.getId(), Collections.emptyList());
             dto.setPrescription_record(prescriptions.stream().map(this::convertPrescriptionRecord).collect(Collectors.toList()));
             
-            // 查询关联的TBS处方记录
-            List<TbsPrescriptionVO> tbsPrescriptions = tbsPrescriptionMapper.selectByTreatmentRecordId(record.getId());
+            // 关联的TBS处方记录
+            List<TbsPrescriptionVO> tbsPrescriptions = tbsPrescriptionMap.getOrDefault(record.getId(), Collections.emptyList());
             dto.setTbsPrescriptions(tbsPrescriptions.stream().map(this::convertTbsPrescription).collect(Collectors.toList()));
             
             return dto;
@@ -133,7 +281,17 @@ public class RecordSyncServiceImpl implements RecordSyncService {
         LambdaQueryWrapper<MepRecord> wrapper = new LambdaQueryWrapper<>();
         wrapper.eq(MepRecord::getPatientIdentifier, patientIdentifier)
                .orderByDesc(MepRecord::getRecordTime);
-        List<MepRecord> records = mepRecordMapper.selectList(wrapper);
+        return toMepRecordDTOs(mepRecordMapper.selectList(wrapper));
+    }
+    
+    private List<MepRecordDTO> toMepRecordDTOs(List<MepRecord> records) {
+        if (records.isEmpty()) {
+            return new ArrayList<>();
+        }
+        
+        List<Long> ids = records.stream().map(MepRecord::getId).collect(Collectors.toList());
+        Map<Long, List<MepDataVO>> mepDataMap = groupByParent(ids,
+                mepDataMapper::selectByMepRecordIds, MepDataVO::getMepRecordId);
         
         return records.stream().map(record -> {
             MepRecordDTO dto = new MepRecordDTO();
@@ -147,14 +305,33 @@ public class RecordSyncServiceImpl implements RecordSyncService {
             dto.setRecordTime(record.getRecordTime() != null ? dateTimeFormat.format(record.getRecordTime()) : null);
             dto.setDType(record.getDType());
             
-            // 查询关联的MEP数据
-            List<MepDataVO> mepDataList = mepDataMapper.selectByMepRecordId(record.getId());
+            // 关联的MEP数据
+            List<MepDataVO> mepDataList = mepDataMap.getOrDefault(record.getId(), Collections.emptyList());
             dto.setMepDataList(mepDataList.stream().map(this::convertMepData).collect(Collectors.toList()));
             
             return dto;
         }).collect(Collectors.toList());
     }
     
+    /**
+     * 按父记录ID分批查询子记录并分组，每批一条 IN 查询，子记录保持查询结果中的顺序
+     *
+     * @param parentIds 父记录ID
+     * @param query     批量查询
+     * @param parentOf  子记录的父记录ID
+     */
+    private <T> Map<Long, List<T>> groupByParent(List<Long> parentIds, Function<List<Long>, List<T>> query,
+                                                 Function<T, Long> parentOf) {
+        Map<Long, List<T>> grouped = new HashMap<>(parentIds.size() * 2);
+        for (int from = 0; from < parentIds.size(); from += IN_LIST_SIZE) {
+            List<T> children = query.apply(parentIds.subList(from, Math.min(from + IN_LIST_SIZE, parentIds.size())));
+            for (T child : children) {
+                grouped.computeIfAbsent(parentOf.apply(child), k -> new ArrayList<>()).add(child);
+            }
+        }
+        return grouped;
+    }
+    
     /**
      * 转换处方记录
      */
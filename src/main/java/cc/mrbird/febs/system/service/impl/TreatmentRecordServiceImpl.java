@@ -3,6 +3,7 @@ package cc.mrbird.febs.system.service.impl;
 import cc.mrbird.febs.system.service.TreatmentRecordService;
 import cc.mrbird.febs.system.domain.*;
 import cc.mrbird.febs.system.dao.*;
+import cc.mrbird.febs.system.utils.ServerRecordIdGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -22,6 +23,7 @@ import com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper;
 
 import java.math.BigDecimal;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -37,6 +39,9 @@ public class TreatmentRecordServiceImpl implements TreatmentRecordService {
     @Autowired
     private TreatmentRecordMapper treatmentRecordMapper;
     
+    @Autowired
+    private RecordUploadLogMapper recordUploadLogMapper;
+    
     @Autowired
     private PrescriptionRecordMapper prescriptionRecordMapper;
     
@@ -52,6 +57,11 @@ public class TreatmentRecordServiceImpl implements TreatmentRecordService {
     @Autowired
     private PatientMapper patientMapper;
     
+    /**
+     * 子表单条批量 INSERT 的最大行数
+     */
+    private static final int BATCH_INSERT_ROWS = 500;
+    
     private final ObjectMapper objectMapper = new ObjectMapper();
     private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
     private final SimpleDateFormat yearFormat = new SimpleDateFormat("yyyy");
@@ -71,14 +81,15 @@ public class TreatmentRecordServiceImpl implements TreatmentRecordService {
             String patientBirthday = jsonNode.has("patientBirthday") ? jsonNode.get("patientBirthday").asText() : null;
             
             // 2. 生成患者唯一标识
-            String patientIdentifier = cc.mrbird.febs.system.utils.ServerRecordIdGenerator.generatePatientIdentifier(patientName, patientBirthday);
+            String patientIdentifier = ServerRecordIdGenerator.generatePatientIdentifier(patientName, patientBirthday);
             
-            // 3. 生成服务器记录ID
-            String serverRecordId = cc.mrbird.febs.system.utils.ServerRecordIdGenerator.generateTreatmentRecordId(deviceNo, localMedicalRecordId);
+            // 3. 生成服务器记录ID（由设备号、本地病历ID和处方时间确定，重复上传得到相同ID）
+            String serverRecordId = ServerRecordIdGenerator.generateTreatmentRecordId(
+                    deviceNo, localMedicalRecordId, jsonNode.get("presDate").asText(), jsonNode.get("presTime").asText());
             
-            // 4. 检查是否已存在相同的服务器记录ID（防止重复上传）
-            TreatmentRecord existingRecord = treatmentRecordMapper.selectByServerRecordId(serverRecordId);
-            if (existingRecord != null) {
+            // 4. 登记本次上传（server_record_id 唯一），已登记说明是重传，不再重复保存处方数据
+            // 上传可能追加到已有的治疗记录上，serverRecordId 不一定出现在 treatment_record 中，因此单独登记
+            if (recordUploadLogMapper.insertIfAbsent(serverRecordId, ServerRecordIdGenerator.TYPE_TREATMENT) == 0) {
                 log.warn("治疗记录已存在，serverRecordId: {}", serverRecordId);
                 return true; // 已存在也算成功
             }
@@ -90,7 +101,7 @@ public class TreatmentRecordServiceImpl implements TreatmentRecordService {
                    .eq(TreatmentRecord::getDeviceNo, deviceNo)
                    .orderByDesc(TreatmentRecord::getCreateTime)
                    .last("LIMIT 1");
-            existingRecord = treatmentRecordMapper.selectOne(wrapper);
+            TreatmentRecord existingRecord = treatmentRecordMapper.selectOne(wrapper);
             
             Long treatmentRecordId;
             if (existingRecord != null) {
@@ -102,11 +113,20 @@ public class TreatmentRecordServiceImpl implements TreatmentRecordService {
                 Integer mepValue = getIntValue(jsonNode, "mepValue");
                 if (mepValue != null) {
                     updateTreatmentRecordMepValue(treatmentRecordId, mepValue, existingRecord.getPatientId());
+                } else {
+                    // 追加了处方数据，刷新更新时间，增量同步时该记录会重新下发
+                    TreatmentRecord touched = new TreatmentRecord();
+                    touched.setId(treatmentRecordId);
+                    touched.setUpdateTime(new Date());
+                    treatmentRecordMapper.updateById(touched);
                 }
             } else {
-                // 5. 保存治疗记录主表
+                // 5. 保存治疗记录主表（message_id 唯一，并发重传时只有一次插入生效）
                 TreatmentRecord treatmentRecord = buildTreatmentRecord(jsonNode, patientIdentifier, serverRecordId);
-                treatmentRecordMapper.insert(treatmentRecord);
+                if (treatmentRecordMapper.insertIfAbsent(treatmentRecord) == 0) {
+                    log.warn("治疗记录已存在（并发重传），serverRecordId: {}", serverRecordId);
+                    return true;
+                }
                 log.info("治疗记录主表保存成功，ID: {}, serverRecordId: {}", treatmentRecord.getId(), serverRecordId);
                 treatmentRecordId = treatmentRecord.getId();
                 
@@ -315,9 +335,10 @@ public class TreatmentRecordServiceImpl implements TreatmentRecordService {
     }
     
     /**
-     * 保存标准处方记录
+     * 保存标准处方记录（多行批量插入）
      */
     private void savePrescriptionRecords(JsonNode prescriptionArray, Long treatmentRecordId) throws Exception {
+        List<PrescriptionRecord> records = new ArrayList<>(prescriptionArray.size());
         for (JsonNode prescription : prescriptionArray) {
             PrescriptionRecord record = new PrescriptionRecord();
             
@@ -338,15 +359,19 @@ public class TreatmentRecordServiceImpl implements TreatmentRecordService {
             record.setCreateTime(new Date());
             record.setUpdateTime(new Date());
             
-            prescriptionRecordMapper.insert(record);
-            log.info("标准处方记录保存成功，ID: {}", record.getId());
+            records.add(record);
+        }
+        for (int from = 0; from < records.size(); from += BATCH_INSERT_ROWS) {
+            prescriptionRecordMapper.insertBatch(records.subList(from, Math.min(from + BATCH_INSERT_ROWS, records.size())));
         }
+        log.info("标准处方记录保存成功，治疗记录ID: {}, 数量: {}", treatmentRecordId, records.size());
     }
     
     /**
-     * 保存TBS处方记录
+     * 保存TBS处方记录（多行批量插入）
      */
     private void saveTbsPrescriptions(JsonNode tbsArray, Long treatmentRecordId) throws Exception {
+        List<TbsPrescription> records = new ArrayList<>(tbsArray.size());
         for (JsonNode tbs : tbsArray) {
             TbsPrescription record = new TbsPrescription();
             
@@ -369,16 +394,20 @@ public class TreatmentRecordServiceImpl implements TreatmentRecordService {
             record.setCreateTime(new Date());
             record.setUpdateTime(new Date());
             
-            tbsPrescriptionMapper.insert(record);
-            log.info("TBS处方记录保存成功，ID: {}", record.getId());
+            records.add(record);
         }
+        for (int from = 0; from < records.size(); from += BATCH_INSERT_ROWS) {
+            tbsPrescriptionMapper.insertBatch(records.subList(from, Math.min(from + BATCH_INSERT_ROWS, records.size())));
+        }
+        log.info("TBS处方记录保存成功，治疗记录ID: {}, 数量: {}", treatmentRecordId, records.size());
     }
     
     
     /**
-     * 保存MEP数据
+     * 保存MEP数据（多行批量插入）
      */
     private void saveMepData(JsonNode mepDataArray, Long mepRecordId) throws Exception {
+        List<MepData> rows = new ArrayList<>(mepDataArray.size());
         for (JsonNode data : mepDataArray) {
             MepData mepData = new MepData();
             
@@ -395,9 +424,12 @@ public class TreatmentRecordServiceImpl implements TreatmentRecordService {
             mepData.setCreateTime(new Date());
             mepData.setUpdateTime(new Date());
             
-            mepDataMapper.insert(mepData);
-            log.info("MEP数据保存成功，ID: {}", mepData.getId());
+            rows.add(mepData);
+        }
+        for (int from = 0; from < rows.size(); from += BATCH_INSERT_ROWS) {
+            mepDataMapper.insertBatch(rows.subList(from, Math.min(from + BATCH_INSERT_ROWS, rows.size())));
         }
+        log.info("MEP数据保存成功，MEP记录ID: {}, 数量: {}", mepRecordId, rows.size());
     }
     
     /**
@@ -1,53 +1,139 @@
 package cc.mrbird.febs.system.utils;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import lombok.Getter;
 
 /**
  * 服务器记录ID生成器
  * 格式：{类型}-{日期}-{时间}-{设备号}-{本地记录ID}
  * 示例：MEP-20241211-143000-001-156
+ * 日期、时间取自设备上报的记录时间而非服务器当前时间，同一条本地记录重复上传得到相同的ID；
+ * ID 各段可直接解析（{@link #parse}），按类型、设备号路由查询时无需访问数据库。
  */
 public class ServerRecordIdGenerator {
-    
-    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
-    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HHmmss");
-    
+
+    /**
+     * MEP记录
+     */
+    public static final String TYPE_MEP = "MEP";
+    /**
+     * 治疗记录
+     */
+    public static final String TYPE_TREATMENT = "TR";
+    /**
+     * 由MEP记录自动创建的治疗记录
+     */
+    public static final String TYPE_TREATMENT_FROM_MEP = "TRM";
+
+    private static final int DATE_DIGITS = 8;
+    private static final int TIME_DIGITS = 6;
+    private static final int DEVICE_NO_DIGITS = 3;
+
     /**
      * 生成MEP记录的服务器ID
-     * 
-     * @param deviceNo 设备编号
+     *
+     * @param deviceNo         设备编号
      * @param localMepRecordId 设备本地MEP记录ID
+     * @param recordTime       设备上报的记录时间（格式：yyyy-MM-dd HH:mm:ss）
      * @return 服务器记录ID，格式：MEP-20241211-143000-001-156
      */
-    public static String generateMepRecordId(Integer deviceNo, Long localMepRecordId) {
-        LocalDateTime now = LocalDateTime.now();
-        String date = now.format(DATE_FORMATTER);
-        String time = now.format(TIME_FORMATTER);
-        String deviceNoStr = String.format("%03d", deviceNo); // 设备号固定3位，不足补0
-        
-        return String.format("MEP-%s-%s-%s-%d", date, time, deviceNoStr, localMepRecordId);
+    public static String generateMepRecordId(Integer deviceNo, Long localMepRecordId, String recordTime) {
+        return encode(TYPE_MEP, deviceNo, localMepRecordId, recordTime, 0, recordTime, DATE_DIGITS);
     }
-    
+
     /**
      * 生成治疗记录的服务器ID
-     * 
-     * @param deviceNo 设备编号
+     *
+     * @param deviceNo             设备编号
      * @param localMedicalRecordId 设备本地病历ID
+     * @param presDate             处方日期（格式：yyyy-MM-dd）
+     * @param presTime             处方时间（格式：HH:mm:ss）
      * @return 服务器记录ID，格式：TR-20241211-150000-001-289
      */
-    public static String generateTreatmentRecordId(Integer deviceNo, Long localMedicalRecordId) {
-        LocalDateTime now = LocalDateTime.now();
-        String date = now.format(DATE_FORMATTER);
-        String time = now.format(TIME_FORMATTER);
-        String deviceNoStr = String.format("%03d", deviceNo); // 设备号固定3位，不足补0
-        
-        return String.format("TR-%s-%s-%s-%d", date, time, deviceNoStr, localMedicalRecordId);
+    public static String generateTreatmentRecordId(Integer deviceNo, Long localMedicalRecordId, String presDate, String presTime) {
+        return encode(TYPE_TREATMENT, deviceNo, localMedicalRecordId, presDate, 0, presTime, 0);
     }
-    
+
+    /**
+     * 生成由MEP记录自动创建的治疗记录的服务器ID，与MEP记录一一对应
+     *
+     * @param deviceNo         设备编号
+     * @param localMepRecordId 设备本地MEP记录ID
+     * @param recordTime       MEP记录时间（格式：yyyy-MM-dd HH:mm:ss）
+     * @return 服务器记录ID，格式：TRM-20241211-143000-001-156
+     */
+    public static String generateTreatmentRecordIdFromMep(Integer deviceNo, Long localMepRecordId, String recordTime) {
+        return encode(TYPE_TREATMENT_FROM_MEP, deviceNo, localMepRecordId, recordTime, 0, recordTime, DATE_DIGITS);
+    }
+
+    /**
+     * 解析服务器记录ID
+     *
+     * @param serverRecordId 服务器记录ID
+     * @return 解析结果，格式不正确时返回 null
+     */
+    public static ServerRecordId parse(String serverRecordId) {
+        if (serverRecordId == null) {
+            return null;
+        }
+        int localSep = serverRecordId.lastIndexOf('-');
+        int deviceSep = localSep > 0 ? serverRecordId.lastIndexOf('-', localSep - 1) : -1;
+        int timeSep = deviceSep - TIME_DIGITS - 1;
+        int dateSep = timeSep - DATE_DIGITS - 1;
+        if (dateSep <= 0 || serverRecordId.charAt(dateSep) != '-' || serverRecordId.charAt(timeSep) != '-') {
+            return null;
+        }
+        long date = digits(serverRecordId, dateSep + 1, timeSep);
+        long time = digits(serverRecordId, timeSep + 1, deviceSep);
+        long deviceNo = digits(serverRecordId, deviceSep + 1, localSep);
+        long localRecordId = digits(serverRecordId, localSep + 1, serverRecordId.length());
+        if (date < 0 || time < 0 || deviceNo < 0 || deviceNo > Integer.MAX_VALUE || localRecordId < 0) {
+            return null;
+        }
+        return new ServerRecordId(serverRecordId.substring(0, dateSep), (int) date, (int) time, (int) deviceNo, localRecordId);
+    }
+
+    /**
+     * 判断服务器记录ID是否为指定类型，不分配对象
+     */
+    public static boolean isType(String serverRecordId, String type) {
+        return serverRecordId != null
+                && serverRecordId.length() > type.length()
+                && serverRecordId.startsWith(type)
+                && serverRecordId.charAt(type.length()) == '-';
+    }
+
+    /**
+     * 服务器记录ID的解析结果
+     */
+    @Getter
+    public static class ServerRecordId {
+        /**
+         * 类型：MEP / TR / TRM
+         */
+        private final String type;
+        /**
+         * 记录日期，yyyyMMdd
+         */
+        private final int recordDate;
+        /**
+         * 记录时间，HHmmss
+         */
+        private final int recordTime;
+        private final int deviceNo;
+        private final long localRecordId;
+
+        ServerRecordId(String type, int recordDate, int recordTime, int deviceNo, long localRecordId) {
+            this.type = type;
+            this.recordDate = recordDate;
+            this.recordTime = recordTime;
+            this.deviceNo = deviceNo;
+            this.localRecordId = localRecordId;
+        }
+    }
+
     /**
      * 生成患者唯一标识
-     * 
+     *
      * @param patientName 患者姓名
      * @param patientBirthday 患者出生日期（格式：yyyy-MM-dd）
      * @return 患者唯一标识，格式：张三_1990-05-15 或 张三_unknown
@@ -56,17 +142,100 @@ public class ServerRecordIdGenerator {
         if (patientName == null || patientName.trim().isEmpty()) {
             throw new IllegalArgumentException("患者姓名不能为空");
         }
-        
+
         String birthday = patientBirthday;
         if (birthday == null || birthday.trim().isEmpty()) {
             birthday = "unknown";
         }
-        
+
         return patientName.trim() + "_" + birthday.trim();
     }
-}
-
 
+    /**
+     * 直接写入字符数组，避免 DateTimeFormatter、String.format 产生的中间对象
+     *
+     * @param dateSource 日期来源，取其中跳过 dateSkip 个数字后的 8 位数字
+     * @param timeSource 时间来源，取其中跳过 timeSkip 个数字后的 6 位数字
+     */
+    private static String encode(String type, Integer deviceNo, Long localRecordId,
+                                 String dateSource, int dateSkip, String timeSource, int timeSkip) {
+        if (deviceNo == null || deviceNo < 0) {
+            throw new IllegalArgumentException("设备编号无效: " + deviceNo);
+        }
+        if (localRecordId == null || localRecordId < 0) {
+            throw new IllegalArgumentException("本地记录ID无效: " + localRecordId);
+        }
+        // 类型 + 4 个分隔符 + 日期 + 时间 + int、long 最大位数
+        char[] buf = new char[type.length() + 4 + DATE_DIGITS + TIME_DIGITS + 10 + 19];
+        int pos = 0;
+        for (int i = 0; i < type.length(); i++) {
+            buf[pos++] = type.charAt(i);
+        }
+        buf[pos++] = '-';
+        pos = copyDigits(buf, pos, dateSource, dateSkip, DATE_DIGITS);
+        buf[pos++] = '-';
+        pos = copyDigits(buf, pos, timeSource, timeSkip, TIME_DIGITS);
+        buf[pos++] = '-';
+        pos = writeNumber(buf, pos, deviceNo, DEVICE_NO_DIGITS); // 设备号至少3位，不足补0
+        buf[pos++] = '-';
+        pos = writeNumber(buf, pos, localRecordId, 1);
+        return new String(buf, 0, pos);
+    }
 
+    /**
+     * 从 source 中跳过 skip 个数字后复制 count 个数字，忽略其中的分隔符；数字不足时补0
+     */
+    private static int copyDigits(char[] buf, int pos, String source, int skip, int count) {
+        int copied = 0;
+        if (source != null) {
+            for (int i = 0; i < source.length() && copied < count; i++) {
+                char c = source.charAt(i);
+                if (c < '0' || c > '9') {
+                    continue;
+                }
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                buf[pos++] = c;
+                copied++;
+            }
+        }
+        for (; copied < count; copied++) {
+            buf[pos++] = '0';
+        }
+        return pos;
+    }
 
+    private static int writeNumber(char[] buf, int pos, long value, int minDigits) {
+        int len = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            len++;
+        }
+        len = Math.max(len, minDigits);
+        for (int i = pos + len - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + len;
+    }
 
+    /**
+     * 解析 [from, to) 范围内的十进制数，包含非数字字符或超出 long 范围时返回 -1
+     */
+    private static long digits(String s, int from, int to) {
+        if (from >= to || to - from > 19) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        // 19 位数溢出后必为负数
+        return value < 0 ? -1 : value;
+    }
+}
@@ -8,23 +8,30 @@ import cc.mrbird.febs.system.service.DeviceStatusService;
 
 import javax.websocket.*;
 import javax.websocket.server.ServerEndpoint;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 
 @Component
 @ServerEndpoint("/ws/device")
 public class DeviceWebSocketServer {
+    private static final String ENDPOINT = "/ws/device";
     private static final Set<Session> sessions = new CopyOnWriteArraySet<>();
     private static DeviceStatusService deviceStatusService;
     
     // 添加session到设备ID的映射关系
     private static final Map<Session, Long> sessionDeviceMap = new ConcurrentHashMap<>();
+    // 设备ID到session的反向索引，每台设备只保留最新的连接
+    private static final Map<Long, Session> deviceSessionMap = new ConcurrentHashMap<>();
+
+    static {
+        WebSocketBus.register(ENDPOINT, DeviceWebSocketServer::deliverLocal);
+    }
 
     // 通过Spring注入DeviceStatusService
     @org.springframework.beans.factory.annotation.Autowired
@@ -48,61 +55,58 @@ public class DeviceWebSocketServer {
     
     /**
      * 记录设备连接，如果同一设备已有连接，则关闭旧连接
+     * 通过双向索引完成查找与替换，代价与当前连接数无关
      * @param session WebSocket会话
      * @param deviceId 设备ID
      */
     public static void recordDeviceConnection(Session session, Long deviceId) {
         if (deviceId == null) {
-            // System.out.println("设备ID为空，跳过连接记录");
             return;
         }
         
-        // System.out.println("=== 记录设备连接 ===");
-        // System.out.println("Session ID: " + session.getId());
-        // System.out.println("设备ID: " + deviceId);
+        // 映射未变化（同一连接的后续消息）时直接返回
+        if (deviceId.equals(sessionDeviceMap.get(session)) && deviceSessionMap.get(deviceId) == session) {
+            return;
+        }
         
-        // 检查是否已有同一设备的连接
-        Session existingSession = null;
-        for (Map.Entry<Session, Long> entry : sessionDeviceMap.entrySet()) {
-            if (deviceId.equals(entry.getValue())) {
-                existingSession = entry.getKey();
-                break;
-            }
+        // 同一session改报了其他设备ID时，移除旧设备的索引
+        Long previousDeviceId = sessionDeviceMap.put(session, deviceId);
+        if (previousDeviceId != null && !previousDeviceId.equals(deviceId)) {
+            deviceSessionMap.remove(previousDeviceId, session);
         }
         
-        if (existingSession != null && !existingSession.equals(session)) {
-            // System.out.println("=== 检测到同一设备重复连接，关闭旧连接 ===");
-            // System.out.println("旧Session ID: " + existingSession.getId());
-            // System.out.println("新Session ID: " + session.getId());
-            // System.out.println("设备ID: " + deviceId);
-            
+        // 原子替换设备的连接，拿到被替换的旧连接
+        Session existingSession = deviceSessionMap.put(deviceId, session);
+        if (existingSession != null && existingSession != session) {
+            // 先移除旧连接映射再关闭，旧连接的 onClose 不会再触发设备离线
+            sessionDeviceMap.remove(existingSession, deviceId);
             try {
-                // 关闭旧连接
                 if (existingSession.isOpen()) {
                     existingSession.close();
-                    // System.out.println("旧连接已关闭");
                 }
-                
-                // 从映射中移除旧连接
-                sessionDeviceMap.remove(existingSession);
-                // System.out.println("旧连接映射已移除");
-                
             } catch (Exception e) {
-                // System.err.println("关闭旧连接时发生异常: " + e.getMessage());
-                // e.printStackTrace();
+                // 关闭旧连接失败不影响新连接
             }
         }
-        
-        // 记录新连接
-        sessionDeviceMap.put(session, deviceId);
-        // System.out.println("新连接映射已记录: Session " + session.getId() + " -> Device " + deviceId);
-        // System.out.println("当前连接映射数: " + sessionDeviceMap.size());
+    }
+
+    /**
+     * 移除session的设备映射
+     * @return 映射的设备ID，没有映射时返回null
+     */
+    private static Long unbind(Session session) {
+        Long deviceId = sessionDeviceMap.remove(session);
+        if (deviceId != null) {
+            // 只有当前连接仍是该设备的最新连接时才移除反向索引
+            deviceSessionMap.remove(deviceId, session);
+        }
+        return deviceId;
     }
 
     @OnClose
     public void onClose(Session session) {
-        // 获取断开连接的设备ID
-        Long deviceId = sessionDeviceMap.get(session);
+        // 获取断开连接的设备ID并移除映射（onError 与 onClose 先后触发时只处理一次）
+        Long deviceId = unbind(session);
         
         if (deviceId != null) {
             // System.out.println("=== 设备WebSocket连接断开，处理设备离线 ===");
@@ -122,9 +126,6 @@ public class DeviceWebSocketServer {
                 // System.err.println("DeviceStatusService未注入，无法处理设备离线");
             }
             
-            // 移除session映射
-            sessionDeviceMap.remove(session);
-            // System.out.println("已移除session映射: Session " + session.getId() + " -> Device " + deviceId);
         } else {
             // System.out.println("=== WebSocket连接断开，但未找到对应的设备ID ===");
             // System.out.println("Session ID: " + session.getId());
@@ -132,6 +133,7 @@ public class DeviceWebSocketServer {
         
         // 移除session
         sessions.remove(session);
+        WebSocketOutbound.release(session);
         // System.out.println("当前设备连接数: " + sessions.size());
         // System.out.println("当前session映射数: " + sessionDeviceMap.size());
         
@@ -226,8 +228,8 @@ public class DeviceWebSocketServer {
         // System.err.println("错误类型: " + error.getClass().getSimpleName());
         // error.printStackTrace();
         
-        // 获取断开连接的设备ID
-        Long deviceId = sessionDeviceMap.get(session);
+        // 获取断开连接的设备ID并移除映射
+        Long deviceId = unbind(session);
         
         if (deviceId != null) {
             // System.err.println("=== WebSocket异常，处理设备离线 ===");
@@ -247,15 +249,13 @@ public class DeviceWebSocketServer {
                 // System.err.println("DeviceStatusService未注入，无法处理设备离线");
             }
             
-            // 移除session映射
-            sessionDeviceMap.remove(session);
-            // System.err.println("已移除异常session映射: Session " + session.getId() + " -> Device " + deviceId);
         } else {
             // System.err.println("WebSocket异常，但未找到对应的设备ID");
         }
         
         // 移除session
         sessions.remove(session);
+        WebSocketOutbound.release(session);
         // System.err.println("当前设备连接数: " + sessions.size());
         // System.err.println("当前session映射数: " + sessionDeviceMap.size());
         
@@ -269,41 +269,16 @@ public class DeviceWebSocketServer {
         // System.out.println("推送消息: " + message);
         // System.out.println("当前连接数: " + sessions.size());
         
-        // 使用同步块防止并发写入冲突
-        synchronized (DeviceWebSocketServer.class) {
-            for (Session session : sessions) {
-                if (session.isOpen()) {
-                    try {
-                        // 检查session是否可写
-                        if (session.getBasicRemote().getBatchingAllowed()) {
-                            session.getBasicRemote().sendText(message);
-                            // System.out.println("消息推送成功到 Session: " + session.getId());
-                        } else {
-                            // 如果session不可写，跳过
-                            // System.out.println("Session " + session.getId() + " 不可写，跳过推送");
-                        }
-                    } catch (IllegalStateException e) {
-                        // 处理状态冲突异常
-                        // System.err.println("推送消息到 Session " + session.getId() + " 失败（状态冲突）: " + e.getMessage());
-                        // 尝试关闭有问题的session
-                        try {
-                            session.close();
-                            // System.out.println("已关闭状态冲突的 Session: " + session.getId());
-                        } catch (IOException closeException) {
-                            // System.err.println("关闭Session " + session.getId() + " 时发生异常: " + closeException.getMessage());
-                        }
-                    } catch (IOException e) {
-                        // System.err.println("推送消息到 Session " + session.getId() + " 失败: " + e.getMessage());
-                        // e.printStackTrace();
-                    }
-                } else {
-                    // System.out.println("Session " + session.getId() + " 已关闭，跳过推送");
-                }
-            }
-        }
+        // 投递给本节点的连接并经总线转发给其他节点，各会话独立异步发送，慢客户端不阻塞其他会话和调用线程
+        WebSocketBus.publish(ENDPOINT, WebSocketFanout.topicAll(ENDPOINT), message);
         // System.out.println("=== 消息推送完成 ===");
     }
     
+    // 总线投递到本节点的连接
+    private static int deliverLocal(String topic, String frame) {
+        return WebSocketOutbound.broadcast(sessions, frame);
+    }
+    
     // 获取当前连接数
     public static int getConnectionCount() {
         return sessions.size();
@@ -319,68 +294,36 @@ public class DeviceWebSocketServer {
             return false;
         }
         
-        // 遍历session映射，查找是否有该设备的活跃连接
-        for (Map.Entry<Session, Long> entry : sessionDeviceMap.entrySet()) {
-            Session session = entry.getKey();
-            Long sessionDeviceId = entry.getValue();
-            
-            if (deviceId.equals(sessionDeviceId) && session.isOpen()) {
-                return true;
-            }
-        }
-        
-        return false;
+        Session session = deviceSessionMap.get(deviceId);
+        return session != null && session.isOpen();
     }
     
     /**
      * 获取指定设备的活跃连接数
+     * 同一设备重复连接时旧连接会被关闭，因此结果为0或1
      * @param deviceId 设备ID
      * @return 活跃连接数
      */
     public static int getDeviceConnectionCount(Long deviceId) {
-        if (deviceId == null) {
-            return 0;
-        }
-        
-        int count = 0;
-        for (Map.Entry<Session, Long> entry : sessionDeviceMap.entrySet()) {
-            Session session = entry.getKey();
-            Long sessionDeviceId = entry.getValue();
-            
-            if (deviceId.equals(sessionDeviceId) && session.isOpen()) {
-                count++;
-            }
-        }
-        
-        return count;
+        return hasActiveConnection(deviceId) ? 1 : 0;
     }
     
     /**
      * 清理断开的连接
-     * 移除已关闭的session映射
+     * 移除已关闭但未触发 onClose/onError 的session映射，只涉及本节点的连接
+     * @return 被清理连接对应的设备ID
      */
-    public static void cleanupDisconnectedSessions() {
-        // System.out.println("=== 开始清理断开的连接 ===");
-        // System.out.println("清理前session映射数: " + sessionDeviceMap.size());
-        
-        Iterator<Map.Entry<Session, Long>> iterator = sessionDeviceMap.entrySet().iterator();
-        int cleanedCount = 0;
-        
-        while (iterator.hasNext()) {
-            Map.Entry<Session, Long> entry = iterator.next();
-            Session session = entry.getKey();
-            Long deviceId = entry.getValue();
-            
+    public static List<Long> cleanupDisconnectedSessions() {
+        List<Long> deviceIds = new ArrayList<>();
+        for (Session session : sessionDeviceMap.keySet()) {
             if (!session.isOpen()) {
-                // System.out.println("清理断开的连接: Session " + session.getId() + " -> Device " + deviceId);
-                iterator.remove();
-                cleanedCount++;
+                Long deviceId = unbind(session);
+                if (deviceId != null) {
+                    deviceIds.add(deviceId);
+                }
             }
         }
-        
-        // System.out.println("清理后session映射数: " + sessionDeviceMap.size());
-        // System.out.println("清理的连接数: " + cleanedCount);
-        // System.out.println("=== 连接清理完成 ===");
+        return deviceIds;
     }
     
     // 获取所有连接的Session ID
@@ -395,9 +338,9 @@ public class DeviceWebSocketServer {
     public static Map<Long, String> getConnectionStatus() {
         Map<Long, String> status = new HashMap<>();
         
-        for (Map.Entry<Session, Long> entry : sessionDeviceMap.entrySet()) {
-            Session session = entry.getKey();
-            Long deviceId = entry.getValue();
+        for (Map.Entry<Long, Session> entry : deviceSessionMap.entrySet()) {
+            Session session = entry.getValue();
+            Long deviceId = entry.getKey();
             
             String sessionStatus = session.isOpen() ? "活跃" : "已断开";
             status.put(deviceId, sessionStatus + " (Session " + session.getId() + ")");
@@ -1,11 +1,12 @@
 package cc.mrbird.febs.system.websocket;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
 import javax.websocket.*;
 import javax.websocket.server.ServerEndpoint;
-import java.io.IOException;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.Date;
@@ -14,14 +15,25 @@ import java.util.HashMap;
 import org.springframework.context.ApplicationContext;
 import cc.mrbird.febs.system.service.PrescriptionExecutionStatusService;
 
+@Slf4j
 @Component
 @ServerEndpoint("/ws/prescriptionexecution")
 public class PrescriptionExecutionWebSocketServer {
+    private static final String ENDPOINT = "/ws/prescriptionexecution";
+    private static final String HOSPITAL_ID = "hospitalId";
     private static final Set<Session> sessions = new CopyOnWriteArraySet<>();
     private static final ObjectMapper objectMapper = new ObjectMapper();
-    
-    // ========== 新增：处方认领状态管理（内存缓存，防止并发认领）==========
-    private static final Map<Long, PrescriptionClaimStatus> prescriptionClaimMap = new java.util.concurrent.ConcurrentHashMap<>();
+
+    static {
+        // 其他节点转发来的广播按主题投递给本节点的订阅者
+        WebSocketBus.register(ENDPOINT, (topic, frame) -> {
+            try {
+                return WebSocketFanout.publish(ENDPOINT, topic, frame);
+            } catch (JsonProcessingException e) {
+                return 0;
+            }
+        });
+    }
     
     // 用于获取Spring服务
     private static ApplicationContext applicationContext;
@@ -29,6 +41,7 @@ public class PrescriptionExecutionWebSocketServer {
     // ========== 新增：注入服务用于上线推送 ==========
     private static cc.mrbird.febs.system.service.PrescriptionExecutionService prescriptionExecutionService;
     private static cc.mrbird.febs.system.service.PrescriptionExecutionNotificationService notificationService;
+    private static cc.mrbird.febs.system.service.PrescriptionClaimArbiter claimArbiter;
     
     public static void setApplicationContext(ApplicationContext context) {
         applicationContext = context;
@@ -45,80 +58,77 @@ public class PrescriptionExecutionWebSocketServer {
     public void setPrescriptionExecutionNotificationService(cc.mrbird.febs.system.service.PrescriptionExecutionNotificationService service) {
         PrescriptionExecutionWebSocketServer.notificationService = service;
     }
+    
+    // ========== 注入认领仲裁 ==========
+    @org.springframework.beans.factory.annotation.Autowired
+    public void setPrescriptionClaimArbiter(cc.mrbird.febs.system.service.PrescriptionClaimArbiter arbiter) {
+        PrescriptionExecutionWebSocketServer.claimArbiter = arbiter;
+    }
 
     @OnOpen
     public void onOpen(Session session) {
         sessions.add(session);
-        System.out.println("=== 上位机连接建立 ===");
-        System.out.println("端点: /ws/prescriptionexecution");
-        System.out.println("会话ID: " + session.getId());
-        System.out.println("当前连接数: " + sessions.size());
+        // 连接参数 hospitalId 指定订阅范围，未指定时接收全部广播
+        subscribe(session, parseHospitalId(session.getRequestParameterMap().get(HOSPITAL_ID)));
+        log.debug("上位机连接建立: sessionId={}, 当前连接数={}", session.getId(), sessions.size());
         
         // ========== 新增：推送所有待下发的处方执行记录 ==========
-        pushPendingExecutions(session);
+        // 与该会话后续消息同在处理线程池中按顺序执行
+        WebSocketWorkerPool.submit(session, () -> pushPendingExecutions(session));
     }
     
     // ========== 新增：推送所有待下发记录的方法 ==========
+    // 待领取记录及其关联数据以固定次数的批量查询加载，查询次数与积压数量无关；
+    // 连接参数 snapshot=batch 的客户端收到一条 PRESCRIPTION_SNAPSHOT 消息，其余客户端仍逐条接收 PRESCRIPTION_BROADCAST
     private void pushPendingExecutions(Session session) {
-        if (prescriptionExecutionService == null || notificationService == null) {
-            System.err.println("服务未注入，跳过待下发记录推送");
+        if (notificationService == null) {
+            log.warn("服务未注入，跳过待下发记录推送");
             return;
         }
         
         try {
-            System.out.println("=== 开始查询待下发的处方执行记录 ===");
+            // 限定了医院的会话只推送该医院的记录
+            Long hospitalId = (Long) session.getUserProperties().get(HOSPITAL_ID);
+            cc.mrbird.febs.system.domain.PrescriptionExecutionSnapshot snapshot = notificationService.pendingSnapshot(hospitalId);
             
-            // 查询所有 status=0 的记录
-            java.util.List<cc.mrbird.febs.system.domain.PrescriptionExecution> pendingExecutions = 
-                prescriptionExecutionService.list(
-                    new com.baomidou.mybatisplus.core.conditions.query.LambdaQueryWrapper<cc.mrbird.febs.system.domain.PrescriptionExecution>()
-                        .eq(cc.mrbird.febs.system.domain.PrescriptionExecution::getStatus, 0)
-                        .orderByAsc(cc.mrbird.febs.system.domain.PrescriptionExecution::getCreatedAt)
-                );
-            
-            if (pendingExecutions == null || pendingExecutions.isEmpty()) {
-                System.out.println("没有待下发的处方执行记录");
+            if (snapshot.getTotal() == 0) {
                 return;
             }
             
-            System.out.println("找到 " + pendingExecutions.size() + " 条待下发记录，开始推送...");
+            if (isBatchSnapshot(session)) {
+                WebSocketOutbound.send(session, objectMapper.writeValueAsString(snapshot));
+                log.debug("已推送待下发记录快照: sessionId={}, 条数={}", session.getId(), snapshot.getTotal());
+                return;
+            }
             
             int successCount = 0;
-            for (cc.mrbird.febs.system.domain.PrescriptionExecution execution : pendingExecutions) {
-                try {
-                    // 构建通知消息
-                    cc.mrbird.febs.system.domain.PrescriptionExecutionNotification notification = 
-                        notificationService.buildNotification(execution);
-                    
-                    String message = objectMapper.writeValueAsString(notification);
-                    
-                    if (session.isOpen()) {
-                        session.getBasicRemote().sendText(message);
-                        successCount++;
-                        System.out.println("已推送执行记录ID: " + execution.getId() + 
-                                         ", 设备ID: " + execution.getDeviceId());
-                        Thread.sleep(50); // 间隔50ms，避免消息过载
-                    } else {
-                        System.err.println("会话已关闭，停止推送");
-                        break;
-                    }
-                } catch (Exception e) {
-                    System.err.println("推送执行记录 " + execution.getId() + " 失败: " + e.getMessage());
+            for (cc.mrbird.febs.system.domain.PrescriptionExecutionNotification notification : snapshot.getExecutions()) {
+                if (!session.isOpen()) {
+                    log.debug("会话已关闭，停止推送: sessionId={}", session.getId());
+                    break;
+                }
+                if (WebSocketOutbound.send(session, objectMapper.writeValueAsString(notification))) {
+                    successCount++;
                 }
             }
-            
-            System.out.println("=== 待下发记录推送完成 ===");
-            System.out.println("成功推送: " + successCount + " 条");
+            log.debug("待下发记录推送完成: sessionId={}, {}/{} 条", session.getId(), successCount, snapshot.getTotal());
             
         } catch (Exception e) {
-            System.err.println("推送待下发记录异常: " + e.getMessage());
-            e.printStackTrace();
+            log.error("推送待下发记录异常: sessionId={}", session.getId(), e);
         }
     }
+    
+    private static boolean isBatchSnapshot(Session session) {
+        java.util.List<String> values = session.getRequestParameterMap().get("snapshot");
+        return values != null && !values.isEmpty() && "batch".equalsIgnoreCase(values.get(0));
+    }
 
     @OnClose
     public void onClose(Session session) {
         sessions.remove(session);
+        WebSocketFanout.unsubscribeAll(session);
+        WebSocketOutbound.release(session);
+        WebSocketWorkerPool.release(session);
         // System.out.println("=== 处方执行WebSocket连接断开 ===");
         // System.out.println("会话ID: " + session.getId());
         // System.out.println("当前总连接数: " + sessions.size());
@@ -126,9 +136,13 @@ public class PrescriptionExecutionWebSocketServer {
 
     @OnMessage
     public void onMessage(String message, Session session) {
-        System.out.println("=== 收到WebSocket客户端消息 ===");
-        System.out.println("会话ID: " + session.getId());
-        
+        // 在独立线程池中按会话顺序处理，不占用 WebSocket I/O 线程
+        if (!WebSocketWorkerPool.submit(session, () -> handleMessage(message, session))) {
+            WebSocketOutbound.send(session, WebSocketWorkerPool.BUSY_REPLY);
+        }
+    }
+    
+    private void handleMessage(String message, Session session) {
         try {
             // 解析客户端消息
             JsonNode jsonNode = objectMapper.readTree(message);
@@ -142,14 +156,24 @@ public class PrescriptionExecutionWebSocketServer {
             }
             
             if (type == null) {
-                System.err.println("消息缺少 type 或 messageType 字段");
+                log.warn("消息缺少 type 或 messageType 字段: sessionId={}", session.getId());
                 return;
             }
             
-            System.out.println("消息类型: " + type);
+            log.debug("收到上位机消息: sessionId={}, type={}", session.getId(), type);
             
+            // 调整订阅范围
+            if ("SUBSCRIBE".equals(type)) {
+                WebSocketFanout.unsubscribeAll(session);
+                subscribe(session, jsonNode.hasNonNull(HOSPITAL_ID) ? jsonNode.get(HOSPITAL_ID).asLong() : null);
+            }
+            // 查询待领取处方快照
+            else if ("QUERY_PENDING_SNAPSHOT".equals(type)) {
+                Long hospitalId = (Long) session.getUserProperties().get(HOSPITAL_ID);
+                WebSocketOutbound.send(session, objectMapper.writeValueAsString(notificationService.pendingSnapshot(hospitalId)));
+            }
             // ========== 新增：处理处方认领 ==========
-            if ("PRESCRIPTION_CLAIMED".equals(type)) {
+            else if ("PRESCRIPTION_CLAIMED".equals(type)) {
                 handlePrescriptionClaim(jsonNode, session);
             }
             // ========== 新增：查询待处理处方 ==========
@@ -165,12 +189,11 @@ public class PrescriptionExecutionWebSocketServer {
                 handlePrescriptionStatusUpdate(jsonNode, session);
             } 
             else {
-                System.out.println("未知的消息类型: " + type);
+                log.debug("未知的消息类型: {}", type);
             }
             
         } catch (Exception e) {
-            System.err.println("处理WebSocket消息失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("处理WebSocket消息失败: sessionId={}", session.getId(), e);
         }
     }
     
@@ -182,46 +205,37 @@ public class PrescriptionExecutionWebSocketServer {
             String receivedTime = jsonNode.has("receivedTime") ? jsonNode.get("receivedTime").asText() : null;
             String clientInfo = jsonNode.has("clientInfo") ? jsonNode.get("clientInfo").asText() : null;
             
-            System.out.println("=== 收到上位机确认 ===");
-            System.out.println("执行记录ID: " + executionId);
-            System.out.println("设备编号: " + deviceNo);
-            System.out.println("接收时间: " + receivedTime);
-            System.out.println("客户端信息: " + clientInfo);
+            log.debug("收到上位机确认: executionId={}, deviceNo={}, receivedTime={}, clientInfo={}",
+                    executionId, deviceNo, receivedTime, clientInfo);
             
-            if (prescriptionExecutionService != null) {
-                cc.mrbird.febs.system.domain.PrescriptionExecution execution = 
-                    prescriptionExecutionService.getById(executionId);
-                
-                if (execution != null && execution.getStatus() == 0) {
-                    // 更新状态为"已下发"，同时更新进度描述
-                    execution.setStatus(1);
-                    execution.setProgress("已下发到设备");
-                    execution.setUpdatedAt(new Date());
-                    boolean success = prescriptionExecutionService.updateById(execution);
-                    
-                    if (success) {
-                        System.out.println("执行记录状态更新为：已下发(1)，进度：已下发到设备");
-                        sendConfirmationReply(session, executionId, "SUCCESS", "已确认收到");
-                    } else {
-                        System.err.println("更新执行记录状态失败");
-                        sendConfirmationReply(session, executionId, "ERROR", "数据库更新失败");
-                    }
-                } else if (execution != null && execution.getStatus() != 0) {
-                    System.out.println("执行记录已被确认，当前状态: " + execution.getStatus());
-                    sendConfirmationReply(session, executionId, "ALREADY_CONFIRMED", 
-                                        "该记录已确认，当前状态: " + execution.getStatus());
-                } else {
-                    System.err.println("执行记录不存在");
-                    sendConfirmationReply(session, executionId, "NOT_FOUND", "执行记录不存在");
-                }
-            } else {
-                System.err.println("prescriptionExecutionService 未注入");
+            if (claimArbiter == null) {
+                log.warn("claimArbiter 未注入");
                 sendConfirmationReply(session, executionId, "ERROR", "服务不可用");
+                return;
+            }
+            
+            // 与处方认领走同一条件 UPDATE（status 0 -> 1），并发认领时只有一方成功，且记录认领设备
+            cc.mrbird.febs.system.service.PrescriptionClaimArbiter.ClaimResult claim = 
+                claimArbiter.claim(executionId, deviceNo, null, "已下发到设备");
+            
+            switch (claim.getOutcome()) {
+                case CLAIMED:
+                    sendConfirmationReply(session, executionId, "SUCCESS", "已确认收到");
+                    break;
+                case ALREADY_OWNED:
+                    sendConfirmationReply(session, executionId, "ALREADY_CONFIRMED", "该记录已确认");
+                    break;
+                case ALREADY_CLAIMED:
+                    sendConfirmationReply(session, executionId, "ALREADY_CONFIRMED", claim.getClaimedDeviceNo() != null
+                                        ? "该记录已被设备" + claim.getClaimedDeviceNo() + "确认" : "该记录已确认");
+                    break;
+                default:
+                    sendConfirmationReply(session, executionId, "NOT_FOUND", "执行记录不存在");
+                    break;
             }
             
         } catch (Exception e) {
-            System.err.println("处理上位机确认失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("处理上位机确认失败", e);
             try {
                 sendConfirmationReply(session, null, "ERROR", "处理异常: " + e.getMessage());
             } catch (Exception ex) {
@@ -316,8 +330,13 @@ public class PrescriptionExecutionWebSocketServer {
             // System.out.println("消息: " + message);
             // System.out.println("更新时间: " + updateTime);
             
-            // 更新处方执行记录状态
-            updatePrescriptionExecutionStatusWithProgress(executionId, status, deviceId, progress, message, updateTime);
+            // 进度按执行记录合并后异步落库，终态立即写入；不等待数据库直接回复设备
+            if (applicationContext == null) {
+                sendStatusUpdateConfirmation(session, executionId, "ERROR");
+                return;
+            }
+            applicationContext.getBean(PrescriptionExecutionStatusService.class)
+                .submitExecutionProgress(executionId, status, progress, message, updateTime);
             
             // 发送确认回复
             sendStatusUpdateConfirmation(session, executionId, "SUCCESS");
@@ -335,39 +354,6 @@ public class PrescriptionExecutionWebSocketServer {
         }
     }
     
-    /**
-     * 更新处方执行记录状态（包含进度信息）
-     */
-    private void updatePrescriptionExecutionStatusWithProgress(Long executionId, String status, Long deviceId, Integer progress, String message, Date updateTime) {
-        try {
-            // System.out.println("=== 开始更新处方执行记录状态（含进度） ===");
-            // System.out.println("执行记录ID: " + executionId);
-            // System.out.println("设备ID: " + deviceId);
-            // System.out.println("新状态: " + status);
-            // System.out.println("进度: " + progress);
-            // System.out.println("消息: " + message);
-            // System.out.println("更新时间: " + updateTime);
-            
-            // 通过ApplicationContext获取服务
-            if (applicationContext != null) {
-                PrescriptionExecutionStatusService statusService = applicationContext.getBean(PrescriptionExecutionStatusService.class);
-                boolean success = statusService.updateExecutionStatusWithProgress(executionId, status, deviceId, progress, message, updateTime);
-                
-                // if (success) {
-                //     System.out.println("=== 数据库状态更新成功 ===");
-                // } else {
-                //     System.err.println("=== 数据库状态更新失败 ===");
-                // }
-            } else {
-                // System.err.println("ApplicationContext未初始化，无法更新数据库状态");
-            }
-            
-        } catch (Exception e) {
-            // System.err.println("更新处方执行记录状态失败: " + e.getMessage());
-            // e.printStackTrace();
-        }
-    }
-    
     /**
      * 发送状态更新确认回复
      */
@@ -381,7 +367,7 @@ public class PrescriptionExecutionWebSocketServer {
             reply.put("serverInfo", "TMS Backend Server");
             
             String replyMessage = objectMapper.writeValueAsString(reply);
-            session.getBasicRemote().sendText(replyMessage);
+            WebSocketOutbound.send(session, replyMessage);
             
             // System.out.println("=== 发送状态更新确认回复 ===");
             // System.out.println("会话ID: " + session.getId());
@@ -408,16 +394,12 @@ public class PrescriptionExecutionWebSocketServer {
             reply.put("serverInfo", "TMS Backend Server");
             
             String replyMessage = objectMapper.writeValueAsString(reply);
-            session.getBasicRemote().sendText(replyMessage);
+            WebSocketOutbound.send(session, replyMessage);
             
-            System.out.println("=== 发送确认回复 ===");
-            System.out.println("执行记录ID: " + executionId);
-            System.out.println("结果: " + result);
-            System.out.println("消息: " + message);
+            log.debug("发送确认回复: executionId={}, result={}, message={}", executionId, result, message);
             
         } catch (Exception e) {
-            System.err.println("发送确认回复失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("发送确认回复失败: executionId={}", executionId, e);
         }
     }
     
@@ -430,6 +412,7 @@ public class PrescriptionExecutionWebSocketServer {
 
     @OnError
     public void onError(Session session, Throwable error) {
+        WebSocketFanout.unsubscribeAll(session);
         // System.out.println("处方执行WebSocket发生错误：" + session.getId());
         // error.printStackTrace();
     }
@@ -438,54 +421,27 @@ public class PrescriptionExecutionWebSocketServer {
      * 推送处方执行记录创建通知给所有连接的客户端
      */
     public static void broadcastPrescriptionExecutionCreated(Object data) {
-        try {
-            // System.out.println("=== 开始WebSocket广播 ===");
-            // System.out.println("当前连接数: " + sessions.size());
-            
-            String message = objectMapper.writeValueAsString(data);
-            // System.out.println("消息内容长度: " + message.length() + " 字符");
-            
-            // 尝试解析消息内容，输出设备编号信息
-            // try {
-            //     JsonNode jsonNode = objectMapper.readTree(message);
-            //     if (jsonNode.has("deviceInfo") && jsonNode.get("deviceInfo").has("deviceNo")) {
-            //         Integer deviceNo = jsonNode.get("deviceInfo").get("deviceNo").asInt();
-            //         System.out.println("广播消息包含设备编号: " + deviceNo);
-            //     } else {
-            //         System.out.println("广播消息中未找到设备编号信息");
-            //     }
-            // } catch (Exception e) {
-            //     System.out.println("解析广播消息内容失败: " + e.getMessage());
-            // }
-            
-            int successCount = 0;
-            int failCount = 0;
-            
-            for (Session session : sessions) {
-                if (session.isOpen()) {
-                    try {
-                        session.getBasicRemote().sendText(message);
-                        successCount++;
-                        // System.out.println("成功发送到会话: " + session.getId());
-                    } catch (IOException e) {
-                        failCount++;
-                        // System.out.println("发送失败到会话: " + session.getId() + ", 错误: " + e.getMessage());
-                        // e.printStackTrace();
-                    }
-                } else {
-                    // System.out.println("跳过关闭的会话: " + session.getId());
-                }
+        Long hospitalId = null;
+        if (data instanceof cc.mrbird.febs.system.domain.PrescriptionExecutionNotification) {
+            cc.mrbird.febs.system.domain.PrescriptionExecutionNotification notification = 
+                (cc.mrbird.febs.system.domain.PrescriptionExecutionNotification) data;
+            if (notification.getHospitalInfo() != null) {
+                hospitalId = notification.getHospitalInfo().getHospitalId();
             }
-            
-            // System.out.println("=== WebSocket广播完成 ===");
-            // System.out.println("成功发送: " + successCount + " 个客户端");
-            // System.out.println("发送失败: " + failCount + " 个客户端");
-            // System.out.println("总连接数: " + sessions.size());
-            
+        }
+        broadcastPrescriptionExecutionCreated(hospitalId, data);
+    }
+
+    /**
+     * 推送处方执行记录创建通知给该医院的订阅者（以及未限定范围的客户端）
+     * 消息只序列化一次，各会话异步并行发送；经总线同时送达其他节点的连接
+     */
+    public static void broadcastPrescriptionExecutionCreated(Long hospitalId, Object data) {
+        try {
+            String frame = data instanceof String ? (String) data : objectMapper.writeValueAsString(data);
+            WebSocketBus.publish(ENDPOINT, WebSocketFanout.hospitalTopic(ENDPOINT, hospitalId), frame);
         } catch (Exception e) {
-            // System.err.println("=== WebSocket广播异常 ===");
-            // System.err.println("错误信息: " + e.getMessage());
-            // e.printStackTrace();
+            log.error("WebSocket广播异常", e);
         }
     }
 
@@ -500,38 +456,6 @@ public class PrescriptionExecutionWebSocketServer {
     // ==================== 新增：处方广播与认领相关方法 ====================
     // ========================================================================
     
-    /**
-     * 处方认领状态类（用于并发控制）
-     */
-    private static class PrescriptionClaimStatus {
-        private boolean claimed = false;
-        private Integer claimedDeviceNo;
-        private Date claimTime;
-        private String patientName;
-        
-        public PrescriptionClaimStatus(String patientName) {
-            this.patientName = patientName;
-        }
-        
-        public synchronized boolean claim(Integer deviceNo) {
-            if (claimed) {
-                return false;
-            }
-            this.claimed = true;
-            this.claimedDeviceNo = deviceNo;
-            this.claimTime = new Date();
-            return true;
-        }
-        
-        public boolean isClaimed() {
-            return claimed;
-        }
-        
-        public Integer getClaimedDeviceNo() {
-            return claimedDeviceNo;
-        }
-    }
-    
     /**
      * 处理处方认领请求
      */
@@ -542,78 +466,50 @@ public class PrescriptionExecutionWebSocketServer {
             Long deviceId = jsonNode.has("deviceId") ? jsonNode.get("deviceId").asLong() : null;
             String clientInfo = jsonNode.has("clientInfo") ? jsonNode.get("clientInfo").asText() : null;
             
-            System.out.println("=== 收到处方认领请求 ===");
-            System.out.println("执行记录ID: " + executionId);
-            System.out.println("设备编号: " + deviceNo);
-            System.out.println("设备ID: " + deviceId);
-            System.out.println("客户端信息: " + clientInfo);
+            log.debug("收到处方认领请求: executionId={}, deviceNo={}, deviceId={}, clientInfo={}",
+                    executionId, deviceNo, deviceId, clientInfo);
             
-            if (prescriptionExecutionService == null) {
-                System.err.println("prescriptionExecutionService 未注入");
+            if (prescriptionExecutionService == null || claimArbiter == null) {
+                log.warn("prescriptionExecutionService 未注入");
                 sendClaimAck(session, executionId, "ERROR", "服务不可用");
                 return;
             }
             
-            // 查询处方执行记录
-            cc.mrbird.febs.system.domain.PrescriptionExecution execution = 
-                prescriptionExecutionService.getById(executionId);
-            
-            if (execution == null) {
-                System.err.println("处方执行记录不存在");
-                sendClaimAck(session, executionId, "NOT_FOUND", "处方不存在");
-                return;
+            // 由数据库条件更新裁决，多节点部署时同一记录只有一个设备能认领成功
+            cc.mrbird.febs.system.service.PrescriptionClaimArbiter.ClaimResult claim = 
+                claimArbiter.claim(executionId, deviceNo, deviceId);
+            
+            switch (claim.getOutcome()) {
+                case NOT_FOUND:
+                    sendClaimAck(session, executionId, "NOT_FOUND", "处方不存在");
+                    return;
+                case ALREADY_CLAIMED:
+                    sendClaimAck(session, executionId, "ALREADY_CLAIMED", claim.getClaimedDeviceNo() != null
+                        ? "该患者已在设备" + claim.getClaimedDeviceNo() + "上治疗" : "该处方已被领取");
+                    return;
+                case ALREADY_OWNED:
+                    // 重复请求（如确认消息丢失后重试），不再重复广播
+                    sendClaimAck(session, executionId, "SUCCESS", "领取成功");
+                    return;
+                default:
+                    break;
             }
             
-            // 获取或创建认领状态对象
-            PrescriptionClaimStatus claimStatus = prescriptionClaimMap.computeIfAbsent(
-                executionId, 
-                k -> new PrescriptionClaimStatus(getPatientName(execution))
-            );
-            
-            // 尝试认领（线程安全）
-            boolean claimSuccess = claimStatus.claim(deviceNo);
-            
-            if (!claimSuccess) {
-                System.out.println("认领失败：处方已被设备 " + claimStatus.getClaimedDeviceNo() + " 认领");
-                sendClaimAck(session, executionId, "ALREADY_CLAIMED", 
-                    "该患者已在设备" + claimStatus.getClaimedDeviceNo() + "上治疗");
-                return;
-            }
-            
-            // 更新数据库：状态改为"已领取/待执行"
-            execution.setStatus(1); // 1-已领取/待执行(CLAIMED)
-            execution.setProgress("已被设备" + deviceNo + "领取");
-            execution.setClaimedDeviceNo(deviceNo);
-            execution.setClaimedTime(new Date());
-            if (deviceId != null) {
-                execution.setDeviceId(deviceId);
-            }
-            execution.setUpdatedAt(new Date());
-            
-            boolean updateSuccess = prescriptionExecutionService.updateById(execution);
-            
-            if (!updateSuccess) {
-                System.err.println("数据库更新失败");
-                // 回滚内存状态
-                prescriptionClaimMap.remove(executionId);
-                sendClaimAck(session, executionId, "ERROR", "数据库更新失败");
-                return;
-            }
+            cc.mrbird.febs.system.domain.PrescriptionExecution execution = 
+                prescriptionExecutionService.getById(executionId);
             
-            System.out.println("=== 处方认领成功 ===");
-            System.out.println("执行记录ID: " + executionId);
-            System.out.println("设备编号: " + deviceNo);
-            System.out.println("状态已更新为: 1 (已领取/待执行)");
+            log.debug("处方认领成功: executionId={}, deviceNo={}", executionId, deviceNo);
             
             // 发送成功确认给请求设备
             sendClaimAck(session, executionId, "SUCCESS", "领取成功");
             
             // 广播给其他设备，通知该处方已被认领
-            broadcastClaimNotify(executionId, deviceNo, getPatientName(execution));
+            if (execution != null) {
+                broadcastClaimNotify(execution.getHospitalId(), executionId, deviceNo, getPatientName(execution));
+            }
             
         } catch (Exception e) {
-            System.err.println("处理处方认领请求失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("处理处方认领请求失败", e);
             try {
                 sendClaimAck(session, null, "ERROR", "处理异常: " + e.getMessage());
             } catch (Exception ex) {
@@ -635,23 +531,19 @@ public class PrescriptionExecutionWebSocketServer {
             reply.put("timestamp", new Date());
             
             String replyMessage = objectMapper.writeValueAsString(reply);
-            session.getBasicRemote().sendText(replyMessage);
+            WebSocketOutbound.send(session, replyMessage);
             
-            System.out.println("=== 发送认领确认 ===");
-            System.out.println("执行记录ID: " + executionId);
-            System.out.println("结果: " + result);
-            System.out.println("消息: " + message);
+            log.debug("发送认领确认: executionId={}, result={}, message={}", executionId, result, message);
             
         } catch (Exception e) {
-            System.err.println("发送认领确认失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("发送认领确认失败: executionId={}", executionId, e);
         }
     }
     
     /**
      * 广播处方已被认领的通知
      */
-    private void broadcastClaimNotify(Long executionId, Integer claimedDeviceNo, String patientName) {
+    private void broadcastClaimNotify(Long hospitalId, Long executionId, Integer claimedDeviceNo, String patientName) {
         try {
             Map<String, Object> notification = new HashMap<>();
             notification.put("messageType", "PRESCRIPTION_CLAIM_NOTIFY");
@@ -660,30 +552,37 @@ public class PrescriptionExecutionWebSocketServer {
             notification.put("patientName", patientName);
             notification.put("timestamp", new Date());
             
-            String message = objectMapper.writeValueAsString(notification);
-            
-            System.out.println("=== 广播处方认领通知 ===");
-            System.out.println("执行记录ID: " + executionId);
-            System.out.println("领取设备: " + claimedDeviceNo);
-            System.out.println("患者姓名: " + patientName);
-            
-            int successCount = 0;
-            for (Session session : sessions) {
-                if (session.isOpen()) {
-                    try {
-                        session.getBasicRemote().sendText(message);
-                        successCount++;
-                    } catch (IOException e) {
-                        System.err.println("发送失败到会话: " + session.getId());
-                    }
-                }
-            }
+            int successCount = WebSocketBus.publish(ENDPOINT, WebSocketFanout.hospitalTopic(ENDPOINT, hospitalId), 
+                objectMapper.writeValueAsString(notification));
             
-            System.out.println("成功广播到 " + successCount + " 个设备");
+            log.debug("广播处方认领通知: executionId={}, claimedDeviceNo={}, 本节点送达={}",
+                    executionId, claimedDeviceNo, successCount);
             
         } catch (Exception e) {
-            System.err.println("广播处方认领通知失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("广播处方认领通知失败: executionId={}", executionId, e);
+        }
+    }
+    
+    /**
+     * 按医院订阅广播，hospitalId 为空时接收全部广播
+     */
+    private static void subscribe(Session session, Long hospitalId) {
+        if (hospitalId != null) {
+            session.getUserProperties().put(HOSPITAL_ID, hospitalId);
+        } else {
+            session.getUserProperties().remove(HOSPITAL_ID);
+        }
+        WebSocketFanout.subscribe(session, WebSocketFanout.hospitalTopic(ENDPOINT, hospitalId));
+    }
+    
+    private static Long parseHospitalId(java.util.List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.valueOf(values.get(0));
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
     
@@ -695,12 +594,10 @@ public class PrescriptionExecutionWebSocketServer {
             Integer deviceNo = jsonNode.has("deviceNo") ? jsonNode.get("deviceNo").asInt() : null;
             String searchKey = jsonNode.has("searchKey") ? jsonNode.get("searchKey").asText() : null;
             
-            System.out.println("=== 收到查询待处理处方请求 ===");
-            System.out.println("设备编号: " + deviceNo);
-            System.out.println("搜索关键字: " + searchKey);
+            log.debug("收到查询待处理处方请求: deviceNo={}, searchKey={}", deviceNo, searchKey);
             
             if (prescriptionExecutionService == null || notificationService == null) {
-                System.err.println("服务未注入");
+                log.warn("服务未注入");
                 sendQueryResult(session, searchKey, new java.util.ArrayList<>(), "ERROR", "服务不可用");
                 return;
             }
@@ -720,14 +617,11 @@ public class PrescriptionExecutionWebSocketServer {
             java.util.List<cc.mrbird.febs.system.domain.PrescriptionExecution> pendingExecutions = 
                 prescriptionExecutionService.list(queryWrapper);
             
-            System.out.println("查询到 " + pendingExecutions.size() + " 条待处理处方");
-            
             // 发送查询结果
             sendQueryResult(session, searchKey, pendingExecutions, "SUCCESS", null);
             
         } catch (Exception e) {
-            System.err.println("处理查询待处理处方请求失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("处理查询待处理处方请求失败", e);
             try {
                 sendQueryResult(session, null, new java.util.ArrayList<>(), "ERROR", "查询异常: " + e.getMessage());
             } catch (Exception ex) {
@@ -754,31 +648,19 @@ public class PrescriptionExecutionWebSocketServer {
                 response.put("message", errorMessage);
             }
             
-            // 构建处方列表
-            java.util.List<Object> prescriptionList = new java.util.ArrayList<>();
-            for (cc.mrbird.febs.system.domain.PrescriptionExecution execution : executions) {
-                try {
-                    // 使用通知服务构建完整的处方信息
-                    cc.mrbird.febs.system.domain.PrescriptionExecutionNotification notification = 
-                        notificationService.buildNotification(execution);
-                    prescriptionList.add(notification);
-                } catch (Exception e) {
-                    System.err.println("构建处方通知失败: " + e.getMessage());
-                }
-            }
+            // 构建处方列表，关联数据批量加载
+            java.util.List<cc.mrbird.febs.system.domain.PrescriptionExecutionNotification> prescriptionList = 
+                executions.isEmpty() ? new java.util.ArrayList<>() : notificationService.buildNotifications(executions);
             
             response.put("prescriptions", prescriptionList);
             
             String message = objectMapper.writeValueAsString(response);
-            session.getBasicRemote().sendText(message);
+            WebSocketOutbound.send(session, message);
             
-            System.out.println("=== 发送查询结果 ===");
-            System.out.println("搜索关键字: " + searchKey);
-            System.out.println("结果数量: " + executions.size());
+            log.debug("发送查询结果: searchKey={}, 结果数量={}", searchKey, executions.size());
             
         } catch (Exception e) {
-            System.err.println("发送查询结果失败: " + e.getMessage());
-            e.printStackTrace();
+            log.error("发送查询结果失败", e);
         }
     }
     
@@ -801,7 +683,7 @@ public class PrescriptionExecutionWebSocketServer {
                 }
             }
         } catch (Exception e) {
-            System.err.println("获取患者姓名失败: " + e.getMessage());
+            log.warn("获取患者姓名失败: patientId={}", execution.getPatientId(), e);
         }
         
         return "患者ID:" + execution.getPatientId();
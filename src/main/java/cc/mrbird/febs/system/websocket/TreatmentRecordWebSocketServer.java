@@ -51,6 +51,8 @@ public class TreatmentRecordWebSocketServer {
     @OnClose
     public void onClose(Session session) {
         sessions.remove(session);
+        WebSocketOutbound.release(session);
+        WebSocketWorkerPool.release(session);
         // System.out.println("=== 治疗记录WebSocket连接断开 ===");
         // System.out.println("会话ID: " + session.getId());
         // System.out.println("当前总连接数: " + sessions.size());
@@ -58,6 +60,13 @@ public class TreatmentRecordWebSocketServer {
 
     @OnMessage
     public void onMessage(String message, Session session) {
+        // 在独立线程池中按会话顺序处理，不占用 WebSocket I/O 线程
+        if (!WebSocketWorkerPool.submit(session, () -> handleMessage(message, session))) {
+            WebSocketOutbound.send(session, WebSocketWorkerPool.BUSY_REPLY);
+        }
+    }
+    
+    private void handleMessage(String message, Session session) {
         System.out.println("=== 收到WebSocket客户端消息 ===");
         System.out.println("会话ID: " + session.getId());
         
@@ -160,10 +169,11 @@ public class TreatmentRecordWebSocketServer {
             boolean success = treatmentRecordService.saveTreatmentRecord(jsonNode);
             
             if (success) {
-                // 从jsonNode生成serverRecordId（临时方案，后续可以改为服务返回）
+                // 从jsonNode生成serverRecordId（ID 由上报内容确定，与入库时生成的一致）
                 Integer deviceNo = jsonNode.get("deviceNo").asInt();
                 String serverRecordId = cc.mrbird.febs.system.utils.ServerRecordIdGenerator
-                    .generateTreatmentRecordId(deviceNo, localMedicalRecordId);
+                    .generateTreatmentRecordId(deviceNo, localMedicalRecordId,
+                            jsonNode.get("presDate").asText(), jsonNode.get("presTime").asText());
                 
                 System.out.println("治疗记录保存成功，serverRecordId: " + serverRecordId);
                 
@@ -209,8 +219,19 @@ public class TreatmentRecordWebSocketServer {
                 throw new RuntimeException("无法获取同步服务");
             }
             
-            // 执行同步查询（服务器返回所有数据，设备端自己过滤）
-            SyncResponse response = syncService.syncPatientRecords(patientIdentifier, syncType, deviceNo);
+            // 带水位或 syncMode=DELTA 时增量同步，只返回水位之后新增或修改的记录；否则全量同步
+            SyncResponse response;
+            if ("DELTA".equals(jsonNode.path("syncMode").asText()) 
+                    || jsonNode.hasNonNull("treatmentCursor") || jsonNode.hasNonNull("mepCursor")) {
+                SyncResponse.Cursor treatmentCursor = readCursor(jsonNode, "treatmentCursor");
+                SyncResponse.Cursor mepCursor = readCursor(jsonNode, "mepCursor");
+                Integer pageSize = jsonNode.hasNonNull("pageSize") ? jsonNode.get("pageSize").asInt() : null;
+                response = syncService.syncPatientRecordsDelta(patientIdentifier, syncType, deviceNo, 
+                        treatmentCursor, mepCursor, pageSize);
+            } else {
+                // 执行同步查询（服务器返回所有数据，设备端自己过滤）
+                response = syncService.syncPatientRecords(patientIdentifier, syncType, deviceNo);
+            }
             
             System.out.println("同步查询完成，返回数据");
             
@@ -231,6 +252,17 @@ public class TreatmentRecordWebSocketServer {
         }
     }
     
+    /**
+     * 读取增量同步水位，格式：{"updateTime": 毫秒时间戳, "id": 记录ID}
+     */
+    private SyncResponse.Cursor readCursor(JsonNode jsonNode, String field) throws IOException {
+        JsonNode node = jsonNode.get(field);
+        if (node == null || node.isNull()) {
+            return null;
+        }
+        return objectMapper.treeToValue(node, SyncResponse.Cursor.class);
+    }
+    
     /**
      * 获取治疗记录服务
      */
@@ -284,7 +316,7 @@ public class TreatmentRecordWebSocketServer {
      */
     private void sendResponse(Session session, Object response) throws Exception {
         String message = objectMapper.writeValueAsString(response);
-        session.getBasicRemote().sendText(message);
+        WebSocketOutbound.send(session, message);
         System.out.println("响应已发送");
     }
     
@@ -293,7 +325,7 @@ public class TreatmentRecordWebSocketServer {
      */
     private void sendSuccessReply(Session session, String message) throws IOException {
         String reply = objectMapper.writeValueAsString(new ReplyMessage("SUCCESS", message, new Date()));
-        session.getBasicRemote().sendText(reply);
+        WebSocketOutbound.send(session, reply);
     }
     
     /**
@@ -301,7 +333,7 @@ public class TreatmentRecordWebSocketServer {
      */
     private void sendErrorReply(Session session, String message) throws IOException {
         String reply = objectMapper.writeValueAsString(new ReplyMessage("ERROR", message, new Date()));
-        session.getBasicRemote().sendText(reply);
+        WebSocketOutbound.send(session, reply);
     }
     
     /**
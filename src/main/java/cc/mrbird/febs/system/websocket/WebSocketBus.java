@@ -0,0 +1,185 @@
+package cc.mrbird.febs.system.websocket;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebSocket 跨节点广播总线
+ * 各端点的会话只保存在本节点内存中，广播时先投递给本节点会话，再通过 Redis pub/sub 转发给其他节点，
+ * 其他节点收到后投递给各自的本地会话。消息带节点ID，本节点发出的消息不会重复投递。
+ * 转发由单独的线程异步发布到 Redis，广播调用线程不等待 Redis；转发队列满时丢弃并记录日志。
+ * Redis 不可用或总线关闭时退化为仅本节点投递。
+ * 非 WebSocket 的跨节点通知（如设备状态表的失效通知）也可注册自己的端点复用该总线。
+ *
+ * @author FanK
+ */
+@Slf4j
+@Component
+public class WebSocketBus implements MessageListener {
+
+    /**
+     * 本地投递：向本节点的会话发送消息
+     */
+    public interface LocalDelivery {
+        /**
+         * @param topic 主题
+         * @param frame 已序列化的消息
+         * @return 投递成功的会话数
+         */
+        int deliver(String topic, String frame);
+    }
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final Map<String, LocalDelivery> deliveries = new ConcurrentHashMap<>();
+
+    private static volatile WebSocketBus instance;
+
+    private final String nodeId = UUID.randomUUID().toString();
+
+    @Autowired
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${websocket.bus.enabled:true}")
+    private boolean enabled;
+
+    @Value("${websocket.bus.channel:websocket:bus}")
+    private String channel;
+
+    /**
+     * 转发队列容量，Redis 短暂不可用时积压的广播超过该数量后丢弃
+     */
+    @Value("${websocket.bus.forward-queue-size:10000}")
+    private int forwardQueueSize;
+
+    /**
+     * 单线程转发，保证同一节点发出的广播按顺序发布
+     */
+    private ExecutorService forwarder;
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Envelope {
+        private String node;
+        private String endpoint;
+        private String topic;
+        private String frame;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            forwarder = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(Math.max(forwardQueueSize, 1)), r -> {
+                        Thread thread = new Thread(r, "websocketBusForwarder");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(channel));
+            instance = this;
+            log.info("WebSocket 广播总线已启动: node={}, channel={}", nodeId, channel);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        instance = null;
+        if (forwarder != null) {
+            forwarder.shutdown();
+        }
+    }
+
+    /**
+     * 注册端点的本地投递方式
+     *
+     * @param endpoint 端点
+     * @param delivery 本地投递
+     */
+    public static void register(String endpoint, LocalDelivery delivery) {
+        deliveries.put(endpoint, delivery);
+    }
+
+    /**
+     * 广播：投递给本节点会话，并转发给其他节点
+     *
+     * @param endpoint 端点
+     * @param topic    主题
+     * @param frame    已序列化的消息
+     * @return 本节点投递成功的会话数
+     */
+    public static int publish(String endpoint, String topic, String frame) {
+        int delivered = deliverLocal(endpoint, topic, frame);
+        WebSocketBus bus = instance;
+        if (bus != null) {
+            bus.forward(endpoint, topic, frame);
+        }
+        return delivered;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            Envelope envelope = objectMapper.readValue(new String(message.getBody(), StandardCharsets.UTF_8), Envelope.class);
+            if (nodeId.equals(envelope.getNode())) {
+                return;
+            }
+            deliverLocal(envelope.getEndpoint(), envelope.getTopic(), envelope.getFrame());
+        } catch (Exception e) {
+            log.warn("WebSocket 总线消息处理失败", e);
+        }
+    }
+
+    private void forward(String endpoint, String topic, String frame) {
+        try {
+            forwarder.execute(() -> doForward(endpoint, topic, frame));
+        } catch (RejectedExecutionException e) {
+            log.warn("WebSocket 总线转发队列已满，丢弃: endpoint={}, topic={}", endpoint, topic);
+        }
+    }
+
+    private void doForward(String endpoint, String topic, String frame) {
+        try {
+            Envelope envelope = new Envelope();
+            envelope.setNode(nodeId);
+            envelope.setEndpoint(endpoint);
+            envelope.setTopic(topic);
+            envelope.setFrame(frame);
+            stringRedisTemplate.convertAndSend(channel, objectMapper.writeValueAsString(envelope));
+        } catch (Exception e) {
+            // 转发失败不影响本节点投递
+            log.warn("WebSocket 总线转发失败: endpoint={}, topic={}", endpoint, topic, e);
+        }
+    }
+
+    private static int deliverLocal(String endpoint, String topic, String frame) {
+        LocalDelivery delivery = deliveries.get(endpoint);
+        if (delivery == null) {
+            return 0;
+        }
+        return delivery.deliver(topic, frame);
+    }
+}
@@ -0,0 +1,96 @@
+package cc.mrbird.febs.system.websocket;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import javax.websocket.Session;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WebSocket 广播分发
+ * 消息只序列化一次，得到的不可变文本帧由所有订阅者共享，经 {@link WebSocketOutbound} 的会话队列并行异步发送。
+ * 订阅者按主题分组（如按医院），客户端只收到与自己相关的广播；未指定范围的订阅者加入 {@link #TOPIC_ALL}，接收全部广播。
+ *
+ * @author FanK
+ */
+public final class WebSocketFanout {
+
+    /**
+     * 接收全部广播的订阅组
+     */
+    public static final String TOPIC_ALL = "*";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final Map<String, Set<Session>> groups = new ConcurrentHashMap<>();
+    private static final Map<Session, Set<String>> subscriptions = new ConcurrentHashMap<>();
+
+    private WebSocketFanout() {
+    }
+
+    /**
+     * 医院范围的主题
+     */
+    public static String hospitalTopic(String endpoint, Long hospitalId) {
+        return hospitalId == null ? topicAll(endpoint) : endpoint + ":hospital:" + hospitalId;
+    }
+
+    /**
+     * 端点内接收全部广播的主题
+     */
+    public static String topicAll(String endpoint) {
+        return endpoint + ":" + TOPIC_ALL;
+    }
+
+    public static void subscribe(Session session, String topic) {
+        groups.computeIfAbsent(topic, k -> ConcurrentHashMap.newKeySet()).add(session);
+        subscriptions.computeIfAbsent(session, k -> ConcurrentHashMap.newKeySet()).add(topic);
+    }
+
+    /**
+     * 会话关闭时退出所有订阅组
+     */
+    public static void unsubscribeAll(Session session) {
+        Set<String> topics = subscriptions.remove(session);
+        if (topics == null) {
+            return;
+        }
+        for (String topic : topics) {
+            Set<Session> members = groups.get(topic);
+            if (members != null) {
+                // 空组保留，主题数量受医院数限制
+                members.remove(session);
+            }
+        }
+    }
+
+    /**
+     * 序列化一次，发送给主题及端点全量组的订阅者
+     *
+     * @param endpoint 端点
+     * @param topic    主题，为 null 时只发送给全量组
+     * @param payload  消息对象或已序列化的文本
+     * @return 入队成功的会话数
+     */
+    public static int publish(String endpoint, String topic, Object payload) throws JsonProcessingException {
+        String frame = payload instanceof String ? (String) payload : objectMapper.writeValueAsString(payload);
+        String all = topicAll(endpoint);
+        int queued = WebSocketOutbound.broadcast(members(all), frame);
+        if (topic != null && !topic.equals(all)) {
+            queued += WebSocketOutbound.broadcast(members(topic), frame);
+        }
+        return queued;
+    }
+
+    public static int subscriberCount(String topic) {
+        return members(topic).size();
+    }
+
+    private static Set<Session> members(String topic) {
+        Set<Session> members = groups.get(topic);
+        return members == null ? Collections.emptySet() : members;
+    }
+}
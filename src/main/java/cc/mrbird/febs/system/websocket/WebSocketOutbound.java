@@ -0,0 +1,335 @@
+package cc.mrbird.febs.system.websocket;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WebSocket 出站消息层
+ * 每个会话一个有界队列，通过 getAsyncRemote 逐条异步发送（同一会话同一时刻只有一条在途），
+ * 调用方入队后立即返回，单个慢客户端不再阻塞其他接收方和调用线程。
+ * 队列满时按策略丢弃最旧消息、丢弃新消息或关闭会话；队首消息积压超过上限的会话会被关闭。
+ * 所有端点的发送（包括单播回复）都需经过这里，避免与异步发送并发写同一会话。
+ *
+ * @author FanK
+ */
+@Slf4j
+@Component
+public class WebSocketOutbound {
+
+    public enum OverflowPolicy {
+        /**
+         * 丢弃队列中最旧的消息
+         */
+        DROP_OLDEST,
+        /**
+         * 丢弃新消息
+         */
+        DROP_NEWEST,
+        /**
+         * 关闭会话
+         */
+        CLOSE
+    }
+
+    private static volatile WebSocketOutbound instance;
+
+    private final MeterRegistry meterRegistry;
+    private final Map<Session, Outbox> outboxes = new ConcurrentHashMap<>();
+
+    /**
+     * 每个会话的队列容量
+     */
+    @Value("${websocket.outbound.queue-capacity:256}")
+    private int queueCapacity = 256;
+
+    /**
+     * 队列满时的处理策略：drop-oldest / drop-newest / close
+     */
+    @Value("${websocket.outbound.overflow-policy:drop-oldest}")
+    private String overflowPolicy = "drop-oldest";
+
+    /**
+     * 队首消息等待超过该时间（毫秒）的会话视为卡死并关闭，<=0 不检查
+     */
+    @Value("${websocket.outbound.close-lag-ms:30000}")
+    private long closeLagMs = 30000;
+
+    /**
+     * 单条消息异步发送超时（毫秒）
+     */
+    @Value("${websocket.outbound.send-timeout-ms:10000}")
+    private long sendTimeoutMs = 10000;
+
+    private OverflowPolicy policy = OverflowPolicy.DROP_OLDEST;
+
+    @Autowired
+    public WebSocketOutbound(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void install() {
+        policy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase().replace('-', '_'));
+        Gauge.builder("websocket.outbound.sessions", outboxes, Map::size).register(meterRegistry);
+        Gauge.builder("websocket.outbound.queued", this, WebSocketOutbound::totalQueued).register(meterRegistry);
+        Gauge.builder("websocket.outbound.lag.max", this, WebSocketOutbound::maxLagMs)
+                .baseUnit("milliseconds").register(meterRegistry);
+        instance = this;
+    }
+
+    /**
+     * 向单个会话发送消息（入队后立即返回）
+     *
+     * @param session 会话
+     * @param text    消息内容
+     * @return 是否已入队
+     */
+    public static boolean send(Session session, String text) {
+        return get().enqueue(session, text);
+    }
+
+    /**
+     * 向多个会话发送同一条消息
+     *
+     * @param sessions 会话集合
+     * @param text     消息内容
+     * @return 入队成功的会话数
+     */
+    public static int broadcast(Collection<Session> sessions, String text) {
+        WebSocketOutbound outbound = get();
+        int queued = 0;
+        for (Session session : sessions) {
+            if (outbound.enqueue(session, text)) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * 会话关闭时释放其队列
+     */
+    public static void release(Session session) {
+        get().outboxes.remove(session);
+    }
+
+    /**
+     * 各会话的积压情况
+     *
+     * @return sessionId、endpoint、queued、lagMs、sent、dropped
+     */
+    public static List<Map<String, Object>> stats() {
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (Outbox outbox : get().outboxes.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("sessionId", outbox.session.getId());
+            item.put("endpoint", outbox.endpoint);
+            item.put("queued", outbox.queue.size());
+            item.put("lagMs", outbox.lagMs(now));
+            item.put("sent", outbox.sent.get());
+            item.put("dropped", outbox.dropped.get());
+            stats.add(item);
+        }
+        return stats;
+    }
+
+    private static WebSocketOutbound get() {
+        WebSocketOutbound outbound = instance;
+        if (outbound == null) {
+            // 容器尚未完成初始化时使用默认配置
+            synchronized (WebSocketOutbound.class) {
+                if (instance == null) {
+                    WebSocketOutbound fallback = new WebSocketOutbound(new SimpleMeterRegistry());
+                    fallback.install();
+                }
+                outbound = instance;
+            }
+        }
+        return outbound;
+    }
+
+    private boolean enqueue(Session session, String text) {
+        if (session == null || text == null) {
+            return false;
+        }
+        if (!session.isOpen()) {
+            outboxes.remove(session);
+            return false;
+        }
+        Outbox outbox = outboxes.computeIfAbsent(session, Outbox::new);
+        long now = System.currentTimeMillis();
+        if (closeLagMs > 0 && outbox.lagMs(now) > closeLagMs) {
+            close(outbox, "消息积压超过" + closeLagMs + "ms");
+            return false;
+        }
+        Item item = new Item(text, now);
+        if (!outbox.queue.offer(item)) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    // 丢弃最旧消息后重试一次，并发入队时仍可能失败，此时丢弃新消息
+                    if (outbox.queue.poll() != null) {
+                        outbox.dropped.incrementAndGet();
+                        count("websocket.outbound.dropped", outbox);
+                    }
+                    if (!outbox.queue.offer(item)) {
+                        outbox.dropped.incrementAndGet();
+                        count("websocket.outbound.dropped", outbox);
+                        return false;
+                    }
+                    break;
+                case DROP_NEWEST:
+                    outbox.dropped.incrementAndGet();
+                    count("websocket.outbound.dropped", outbox);
+                    return false;
+                default:
+                    close(outbox, "发送队列已满");
+                    return false;
+            }
+        }
+        drain(outbox);
+        return true;
+    }
+
+    /**
+     * 发送队首消息，完成回调中继续发送下一条；同一会话同一时刻只有一条在途
+     */
+    private void drain(Outbox outbox) {
+        while (outbox.sending.compareAndSet(false, true)) {
+            Item item = outbox.queue.poll();
+            if (item == null) {
+                outbox.sending.set(false);
+                // 释放标记后可能有新消息入队，再检查一次
+                if (outbox.queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+            outbox.inFlightSince = item.enqueuedAt;
+            try {
+                outbox.session.getAsyncRemote().sendText(item.text, result -> {
+                    outbox.inFlightSince = 0;
+                    if (result.isOK()) {
+                        outbox.sent.incrementAndGet();
+                        meterRegistry.timer("websocket.outbound.latency", "endpoint", outbox.endpoint)
+                                .record(System.currentTimeMillis() - item.enqueuedAt, TimeUnit.MILLISECONDS);
+                    } else {
+                        count("websocket.outbound.failed", outbox);
+                        log.debug("WebSocket 消息发送失败: session={}", outbox.session.getId(), result.getException());
+                    }
+                    outbox.sending.set(false);
+                    if (!outbox.session.isOpen()) {
+                        outboxes.remove(outbox.session);
+                        return;
+                    }
+                    drain(outbox);
+                });
+                return;
+            } catch (Exception e) {
+                outbox.inFlightSince = 0;
+                outbox.sending.set(false);
+                count("websocket.outbound.failed", outbox);
+                log.debug("WebSocket 消息发送失败: session={}", outbox.session.getId(), e);
+                if (!outbox.session.isOpen()) {
+                    outboxes.remove(outbox.session);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void close(Outbox outbox, String reason) {
+        outboxes.remove(outbox.session);
+        count("websocket.outbound.closed", outbox);
+        log.warn("WebSocket 慢客户端已断开: session={}, endpoint={}, 原因={}", outbox.session.getId(), outbox.endpoint, reason);
+        try {
+            outbox.session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "slow consumer"));
+        } catch (Exception e) {
+            log.debug("关闭 WebSocket 会话失败: session={}", outbox.session.getId(), e);
+        }
+    }
+
+    private void count(String name, Outbox outbox) {
+        meterRegistry.counter(name, "endpoint", outbox.endpoint).increment();
+    }
+
+    private double totalQueued() {
+        long total = 0;
+        for (Outbox outbox : outboxes.values()) {
+            total += outbox.queue.size();
+        }
+        return total;
+    }
+
+    private double maxLagMs() {
+        long now = System.currentTimeMillis();
+        long max = 0;
+        for (Outbox outbox : outboxes.values()) {
+            max = Math.max(max, outbox.lagMs(now));
+        }
+        return max;
+    }
+
+    private static final class Item {
+        final String text;
+        final long enqueuedAt;
+
+        Item(String text, long enqueuedAt) {
+            this.text = text;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private final class Outbox {
+        final Session session;
+        final String endpoint;
+        final ArrayBlockingQueue<Item> queue;
+        final AtomicBoolean sending = new AtomicBoolean();
+        /**
+         * 在途消息的入队时间，0 表示没有在途消息
+         */
+        volatile long inFlightSince;
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+
+        Outbox(Session session) {
+            this.session = session;
+            this.endpoint = session.getRequestURI() == null ? "unknown" : session.getRequestURI().getPath();
+            this.queue = new ArrayBlockingQueue<>(Math.max(queueCapacity, 1));
+            if (sendTimeoutMs > 0) {
+                session.getAsyncRemote().setSendTimeout(sendTimeoutMs);
+            }
+        }
+
+        /**
+         * 最早一条未发送完成的消息已等待的时间
+         */
+        long lagMs(long now) {
+            long since = inFlightSince;
+            if (since == 0) {
+                Item head = queue.peek();
+                since = head == null ? 0 : head.enqueuedAt;
+            }
+            return since == 0 ? 0 : now - since;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package cc.mrbird.febs.system.websocket;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.websocket.Session;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebSocket 入站消息处理线程池
+ * onMessage 只负责入队，JSON 解析、数据库读写等处理在独立的有界线程池中执行，不占用容器的 WebSocket I/O 线程。
+ * 每个会话一条串行通道，同一会话的消息按到达顺序处理，不同会话并行；
+ * 单个会话或全局积压达到上限时拒绝入队，由端点回复“繁忙”，大批量上传不会拖慢其他设备的消息。
+ *
+ * @author FanK
+ */
+@Slf4j
+@Component
+public class WebSocketWorkerPool {
+
+    /**
+     * 积压已满时回复客户端的消息
+     */
+    public static final String BUSY_REPLY = "{\"messageType\":\"SERVER_BUSY\",\"result\":\"BUSY\",\"message\":\"服务器繁忙，请稍后重试\"}";
+
+    private static volatile WebSocketWorkerPool instance;
+
+    private final MeterRegistry meterRegistry;
+    private final Map<Session, Lane> lanes = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private ExecutorService executor;
+
+    /**
+     * 处理线程数
+     */
+    @Value("${websocket.worker.threads:8}")
+    private int threads = 8;
+
+    /**
+     * 单个会话最多积压的消息数
+     */
+    @Value("${websocket.worker.session-queue-limit:64}")
+    private int sessionQueueLimit = 64;
+
+    /**
+     * 全局最多积压的消息数
+     */
+    @Value("${websocket.worker.total-queue-limit:2000}")
+    private int totalQueueLimit = 2000;
+
+    /**
+     * 单个会话连续处理的最大消息数，超过后让出线程给其他会话
+     */
+    @Value("${websocket.worker.drain-batch:16}")
+    private int drainBatch = 16;
+
+    @Autowired
+    public WebSocketWorkerPool(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void install() {
+        AtomicInteger index = new AtomicInteger();
+        int size = Math.max(threads, 1);
+        // 每个会话同一时刻最多占用一个任务位，任务队列长度受会话数限制
+        executor = new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "wsWorker-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Gauge.builder("websocket.worker.queued", queued, AtomicInteger::get).register(meterRegistry);
+        Gauge.builder("websocket.worker.sessions", lanes, Map::size).register(meterRegistry);
+        instance = this;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        instance = null;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 提交会话消息的处理任务
+     *
+     * @param session 会话
+     * @param task    处理任务
+     * @return false 表示积压已满或线程池尚未就绪，调用方应回复繁忙
+     */
+    public static boolean submit(Session session, Runnable task) {
+        WebSocketWorkerPool pool = instance;
+        if (pool == null) {
+            // 线程池尚未初始化或已关闭，不另建线程池，由客户端稍后重试
+            log.warn("WebSocket 消息处理线程池未就绪，拒绝消息: session={}", session.getId());
+            return false;
+        }
+        return pool.enqueue(session, task);
+    }
+
+    /**
+     * 会话关闭时释放其通道，未处理的消息仍会执行完
+     */
+    public static void release(Session session) {
+        WebSocketWorkerPool pool = instance;
+        if (pool != null) {
+            pool.lanes.remove(session);
+        }
+    }
+
+    private boolean enqueue(Session session, Runnable task) {
+        Lane lane = lanes.computeIfAbsent(session, Lane::new);
+        // 先占会话额度再占全局额度，全局额度不足时归还会话额度；并发入队时计数不会超过上限
+        if (!tryAcquire(lane.size, sessionQueueLimit)) {
+            meterRegistry.counter("websocket.worker.rejected", "endpoint", lane.endpoint).increment();
+            return false;
+        }
+        if (!tryAcquire(queued, totalQueueLimit)) {
+            lane.size.decrementAndGet();
+            meterRegistry.counter("websocket.worker.rejected", "endpoint", lane.endpoint).increment();
+            return false;
+        }
+        lane.tasks.offer(task);
+        schedule(lane);
+        return true;
+    }
+
+    private static boolean tryAcquire(AtomicInteger counter, int limit) {
+        for (;;) {
+            int current = counter.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void schedule(Lane lane) {
+        if (lane.running.compareAndSet(false, true)) {
+            try {
+                executor.execute(() -> drain(lane));
+            } catch (Exception e) {
+                lane.running.set(false);
+                log.warn("WebSocket 消息处理任务提交失败: session={}", lane.session.getId(), e);
+            }
+        }
+    }
+
+    private void drain(Lane lane) {
+        try {
+            for (int i = 0; i < Math.max(drainBatch, 1); i++) {
+                Runnable task = lane.tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                lane.size.decrementAndGet();
+                queued.decrementAndGet();
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    log.error("WebSocket 消息处理异常: session={}", lane.session.getId(), e);
+                }
+            }
+        } finally {
+            lane.running.set(false);
+            // 仍有积压（超过单次处理数或释放标记前新入队）时重新调度
+            if (!lane.tasks.isEmpty()) {
+                schedule(lane);
+            }
+        }
+    }
+
+    private static final class Lane {
+        final Session session;
+        final String endpoint;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicBoolean running = new AtomicBoolean();
+
+        Lane(Session session) {
+            this.session = session;
+            this.endpoint = session.getRequestURI() == null ? "unknown" : session.getRequestURI().getPath();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package cc.mrbird.febs.common.mqtt;
+
+import cn.hutool.core.util.StrUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MQTT 入站解析基准：每条消息的 CPU 耗时与分配字节数
+ * legacy 复现改造前的解析路径（审计 readValue 成 Map 取 msgId、填充 ts 时 readTree + writeValueAsString、处理器再次 readTree），
+ * envelope 为当前路径（MqttInboundEnvelope 只解析一次，审计与处理器共享解析结果）。
+ * 两条路径都不含实际的日志输出与业务处理，只比较解析部分。
+ * payload 大小覆盖 device-info-up（约 256B）到携带处方/阈值明细的上报（1KB、4KB）。
+ * 分配数据需要 GC profiler，运行 main 方法或：
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=cc.mrbird.febs.common.mqtt.MqttInboundEnvelopeBenchmark
+ *
+ * @author FanK
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MqttInboundEnvelopeBenchmark {
+
+    private static final String TOPIC = "TMS/D0001/device-info-up";
+
+    @Param({"256", "1024", "4096"})
+    int payloadBytes;
+
+    /**
+     * 设备是否上报 ts；未上报时旧路径会额外序列化一次
+     */
+    @Param({"true", "false"})
+    boolean tsReported;
+
+    private ObjectMapper objectMapper;
+    private byte[] raw;
+
+    @Setup
+    public void setUp() {
+        objectMapper = new ObjectMapper();
+        raw = buildPayload(payloadBytes, tsReported).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) throws Exception {
+        String payload = new String(raw, StandardCharsets.UTF_8);
+
+        // 审计日志：解析主题、readValue 成 Map 取 msgId、计算字节数
+        MqttTopics.TopicParts auditParts = MqttTopics.parse(TOPIC);
+        bh.consume(auditParts);
+        bh.consume(legacyExtractMsgId(payload));
+        bh.consume(payload.getBytes(StandardCharsets.UTF_8).length);
+
+        // 分发前再次解析主题
+        bh.consume(MqttTopics.parse(TOPIC));
+
+        // 缺失 ts 时填充并重新序列化
+        payload = legacyFillTimestampIfMissing(payload);
+
+        // 处理器：再次解析主题与 payload
+        bh.consume(MqttTopics.parse(TOPIC));
+        JsonNode root = objectMapper.readTree(payload);
+        bh.consume(root.get("msgId"));
+        consumeData(root.get("data"), bh);
+    }
+
+    @Benchmark
+    public void envelope(Blackhole bh) {
+        MqttInboundEnvelope envelope = MqttInboundEnvelope.of(TOPIC, raw, objectMapper);
+
+        // 审计日志复用信封
+        bh.consume(envelope.getParts());
+        bh.consume(envelope.getMsgId());
+        bh.consume(envelope.getSize());
+
+        // 处理器复用信封
+        consumeData(envelope.getData(), bh);
+    }
+
+    private String legacyExtractMsgId(String payload) {
+        try {
+            Map<?, ?> m = objectMapper.readValue(payload, Map.class);
+            Object v = m.get("msgId");
+            if (v == null) {
+                Object data = m.get("data");
+                if (data instanceof Map) {
+                    Object inner = ((Map<?, ?>) data).get("msgId");
+                    return inner == null ? null : String.valueOf(inner);
+                }
+                return null;
+            }
+            return String.valueOf(v);
+        } catch (Exception ignore) {
+            return null;
+        }
+    }
+
+    private String legacyFillTimestampIfMissing(String payload) throws Exception {
+        JsonNode root = objectMapper.readTree(payload);
+        if (root == null || !root.isObject()) {
+            return payload;
+        }
+        ObjectNode objectNode = (ObjectNode) root;
+        JsonNode tsNode = objectNode.get("ts");
+        boolean needFill = tsNode == null || tsNode.isNull() || (tsNode.isTextual() && StrUtil.isBlank(tsNode.asText()));
+        if (needFill) {
+            objectNode.put("ts", OffsetDateTime.now().format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+            return objectMapper.writeValueAsString(objectNode);
+        }
+        return payload;
+    }
+
+    private static void consumeData(JsonNode data, Blackhole bh) {
+        bh.consume(data.get("coilTemperature").asText());
+        bh.consume(data.get("machineTemperature").asText());
+        bh.consume(data.get("pumpFlowRate").asText());
+        bh.consume(data.get("timestamp").asText());
+    }
+
+    /**
+     * 构造接近目标字节数的上报消息，超出基础字段的部分用采样数组补齐
+     */
+    static String buildPayload(int targetBytes, boolean tsReported) {
+        StringBuilder sb = new StringBuilder(targetBytes + 64);
+        sb.append("{\"msgId\":\"7f3c9a2e-5b1d-4e8a-9c61-0d2f4b8e1a57\",");
+        if (tsReported) {
+            sb.append("\"ts\":\"2026-10-17T09:30:15.123+08:00\",");
+        }
+        sb.append("\"data\":{\"deviceId\":\"D0001\",\"coilTemperature\":\"35.20\",")
+                .append("\"machineTemperature\":\"28.75\",\"pumpFlowRate\":\"15.3\",")
+                .append("\"timestamp\":\"2026-10-17 09:30:15\",\"samples\":[");
+        int i = 0;
+        while (sb.length() < targetBytes - 4) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(30 + (i * 7) % 10).append('.').append((i * 13) % 100);
+            i++;
+        }
+        return sb.append("]}}").toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(MqttInboundEnvelopeBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
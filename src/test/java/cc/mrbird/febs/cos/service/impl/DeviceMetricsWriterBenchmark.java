@@ -0,0 +1,193 @@
+package cc.mrbird.febs.cos.service.impl;
+
+import cc.mrbird.febs.cos.dao.DeviceMetricsMapper;
+import cc.mrbird.febs.cos.entity.DeviceMetrics;
+import com.baomidou.mybatisplus.extension.spring.MybatisSqlSessionFactoryBean;
+import com.mysql.cj.jdbc.MysqlDataSource;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mybatis.spring.SqlSessionTemplate;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.MySQLContainer;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * device_metrics 写入吞吐基准（rows/sec）
+ * 在本地 MySQL 容器中比较三种写入方式在 1k / 10k / 100k 行下的吞吐：
+ * 逐行 INSERT + BATCH 执行器（原 saveBatch(list, 500) 的做法）、按字节预算切分的多行 INSERT（batchInsert）、LOAD DATA LOCAL INFILE（loadData）。
+ * 需要本机可用的 Docker，不可用时跳过；类名不以 Test 结尾，默认不随 mvn test 执行，手动运行：
+ * mvn test -Dtest=DeviceMetricsWriterBenchmark
+ *
+ * @author FanK
+ */
+public class DeviceMetricsWriterBenchmark {
+
+    private static final int[] SIZES = {1000, 10000, 100000};
+
+    private static MySQLContainer<?> mysql;
+    private static MysqlDataSource dataSource;
+    private static SqlSessionFactory sqlSessionFactory;
+    private static DeviceMetricsServiceImpl service;
+
+    @BeforeClass
+    @SuppressWarnings("resource")
+    public static void setUp() throws Exception {
+        Assume.assumeTrue("Docker 不可用，跳过写入基准", DockerClientFactory.instance().isDockerAvailable());
+        mysql = new MySQLContainer<>("mysql:5.7")
+                .withCommand("--local-infile=1", "--character-set-server=utf8mb4")
+                .withUrlParam("useSSL", "false")
+                .withUrlParam("allowLoadLocalInfile", "true")
+                .withUrlParam("serverTimezone", "Asia/Shanghai");
+        mysql.start();
+
+        dataSource = new MysqlDataSource();
+        dataSource.setURL(mysql.getJdbcUrl());
+        dataSource.setUser(mysql.getUsername());
+        dataSource.setPassword(mysql.getPassword());
+        try (Connection connection = dataSource.getConnection()) {
+            ScriptUtils.executeSqlScript(connection, new FileSystemResource("sql/device_metrics_table.sql"));
+        }
+
+        MybatisSqlSessionFactoryBean factoryBean = new MybatisSqlSessionFactoryBean();
+        factoryBean.setDataSource(dataSource);
+        factoryBean.setMapperLocations(new PathMatchingResourcePatternResolver()
+                .getResources("classpath:mapper/cos/DeviceMetricsMapper.xml"));
+        sqlSessionFactory = factoryBean.getObject();
+        DeviceMetricsMapper mapper = new SqlSessionTemplate(sqlSessionFactory).getMapper(DeviceMetricsMapper.class);
+
+        service = new DeviceMetricsServiceImpl();
+        ReflectionTestUtils.setField(service, "baseMapper", mapper);
+        ReflectionTestUtils.setField(service, "dataSource", dataSource);
+        ReflectionTestUtils.setField(service, "maxStatementBytes", 1048576);
+        ReflectionTestUtils.setField(service, "maxStatementRows", 5000);
+        ReflectionTestUtils.setField(service, "loadDataChunkRows", 50000);
+        ReflectionTestUtils.setField(service, "loadDataEnabled", true);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (mysql != null) {
+            mysql.stop();
+        }
+    }
+
+    @Test
+    public void compareWriters() throws Exception {
+        // 预热：连接、语句缓存与 JIT
+        List<DeviceMetrics> warmup = generate(1000);
+        perRowBatch(warmup);
+        service.batchInsert(warmup);
+        service.loadData(warmup.iterator());
+
+        System.out.println(String.format("%-8s %16s %16s %16s", "rows", "perRow(r/s)", "multiRow(r/s)", "loadData(r/s)"));
+        for (int size : SIZES) {
+            List<DeviceMetrics> rows = generate(size);
+
+            truncate();
+            long start = System.nanoTime();
+            perRowBatch(rows);
+            double perRow = rate(size, start);
+            assertEquals(size, count());
+
+            truncate();
+            start = System.nanoTime();
+            service.batchInsert(rows);
+            double multiRow = rate(size, start);
+            assertEquals(size, count());
+
+            truncate();
+            start = System.nanoTime();
+            long loaded = service.loadData(rows.iterator());
+            double loadData = rate(size, start);
+            assertEquals(size, loaded);
+
+            System.out.println(String.format("%-8d %16.0f %16.0f %16.0f", size, perRow, multiRow, loadData));
+        }
+    }
+
+    /**
+     * 原 saveBatch(list, 500) 的写法：每行一条 INSERT，BATCH 执行器每 500 行 flush 一次
+     */
+    private static void perRowBatch(List<DeviceMetrics> rows) {
+        try (SqlSession session = sqlSessionFactory.openSession(ExecutorType.BATCH, false)) {
+            DeviceMetricsMapper mapper = session.getMapper(DeviceMetricsMapper.class);
+            for (int i = 0; i < rows.size(); i++) {
+                DeviceMetrics copy = copyOf(rows.get(i));
+                mapper.insert(copy);
+                if ((i + 1) % 500 == 0) {
+                    session.flushStatements();
+                }
+            }
+            session.flushStatements();
+            session.commit();
+        }
+    }
+
+    private static List<DeviceMetrics> generate(int size) {
+        List<DeviceMetrics> rows = new ArrayList<>(size);
+        LocalDateTime base = LocalDateTime.now().withNano(0);
+        for (int i = 0; i < size; i++) {
+            DeviceMetrics m = new DeviceMetrics();
+            m.setDeviceType("TMS");
+            m.setDeviceId("D" + (i % 500));
+            m.setCoilTemperature(BigDecimal.valueOf(3000 + i % 1000, 2));
+            m.setMachineTemperature(BigDecimal.valueOf(2500 + i % 800, 2));
+            m.setPumpFlowRate(BigDecimal.valueOf(150 + i % 50, 1));
+            m.setMsgId("bench-" + i);
+            m.setCreateTime(base.minusSeconds(size - i));
+            m.setServerTime(base);
+            rows.add(m);
+        }
+        return rows;
+    }
+
+    private static DeviceMetrics copyOf(DeviceMetrics m) {
+        DeviceMetrics copy = new DeviceMetrics();
+        copy.setDeviceType(m.getDeviceType());
+        copy.setDeviceId(m.getDeviceId());
+        copy.setCoilTemperature(m.getCoilTemperature());
+        copy.setMachineTemperature(m.getMachineTemperature());
+        copy.setPumpFlowRate(m.getPumpFlowRate());
+        copy.setMsgId(m.getMsgId());
+        copy.setCreateTime(m.getCreateTime());
+        copy.setServerTime(m.getServerTime());
+        return copy;
+    }
+
+    private static double rate(int rows, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return rows / Math.max(seconds, 1e-9);
+    }
+
+    private static void truncate() throws Exception {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("TRUNCATE TABLE device_metrics");
+        }
+    }
+
+    private static long count() throws Exception {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM device_metrics")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package cc.mrbird.febs.system.service.impl;
+
+import cc.mrbird.febs.system.dao.MepDataMapper;
+import cc.mrbird.febs.system.dao.MepRecordMapper;
+import cc.mrbird.febs.system.dao.PrescriptionRecordMapper;
+import cc.mrbird.febs.system.dao.TbsPrescriptionMapper;
+import cc.mrbird.febs.system.dao.TreatmentRecordMapper;
+import cc.mrbird.febs.system.domain.MepRecord;
+import cc.mrbird.febs.system.domain.TreatmentRecord;
+import cc.mrbird.febs.system.domain.response.SyncResponse;
+import cc.mrbird.febs.system.domain.vo.MepDataVO;
+import cc.mrbird.febs.system.domain.vo.PrescriptionRecordVO;
+import cc.mrbird.febs.system.domain.vo.TbsPrescriptionVO;
+import com.baomidou.mybatisplus.core.MybatisConfiguration;
+import com.baomidou.mybatisplus.core.metadata.TableInfoHelper;
+import org.apache.ibatis.builder.MapperBuilderAssistant;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.invocation.Invocation;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.when;
+
+/**
+ * 记录同步查询次数基准：同步请求的 SQL 次数与患者历史记录条数无关
+ * 每个 mapper 调用对应一条 SQL；子记录按 IN 列表批量查询，单个 IN 列表最多 1000 个ID，
+ * 因此 1000 条以内为固定 5 条查询（治疗记录、处方、TBS 处方、MEP 记录、MEP 数据），之后每多 1000 条每种子表多 1 条。
+ * 同时输出各规模下组装同步数据的耗时。
+ *
+ * @author FanK
+ */
+public class RecordSyncQueryCountTest {
+
+    private static final String PATIENT = "张三_1990-05-15";
+    private static final int CHILDREN_PER_RECORD = 3;
+
+    private RecordSyncServiceImpl service;
+    private TreatmentRecordMapper treatmentRecordMapper;
+    private MepRecordMapper mepRecordMapper;
+    private PrescriptionRecordMapper prescriptionRecordMapper;
+    private TbsPrescriptionMapper tbsPrescriptionMapper;
+    private MepDataMapper mepDataMapper;
+
+    @BeforeClass
+    public static void initTableInfo() {
+        // LambdaQueryWrapper 解析列名依赖实体的表信息缓存
+        MapperBuilderAssistant assistant = new MapperBuilderAssistant(new MybatisConfiguration(), "");
+        TableInfoHelper.initTableInfo(assistant, TreatmentRecord.class);
+        TableInfoHelper.initTableInfo(assistant, MepRecord.class);
+    }
+
+    @Before
+    public void setUp() {
+        service = new RecordSyncServiceImpl();
+        treatmentRecordMapper = mock(TreatmentRecordMapper.class);
+        mepRecordMapper = mock(MepRecordMapper.class);
+        prescriptionRecordMapper = mock(PrescriptionRecordMapper.class);
+        tbsPrescriptionMapper = mock(TbsPrescriptionMapper.class);
+        mepDataMapper = mock(MepDataMapper.class);
+        ReflectionTestUtils.setField(service, "treatmentRecordMapper", treatmentRecordMapper);
+        ReflectionTestUtils.setField(service, "mepRecordMapper", mepRecordMapper);
+        ReflectionTestUtils.setField(service, "prescriptionRecordMapper", prescriptionRecordMapper);
+        ReflectionTestUtils.setField(service, "tbsPrescriptionMapper", tbsPrescriptionMapper);
+        ReflectionTestUtils.setField(service, "mepDataMapper", mepDataMapper);
+    }
+
+    @Test
+    public void queryCountIsConstantInHistoryLength() {
+        int[] sizes = {1, 10, 200, 1000};
+        for (int size : sizes) {
+            setUp();
+            long elapsed = sync(size);
+            assertEquals("history=" + size, 5, queryCount());
+            System.out.println(String.format("history=%-5d queries=%d elapsed=%dus", size, queryCount(), elapsed / 1000));
+        }
+    }
+
+    @Test
+    public void queryCountGrowsOnlyPerInListChunk() {
+        sync(2500);
+        // 1 + 3（处方）+ 3（TBS 处方）+ 1 + 3（MEP 数据）
+        assertEquals(11, queryCount());
+    }
+
+    private long sync(int size) {
+        List<TreatmentRecord> treatments = new ArrayList<>(size);
+        List<MepRecord> meps = new ArrayList<>(size);
+        for (long id = 1; id <= size; id++) {
+            TreatmentRecord t = new TreatmentRecord();
+            t.setId(id);
+            t.setPatientIdentifier(PATIENT);
+            treatments.add(t);
+            MepRecord m = new MepRecord();
+            m.setId(id);
+            m.setPatientIdentifier(PATIENT);
+            meps.add(m);
+        }
+        when(treatmentRecordMapper.selectByPatientIdentifier(anyString())).thenReturn(treatments);
+        when(mepRecordMapper.selectList(any())).thenReturn(meps);
+        when(prescriptionRecordMapper.selectByTreatmentRecordIds(anyCollection())).thenAnswer(inv -> {
+            List<PrescriptionRecordVO> rows = new ArrayList<>();
+            for (Long id : inv.<Collection<Long>>getArgument(0)) {
+                for (int i = 0; i < CHILDREN_PER_RECORD; i++) {
+                    PrescriptionRecordVO vo = new PrescriptionRecordVO();
+                    vo.setTreatmentRecordId(id);
+                    rows.add(vo);
+                }
+            }
+            return rows;
+        });
+        when(tbsPrescriptionMapper.selectByTreatmentRecordIds(anyCollection())).thenAnswer(inv -> {
+            List<TbsPrescriptionVO> rows = new ArrayList<>();
+            for (Long id : inv.<Collection<Long>>getArgument(0)) {
+                TbsPrescriptionVO vo = new TbsPrescriptionVO();
+                vo.setTreatmentRecordId(id);
+                rows.add(vo);
+            }
+            return rows;
+        });
+        when(mepDataMapper.selectByMepRecordIds(anyCollection())).thenAnswer(inv -> {
+            List<MepDataVO> rows = new ArrayList<>();
+            for (Long id : inv.<Collection<Long>>getArgument(0)) {
+                for (int i = 0; i < CHILDREN_PER_RECORD; i++) {
+                    MepDataVO vo = new MepDataVO();
+                    vo.setMepRecordId(id);
+                    rows.add(vo);
+                }
+            }
+            return rows;
+        });
+
+        long start = System.nanoTime();
+        SyncResponse response = service.syncPatientRecords(PATIENT, "ALL", 1);
+        long elapsed = System.nanoTime() - start;
+
+        SyncResponse.SyncData data = response.getData();
+        assertEquals(size, data.getTotalTreatmentCount().intValue());
+        assertEquals(size, data.getTotalMepCount().intValue());
+        assertEquals(CHILDREN_PER_RECORD, data.getTreatmentRecords().get(size - 1).getPrescription_record().size());
+        assertEquals(1, data.getTreatmentRecords().get(size - 1).getTbsPrescriptions().size());
+        assertEquals(CHILDREN_PER_RECORD, data.getMepRecords().get(size - 1).getMepDataList().size());
+        return elapsed;
+    }
+
+    private int queryCount() {
+        int count = 0;
+        for (Object mapper : new Object[]{treatmentRecordMapper, mepRecordMapper, prescriptionRecordMapper,
+                tbsPrescriptionMapper, mepDataMapper}) {
+            for (Invocation invocation : mockingDetails(mapper).getInvocations()) {
+                if (!invocation.getMethod().getName().equals("toString")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
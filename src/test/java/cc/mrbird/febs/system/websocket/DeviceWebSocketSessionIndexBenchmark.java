@@ -0,0 +1,167 @@
+package cc.mrbird.febs.system.websocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.websocket.Session;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 设备 WebSocket 会话索引基准：每条设备消息的查找代价与在线连接数的关系
+ * 每次调用模拟一条心跳：recordDeviceConnection + hasActiveConnection + getDeviceConnectionCount，设备轮流上报。
+ * index 为当前双向索引实现，scan 复现改造前遍历 sessionDeviceMap 的实现；
+ * index 在 100 到 5000 个连接下耗时应基本不变，scan 随连接数线性增长。
+ * 会话用动态代理模拟（isOpen 恒为 true），避免 mock 框架记录调用带来的额外开销。
+ * 运行 main 方法或：
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=cc.mrbird.febs.system.websocket.DeviceWebSocketSessionIndexBenchmark
+ *
+ * @author FanK
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceWebSocketSessionIndexBenchmark {
+
+    @Param({"100", "1000", "5000"})
+    int sessionCount;
+
+    private Session[] sessions;
+    private Long[] deviceIds;
+    private int cursor;
+
+    /**
+     * 改造前的 session -> deviceId 映射，仅供 scan 使用
+     */
+    private final Map<Session, Long> legacySessionDeviceMap = new ConcurrentHashMap<>();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        clearServerIndex();
+        legacySessionDeviceMap.clear();
+        sessions = new Session[sessionCount];
+        deviceIds = new Long[sessionCount];
+        for (int i = 0; i < sessionCount; i++) {
+            sessions[i] = fakeSession(String.valueOf(i));
+            deviceIds[i] = 10000L + i;
+            DeviceWebSocketServer.recordDeviceConnection(sessions[i], deviceIds[i]);
+            legacySessionDeviceMap.put(sessions[i], deviceIds[i]);
+        }
+        cursor = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        clearServerIndex();
+        legacySessionDeviceMap.clear();
+    }
+
+    @Benchmark
+    public int index() {
+        int i = next();
+        Long deviceId = deviceIds[i];
+        DeviceWebSocketServer.recordDeviceConnection(sessions[i], deviceId);
+        boolean active = DeviceWebSocketServer.hasActiveConnection(deviceId);
+        return DeviceWebSocketServer.getDeviceConnectionCount(deviceId) + (active ? 1 : 0);
+    }
+
+    @Benchmark
+    public int scan() {
+        int i = next();
+        Long deviceId = deviceIds[i];
+        legacyRecordDeviceConnection(sessions[i], deviceId);
+        boolean active = legacyHasActiveConnection(deviceId);
+        return legacyGetDeviceConnectionCount(deviceId) + (active ? 1 : 0);
+    }
+
+    private int next() {
+        int i = cursor;
+        cursor = i + 1 == sessionCount ? 0 : i + 1;
+        return i;
+    }
+
+    private void legacyRecordDeviceConnection(Session session, Long deviceId) {
+        Session existingSession = null;
+        for (Map.Entry<Session, Long> entry : legacySessionDeviceMap.entrySet()) {
+            if (deviceId.equals(entry.getValue())) {
+                existingSession = entry.getKey();
+                break;
+            }
+        }
+        if (existingSession != null && !existingSession.equals(session)) {
+            legacySessionDeviceMap.remove(existingSession);
+        }
+        legacySessionDeviceMap.put(session, deviceId);
+    }
+
+    private boolean legacyHasActiveConnection(Long deviceId) {
+        for (Map.Entry<Session, Long> entry : legacySessionDeviceMap.entrySet()) {
+            if (deviceId.equals(entry.getValue()) && entry.getKey().isOpen()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int legacyGetDeviceConnectionCount(Long deviceId) {
+        int count = 0;
+        for (Map.Entry<Session, Long> entry : legacySessionDeviceMap.entrySet()) {
+            if (deviceId.equals(entry.getValue()) && entry.getKey().isOpen()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void clearServerIndex() {
+        ((Map<?, ?>) ReflectionTestUtils.getField(DeviceWebSocketServer.class, "sessionDeviceMap")).clear();
+        ((Map<?, ?>) ReflectionTestUtils.getField(DeviceWebSocketServer.class, "deviceSessionMap")).clear();
+    }
+
+    private static Session fakeSession(String id) {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[]{Session.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "getId":
+                            return id;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "Session " + id;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(DeviceWebSocketSessionIndexBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}